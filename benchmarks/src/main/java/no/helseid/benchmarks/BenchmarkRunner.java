@@ -0,0 +1,37 @@
+package no.helseid.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, reporting allocation rates alongside the latencies.
+ * Regular JMH command line arguments are accepted, e.g. a regular expression selecting benchmarks
+ */
+public final class BenchmarkRunner {
+  private BenchmarkRunner() {
+  }
+
+  /**
+   * @param args JMH command line arguments
+   * @throws RunnerException if the benchmarks fail
+   * @throws CommandLineOptionException if the arguments are malformed
+   */
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+    CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+    OptionsBuilder optionsBuilder = new OptionsBuilder();
+    if (commandLineOptions.getIncludes().isEmpty()) {
+      optionsBuilder.include(BenchmarkRunner.class.getPackageName() + ".*");
+    }
+    Options options = optionsBuilder
+        .parent(commandLineOptions)
+        .addProfiler(GCProfiler.class)
+        .build();
+
+    new Runner(options).run();
+  }
+}
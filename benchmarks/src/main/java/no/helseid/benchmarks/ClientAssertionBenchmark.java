@@ -0,0 +1,46 @@
+package no.helseid.benchmarks;
+
+import com.nimbusds.jwt.SignedJWT;
+import no.helseid.clientassertion.ClientAssertion;
+import no.helseid.clientassertion.ClientAssertionTemplate;
+import no.helseid.configuration.Client;
+import no.helseid.signing.Algorithm;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creation and signing of a client assertion for each supported algorithm
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientAssertionBenchmark {
+  @Param({"RS256", "RS384", "RS512", "PS256", "PS384", "PS512", "ES256", "ES384", "ES512"})
+  Algorithm algorithm;
+
+  Client client;
+  ClientAssertionTemplate template;
+
+  @Setup
+  public void setup() throws Exception {
+    client = new Client("benchmark-client", Fixtures.generateKeyReference(algorithm), Set.of("nhn:api/scope1"));
+    template = ClientAssertionTemplate.compile(Fixtures.ISSUER, client, null);
+  }
+
+  @Benchmark
+  public String createClientAssertion() throws Exception {
+    SignedJWT signedJWT = ClientAssertion.createClientAssertionSignedJWT(Fixtures.ISSUER, client);
+    return signedJWT.serialize();
+  }
+
+  @Benchmark
+  public String createClientAssertionFromTemplate() throws Exception {
+    SignedJWT signedJWT = template.createSignedJWT();
+    return signedJWT.serialize();
+  }
+}
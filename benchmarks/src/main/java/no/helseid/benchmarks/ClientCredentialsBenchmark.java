@@ -0,0 +1,78 @@
+package no.helseid.benchmarks;
+
+import com.nimbusds.openid.connect.sdk.op.OIDCProviderMetadata;
+import no.helseid.cache.ExpiringCache;
+import no.helseid.configuration.Client;
+import no.helseid.configuration.Tenancy;
+import no.helseid.endpoints.token.AccessTokenResponse;
+import no.helseid.endpoints.token.TokenRequestDetails;
+import no.helseid.endpoints.token.TokenResponse;
+import no.helseid.grants.ClientCredentials;
+import no.helseid.signing.Algorithm;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.URI;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of a token served from the cache, including the creation of the cache key.
+ * The cache answers every lookup with the same token, isolating the client credentials overhead from the cache implementation
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClientCredentialsBenchmark {
+  ClientCredentials clientCredentials;
+  TokenRequestDetails tokenRequestDetails;
+
+  @Setup
+  public void setup() throws Exception {
+    OIDCProviderMetadata metadata = Fixtures.metadata();
+    AccessTokenResponse accessTokenResponse = new AccessTokenResponse(
+        "access-token", "DPoP", 3600, Set.of("nhn:api/scope1"), "{}", 200);
+
+    clientCredentials = new ClientCredentials.Builder(URI.create(Fixtures.ISSUER))
+        .withClient(new Client(
+            "benchmark-client",
+            Fixtures.generateKeyReference(Algorithm.PS256),
+            Set.of("nhn:api/scope1", "nhn:api/scope2")))
+        .setCustomMetadataProvider(() -> metadata)
+        .setCustomTokenCache(new ExpiringCache<>() {
+          @Override
+          public AccessTokenResponse get(String key) {
+            return accessTokenResponse;
+          }
+
+          @Override
+          public void put(String key, AccessTokenResponse value, long expireAtEpochMillisecond) {
+          }
+
+          @Override
+          public void remove(String key) {
+          }
+        })
+        .build();
+
+    tokenRequestDetails = new TokenRequestDetails.Builder()
+        .withTenancy(Tenancy.MULTI_TENANT)
+        .withParentOrganizationNumber("994598759")
+        .withChildOrganizationNumber("994598759")
+        .withSfmJournalId("sfm-id")
+        .addScope("nhn:api/scope2")
+        .build();
+  }
+
+  @Benchmark
+  public TokenResponse cacheHitWithoutDetails() throws Exception {
+    return clientCredentials.getAccessToken();
+  }
+
+  @Benchmark
+  public TokenResponse cacheHitWithDetails() throws Exception {
+    return clientCredentials.getAccessToken(tokenRequestDetails);
+  }
+}
@@ -0,0 +1,61 @@
+package no.helseid.benchmarks;
+
+import no.helseid.dpop.DefaultDPoPProofCreator;
+import no.helseid.dpop.HttpMethod;
+import no.helseid.dpop.PreparedDPoPProofCreator;
+import no.helseid.signing.Algorithm;
+import no.helseid.signing.KeyReference;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creation of DPoP proofs for the token endpoint and for resource servers
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DPoPProofBenchmark {
+  @Param({"PS256", "ES256"})
+  Algorithm algorithm;
+
+  DefaultDPoPProofCreator dPoPProofCreator;
+  PreparedDPoPProofCreator preparedDPoPProofCreator;
+  URI tokenEndpoint;
+  URI resourceEndpoint;
+  String accessToken;
+
+  @Setup
+  public void setup() throws Exception {
+    KeyReference keyReference = Fixtures.generateKeyReference(algorithm);
+    dPoPProofCreator = new DefaultDPoPProofCreator(keyReference);
+    preparedDPoPProofCreator = new PreparedDPoPProofCreator(keyReference);
+    tokenEndpoint = URI.create(Fixtures.ISSUER + "/connect/token");
+    resourceEndpoint = URI.create("https://api.nhn.no/resource?query=value");
+    accessToken = Fixtures.createBoundAccessToken(keyReference);
+  }
+
+  @Benchmark
+  public String withNonce() throws Exception {
+    return dPoPProofCreator.createDPoPProofWithNonce(tokenEndpoint, HttpMethod.POST, "nonce");
+  }
+
+  @Benchmark
+  public String withAccessToken() throws Exception {
+    return dPoPProofCreator.createDPoPProof(resourceEndpoint, HttpMethod.GET, accessToken);
+  }
+
+  @Benchmark
+  public String preparedWithNonce() throws Exception {
+    return preparedDPoPProofCreator.createDPoPProofWithNonce(tokenEndpoint, HttpMethod.POST, "nonce");
+  }
+
+  @Benchmark
+  public String preparedWithAccessToken() throws Exception {
+    return preparedDPoPProofCreator.createDPoPProof(resourceEndpoint, HttpMethod.GET, accessToken);
+  }
+}
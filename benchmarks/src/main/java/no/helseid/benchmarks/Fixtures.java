@@ -0,0 +1,77 @@
+package no.helseid.benchmarks;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JOSEObjectType;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import com.nimbusds.oauth2.sdk.ParseException;
+import com.nimbusds.openid.connect.sdk.op.OIDCProviderMetadata;
+import no.helseid.exceptions.HelseIdException;
+import no.helseid.signing.Algorithm;
+import no.helseid.signing.ECKeyReference;
+import no.helseid.signing.KeyReference;
+import no.helseid.signing.RSAKeyReference;
+import no.helseid.signing.SigningMaterial;
+
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Shared setup of the benchmarks, nothing in here is measured
+ */
+final class Fixtures {
+  static final String ISSUER = "https://helseid-sts.test.nhn.no";
+
+  private Fixtures() {
+  }
+
+  /**
+   * @param algorithm the algorithm of the key
+   * @return a reference to a generated key of the algorithm family
+   * @throws HelseIdException if the key can not be generated
+   */
+  static KeyReference generateKeyReference(Algorithm algorithm) throws HelseIdException {
+    if (Algorithm.Family.EC.contains(algorithm)) {
+      return ECKeyReference.generate(algorithm);
+    }
+    return RSAKeyReference.generate(algorithm);
+  }
+
+  /**
+   * @return metadata describing the test environment of HelseID, without fetching it
+   * @throws ParseException if the metadata is malformed
+   */
+  static OIDCProviderMetadata metadata() throws ParseException {
+    return OIDCProviderMetadata.parse("""
+        {
+          "issuer": "BASE_ENDPOINT",
+          "token_endpoint": "BASE_ENDPOINT/connect/token",
+          "jwks_uri": "BASE_ENDPOINT/.well-known/openid-configuration/jwks",
+          "subject_types_supported": ["public"],
+          "id_token_signing_alg_values_supported": ["PS256"]
+        }
+        """.replaceAll("BASE_ENDPOINT", ISSUER));
+  }
+
+  /**
+   * @param keyReference the key the access token is bound to
+   * @return a serialized access token bound to the key thru the cnf.jkt claim
+   * @throws HelseIdException if the signing material can not be prepared
+   * @throws JOSEException if the access token can not be signed
+   */
+  static String createBoundAccessToken(KeyReference keyReference) throws HelseIdException, JOSEException {
+    SigningMaterial signingMaterial = SigningMaterial.of(keyReference);
+    long now = System.currentTimeMillis();
+    SignedJWT accessToken = new SignedJWT(
+        signingMaterial.getHeader(new JOSEObjectType("at+jwt")),
+        new JWTClaimsSet.Builder()
+            .issuer(ISSUER)
+            .subject("benchmark-client")
+            .issueTime(new Date(now))
+            .expirationTime(new Date(now + 3_600_000L))
+            .claim("cnf", Map.of("jkt", signingMaterial.getThumbprint().toString()))
+            .build());
+    accessToken.sign(signingMaterial.getSigner());
+    return accessToken.serialize();
+  }
+}
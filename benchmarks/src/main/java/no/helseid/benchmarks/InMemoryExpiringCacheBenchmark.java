@@ -0,0 +1,65 @@
+package no.helseid.benchmarks;
+
+import no.helseid.cache.InMemoryExpiringCache;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookups and insertions in the in-memory cache under contention
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InMemoryExpiringCacheBenchmark {
+  @Param({"100", "10000"})
+  int keyCount;
+
+  InMemoryExpiringCache<String> cache;
+  String[] keys;
+
+  @Setup
+  public void setup() {
+    cache = new InMemoryExpiringCache<>();
+    keys = new String[keyCount];
+    long expireAt = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+    for (int i = 0; i < keyCount; i++) {
+      keys[i] = "key-" + i;
+      cache.put(keys[i], "value-" + i, expireAt);
+    }
+  }
+
+  private String randomKey() {
+    return keys[ThreadLocalRandom.current().nextInt(keyCount)];
+  }
+
+  @Benchmark
+  @Threads(4)
+  public String get() {
+    return cache.get(randomKey());
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void put() {
+    cache.put(randomKey(), "value", System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1));
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(3)
+  public String mixedGet() {
+    return cache.get(randomKey());
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(1)
+  public void mixedPut() {
+    cache.put(randomKey(), "value", System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1));
+  }
+}
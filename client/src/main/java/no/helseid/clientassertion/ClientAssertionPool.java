@@ -0,0 +1,285 @@
+package no.helseid.clientassertion;
+
+import com.nimbusds.jwt.SignedJWT;
+import no.helseid.concurrent.DaemonThreadFactory;
+import no.helseid.concurrent.TimingWheel;
+import no.helseid.exceptions.HelseIdException;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.function.LongSupplier;
+
+import static no.helseid.clientassertion.ClientAssertion.TOKEN_LIFETIME_IN_MILLISECONDS;
+
+/**
+ * A pool of client assertions signed ahead of the token requests they are needed for, so a token request does not
+ * wait for the signing of its assertion. The user of the pool announces when the next token request of a template is
+ * due, typically at the refresh-ahead point or the expiry of the cached token, and the assertions are signed in the
+ * background just before that point. Assertions which are not taken before they come too close to their expiry are
+ * discarded without being signed again, so the pool only signs when a token request is expected.
+ * If the pool of a template is empty, the assertion is signed on the calling thread.
+ */
+public final class ClientAssertionPool {
+  /**
+   * The number of assertions signed for each announced token request, unless configured otherwise
+   */
+  public static final int DEFAULT_SIZE = 1;
+  /**
+   * The lifetime an assertion must have left to be handed out, unless configured otherwise
+   */
+  public static final long DEFAULT_MINIMUM_REMAINING_LIFETIME_IN_MILLISECONDS = 2_000L;
+  // The expiration time of an assertion is truncated to whole seconds, so up to a second of its lifetime may be lost
+  private static final long LIFETIME_TRUNCATION_IN_MILLISECONDS = 1_000L;
+  // Assertions are signed this long before they are needed, leaving time to sign them without shortening their use
+  private static final long SIGNING_LEAD_IN_MILLISECONDS = 500L;
+
+  private final int size;
+  private final long minimumRemainingLifetimeInMilliseconds;
+  private final Executor signingExecutor;
+  private final LongSupplier clock;
+  private final ConcurrentHashMap<ClientAssertionTemplate, Slot> slots = new ConcurrentHashMap<>();
+
+  private ClientAssertionPool(int size, long minimumRemainingLifetimeInMilliseconds, Executor signingExecutor, LongSupplier clock) {
+    this.size = size;
+    this.minimumRemainingLifetimeInMilliseconds = minimumRemainingLifetimeInMilliseconds;
+    this.signingExecutor = signingExecutor;
+    this.clock = clock;
+  }
+
+  /**
+   * Announce the next token request of a template, signing its assertions in the background just before it is due.
+   * A later announcement on the same template replaces a pending one
+   *
+   * @param template the template the assertions are created from
+   * @param neededAtEpochMilliseconds the time the token request is due, represented in milliseconds since epoch
+   */
+  public void prepare(ClientAssertionTemplate template, long neededAtEpochMilliseconds) {
+    slots.computeIfAbsent(template, Slot::new).scheduleSigning(neededAtEpochMilliseconds - SIGNING_LEAD_IN_MILLISECONDS);
+  }
+
+  /**
+   * Take an unused client assertion of a template, signing it on the calling thread if none is available
+   *
+   * @param template the template the assertion is created from
+   * @return a signed client assertion with at least the minimum remaining lifetime
+   * @throws HelseIdException Is thrown if signing on the calling thread fails
+   */
+  public SignedJWT take(ClientAssertionTemplate template) throws HelseIdException {
+    Slot slot = slots.get(template);
+    if (slot != null) {
+      long currentTimeEpochMilliseconds = clock.getAsLong();
+      PooledAssertion pooledAssertion;
+      while ((pooledAssertion = slot.assertions.poll()) != null) {
+        if (pooledAssertion.usableUntilEpochMilliseconds() > currentTimeEpochMilliseconds) {
+          return pooledAssertion.signedJWT();
+        }
+      }
+    }
+    return template.createSignedJWT();
+  }
+
+  /**
+   * Count the assertions of a template kept in the pool, including those too close to their expiry to be handed out
+   *
+   * @param template the template of the assertions
+   * @return the number of assertions kept for the template
+   */
+  int available(ClientAssertionTemplate template) {
+    Slot slot = slots.get(template);
+    return slot == null ? 0 : slot.assertions.size();
+  }
+
+  /**
+   * The signed assertions of a template, and the timers of their signing and discarding
+   */
+  private final class Slot {
+    private final ClientAssertionTemplate template;
+    private final ConcurrentLinkedQueue<PooledAssertion> assertions = new ConcurrentLinkedQueue<>();
+    private volatile TimingWheel.Timeout signingTimer;
+    private volatile TimingWheel.Timeout discardTimer;
+
+    private Slot(ClientAssertionTemplate template) {
+      this.template = template;
+    }
+
+    /**
+     * Sign the assertions of the template at a point in time, replacing the pending signing
+     *
+     * @param signAtEpochMilliseconds the time to sign at, represented in milliseconds since epoch
+     */
+    private void scheduleSigning(long signAtEpochMilliseconds) {
+      TimingWheel.Timeout previousTimer = signingTimer;
+      if (previousTimer != null) {
+        previousTimer.cancel();
+      }
+      if (signAtEpochMilliseconds <= clock.getAsLong()) {
+        signingTimer = null;
+        sign();
+      } else {
+        signingTimer = TimingWheel.shared().schedule(this::sign, signAtEpochMilliseconds);
+      }
+    }
+
+    /**
+     * Hand the signing to the signing executor, keeping it off the thread of the timing wheel
+     */
+    private void sign() {
+      try {
+        signingExecutor.execute(this::fill);
+      } catch (RuntimeException e) {
+        // The token request signs its assertion on the calling thread
+      }
+    }
+
+    private void fill() {
+      signingTimer = null;
+      try {
+        discardStale(clock.getAsLong());
+        while (assertions.size() < size) {
+          long signedAtEpochMilliseconds = clock.getAsLong();
+          SignedJWT signedJWT = template.createSignedJWT();
+          long expirationEpochMilliseconds = (signedAtEpochMilliseconds + TOKEN_LIFETIME_IN_MILLISECONDS) / 1000 * 1000;
+          assertions.add(new PooledAssertion(signedJWT, expirationEpochMilliseconds - minimumRemainingLifetimeInMilliseconds));
+        }
+      } catch (HelseIdException | RuntimeException e) {
+        // The token request signs its assertion on the calling thread and surfaces the failure
+      }
+      scheduleDiscard();
+    }
+
+    /**
+     * Revisit the pool when its oldest assertion can no longer be handed out
+     */
+    private void scheduleDiscard() {
+      PooledAssertion oldest = assertions.peek();
+      if (oldest == null) {
+        return;
+      }
+      TimingWheel.Timeout previousTimer = discardTimer;
+      if (previousTimer != null) {
+        previousTimer.cancel();
+      }
+      discardTimer = TimingWheel.shared().schedule(this::discard, oldest.usableUntilEpochMilliseconds());
+    }
+
+    /**
+     * Discard the assertions which were not taken in time, and drop the template from the pool unless a signing is pending
+     */
+    private void discard() {
+      discardStale(clock.getAsLong());
+      if (!assertions.isEmpty()) {
+        scheduleDiscard();
+      } else if (signingTimer == null) {
+        slots.remove(template, this);
+      }
+    }
+
+    private void discardStale(long currentTimeEpochMilliseconds) {
+      PooledAssertion oldest;
+      while ((oldest = assertions.peek()) != null && oldest.usableUntilEpochMilliseconds() <= currentTimeEpochMilliseconds) {
+        assertions.remove(oldest);
+      }
+    }
+  }
+
+  /**
+   * A signed assertion waiting in the pool
+   *
+   * @param signedJWT the signed client assertion
+   * @param usableUntilEpochMilliseconds the time after which the assertion has less than the minimum remaining lifetime
+   */
+  private record PooledAssertion(SignedJWT signedJWT, long usableUntilEpochMilliseconds) {
+  }
+
+  /**
+   * Holder of the default signing executor, only started if a pool is built without a custom executor
+   */
+  private static final class DefaultSigningExecutor {
+    private static final Executor INSTANCE = Executors.newSingleThreadExecutor(new DaemonThreadFactory("helseid-assertion-signer"));
+  }
+
+  /**
+   * Builder class for ClientAssertionPool
+   */
+  public static class Builder {
+    private int size = DEFAULT_SIZE;
+    private long minimumRemainingLifetimeInMilliseconds = DEFAULT_MINIMUM_REMAINING_LIFETIME_IN_MILLISECONDS;
+    private Executor signingExecutor;
+    private LongSupplier clock = System::currentTimeMillis;
+
+    /**
+     * Create a new Builder instance for ClientAssertionPool
+     */
+    public Builder() {
+    }
+
+    /**
+     * Assign the number of assertions signed for each announced token request
+     *
+     * @param size the number of assertions, at least one
+     * @return the current builder
+     */
+    public Builder withSize(int size) {
+      this.size = size;
+      return this;
+    }
+
+    /**
+     * Assign the lifetime an assertion must have left to be handed out, covering the time to reach HelseID and clock skew
+     *
+     * @param minimumRemainingLifetimeInMilliseconds the remaining lifetime in milliseconds
+     * @return the current builder
+     */
+    public Builder withMinimumRemainingLifetime(long minimumRemainingLifetimeInMilliseconds) {
+      this.minimumRemainingLifetimeInMilliseconds = minimumRemainingLifetimeInMilliseconds;
+      return this;
+    }
+
+    /**
+     * Assign the executor signing assertions in the background, a single daemon thread unless configured otherwise
+     *
+     * @param signingExecutor the executor signing assertions
+     * @return the current builder
+     */
+    public Builder setCustomSigningExecutor(Executor signingExecutor) {
+      this.signingExecutor = signingExecutor;
+      return this;
+    }
+
+    /**
+     * Assign the clock deciding when an assertion is too close to its expiry, the system clock unless configured otherwise
+     *
+     * @param clock the current time, represented in milliseconds since epoch
+     * @return the current builder
+     */
+    Builder setCustomClock(LongSupplier clock) {
+      this.clock = clock;
+      return this;
+    }
+
+    /**
+     * Process the provided values into a ClientAssertionPool object
+     *
+     * @return a client assertion pool
+     * @throws HelseIdException when the builder is misconfigured
+     */
+    public ClientAssertionPool build() throws HelseIdException {
+      if (size <= 0) {
+        throw new HelseIdException("The pool size must be positive");
+      }
+      if (minimumRemainingLifetimeInMilliseconds < 0
+          || minimumRemainingLifetimeInMilliseconds + 2 * LIFETIME_TRUNCATION_IN_MILLISECONDS > TOKEN_LIFETIME_IN_MILLISECONDS) {
+        throw new HelseIdException("The minimum remaining lifetime must leave at least a second to use an assertion");
+      }
+
+      return new ClientAssertionPool(
+          size,
+          minimumRemainingLifetimeInMilliseconds,
+          signingExecutor != null ? signingExecutor : DefaultSigningExecutor.INSTANCE,
+          clock
+      );
+    }
+  }
+}
@@ -0,0 +1,144 @@
+package no.helseid.clientassertion;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.util.Base64URL;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import no.helseid.configuration.Client;
+import no.helseid.exceptions.HelseIdException;
+import no.helseid.signing.KeyReference;
+import no.helseid.signing.SigningMaterial;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.text.ParseException;
+import java.util.Base64;
+
+import static com.nimbusds.oauth2.sdk.dpop.DPoPProofFactory.MINIMAL_JTI_BYTE_LENGTH;
+import static no.helseid.clientassertion.ClientAssertion.CLAIM_ASSERTION_DETAILS;
+import static no.helseid.clientassertion.ClientAssertion.CLIENT_AUTHENTICATION_JWT;
+import static no.helseid.clientassertion.ClientAssertion.TOKEN_LIFETIME_IN_MILLISECONDS;
+
+/**
+ * A client assertion compiled for an audience, a client and its assertion details.
+ * The claims which never change are serialized once, and the encoded header is kept per signing key,
+ * so creating an assertion only serializes the id and timestamps before signing
+ */
+public final class ClientAssertionTemplate {
+  private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+  private static final Base64.Encoder BASE64_URL_ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+  private final String audience;
+  private final KeyReference keyReference;
+  private final String staticClaims;
+  private volatile PreparedHeader preparedHeader;
+
+  private ClientAssertionTemplate(String audience, KeyReference keyReference, String staticClaims) {
+    this.audience = audience;
+    this.keyReference = keyReference;
+    this.staticClaims = staticClaims;
+  }
+
+  /**
+   * Compile a client assertion representing the client and the provided assertion details
+   *
+   * @param audience         the audience for the client assertion jwt
+   * @param client           the relevant client
+   * @param assertionDetails Containing the requested assertion details, null if none
+   * @return a template creating signed client assertions
+   * @throws HelseIdException Is thrown if the client has no key reference
+   */
+  public static ClientAssertionTemplate compile(String audience, Client client, Object assertionDetails) throws HelseIdException {
+    if (client.keyReference() == null) {
+      throw new HelseIdException("Missing key reference for client assertion");
+    }
+
+    JWTClaimsSet.Builder builder = new JWTClaimsSet.Builder()
+        .audience(audience)
+        .subject(client.clientId())
+        .issuer(client.clientId());
+
+    if (assertionDetails != null) {
+      builder.claim(CLAIM_ASSERTION_DETAILS, assertionDetails);
+    }
+
+    // The members of the serialized object, spliced into the payload after the dynamic claims
+    String serializedClaims = builder.build().toString();
+    return new ClientAssertionTemplate(audience, client.keyReference(), serializedClaims.substring(1, serializedClaims.length() - 1));
+  }
+
+  /**
+   * Check if the template was compiled for an audience
+   *
+   * @param audience the audience for the client assertion jwt
+   * @return true if the assertions of the template are issued to the audience
+   */
+  public boolean isCompiledFor(String audience) {
+    return this.audience.equals(audience);
+  }
+
+  /**
+   * Create a signed client assertion with a new id, issued now and valid for TOKEN_LIFETIME_IN_MILLISECONDS
+   *
+   * @return A signed client assertion
+   * @throws HelseIdException Is thrown if signing fails
+   */
+  public SignedJWT createSignedJWT() throws HelseIdException {
+    PreparedHeader header = prepareHeader();
+
+    long currentTimeEpochMilliseconds = System.currentTimeMillis();
+    long issuedAtEpochSeconds = currentTimeEpochMilliseconds / 1000;
+    long expirationEpochSeconds = (currentTimeEpochMilliseconds + TOKEN_LIFETIME_IN_MILLISECONDS) / 1000;
+
+    byte[] jti = new byte[MINIMAL_JTI_BYTE_LENGTH];
+    SECURE_RANDOM.nextBytes(jti);
+
+    String payload = new StringBuilder(staticClaims.length() + 96)
+        .append("{\"jti\":\"").append(BASE64_URL_ENCODER.encodeToString(jti))
+        .append("\",\"iat\":").append(issuedAtEpochSeconds)
+        .append(",\"nbf\":").append(issuedAtEpochSeconds)
+        .append(",\"exp\":").append(expirationEpochSeconds)
+        .append(',').append(staticClaims)
+        .append('}')
+        .toString();
+    String encodedPayload = BASE64_URL_ENCODER.encodeToString(payload.getBytes(StandardCharsets.UTF_8));
+    String signingInput = header.encodedHeader() + '.' + encodedPayload;
+
+    try {
+      Base64URL signature = header.signingMaterial().getSigner().sign(header.header(), signingInput.getBytes(StandardCharsets.US_ASCII));
+      return new SignedJWT(new Base64URL(header.encodedHeader()), new Base64URL(encodedPayload), signature);
+    } catch (JOSEException e) {
+      throw new HelseIdException("An error occurred during signing the client assertion", e);
+    } catch (ParseException e) {
+      throw new HelseIdException("The signed client assertion could not be assembled", e);
+    }
+  }
+
+  /**
+   * Access the header of the current signing material, prepared again only when the referenced key changes
+   *
+   * @return the header and its encoding
+   * @throws HelseIdException if the signing material can not be prepared
+   */
+  private PreparedHeader prepareHeader() throws HelseIdException {
+    PreparedHeader header = preparedHeader;
+    if (header == null || !header.signingMaterial().isPreparedFor(keyReference)) {
+      SigningMaterial signingMaterial = SigningMaterial.of(keyReference);
+      JWSHeader jwsHeader = signingMaterial.getHeader(CLIENT_AUTHENTICATION_JWT);
+      header = new PreparedHeader(signingMaterial, jwsHeader, jwsHeader.toBase64URL().toString());
+      preparedHeader = header;
+    }
+    return header;
+  }
+
+  /**
+   * The header of a signing key and its encoding
+   *
+   * @param signingMaterial the signing material the header belongs to
+   * @param header the JWS header
+   * @param encodedHeader the Base64URL encoding of the header
+   */
+  private record PreparedHeader(SigningMaterial signingMaterial, JWSHeader header, String encodedHeader) {
+  }
+}
@@ -0,0 +1,31 @@
+package no.helseid.dpop;
+
+import java.net.URI;
+
+/**
+ * Values of the claims of a DPoP proof, shared by the proof creators
+ */
+final class DPoPClaims {
+  private DPoPClaims() {
+  }
+
+  /**
+   * The htu claim is the request URL without query and fragment
+   *
+   * @param htu the request URL
+   * @return the request URL without query and fragment
+   */
+  static String htu(URI htu) {
+    String url = htu.toString();
+    int end = url.length();
+    int queryStart = url.indexOf('?');
+    if (queryStart >= 0) {
+      end = queryStart;
+    }
+    int fragmentStart = url.indexOf('#');
+    if (fragmentStart >= 0 && fragmentStart < end) {
+      end = fragmentStart;
+    }
+    return url.substring(0, end);
+  }
+}
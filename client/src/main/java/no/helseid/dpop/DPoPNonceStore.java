@@ -0,0 +1,49 @@
+package no.helseid.dpop;
+
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the latest DPoP-Nonce provided by each endpoint.
+ * A remembered nonce is included in the first attempt of a request, avoiding the round trip asking for a nonce.
+ */
+public final class DPoPNonceStore {
+  private final ConcurrentHashMap<URI, String> nonceMap = new ConcurrentHashMap<>();
+
+  /**
+   * Create a new instance of DPoPNonceStore
+   */
+  public DPoPNonceStore() {
+  }
+
+  /**
+   * Get the latest nonce provided by an endpoint
+   *
+   * @param endpoint the endpoint providing the nonce
+   * @return the latest nonce, null if no nonce is provided by the endpoint
+   */
+  public String get(URI endpoint) {
+    return nonceMap.get(endpoint);
+  }
+
+  /**
+   * Remember a nonce provided by an endpoint, replacing any previous nonce
+   *
+   * @param endpoint the endpoint providing the nonce
+   * @param nonce the nonce, ignored if null
+   */
+  public void put(URI endpoint, String nonce) {
+    if (nonce != null) {
+      nonceMap.put(endpoint, nonce);
+    }
+  }
+
+  /**
+   * Forget the nonce provided by an endpoint
+   *
+   * @param endpoint the endpoint providing the nonce
+   */
+  public void remove(URI endpoint) {
+    nonceMap.remove(endpoint);
+  }
+}
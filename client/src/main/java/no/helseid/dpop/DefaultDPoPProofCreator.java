@@ -1,30 +1,29 @@
 package no.helseid.dpop;
 
 import com.nimbusds.jose.JOSEException;
-import com.nimbusds.jose.JWSAlgorithm;
-import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.JWSHeader;
 import com.nimbusds.jose.util.Base64URL;
+import com.nimbusds.jwt.JWTClaimsSet;
 import com.nimbusds.jwt.SignedJWT;
 import com.nimbusds.oauth2.sdk.dpop.DPoPProofFactory;
-import com.nimbusds.oauth2.sdk.dpop.DefaultDPoPProofFactory;
-import com.nimbusds.oauth2.sdk.dpop.JWKThumbprintConfirmation;
-import com.nimbusds.oauth2.sdk.token.DPoPAccessToken;
-import com.nimbusds.openid.connect.sdk.Nonce;
+import com.nimbusds.oauth2.sdk.id.JWTID;
 import no.helseid.exceptions.HelseIdException;
 import no.helseid.signing.KeyReference;
+import no.helseid.signing.SigningMaterial;
 
 import java.net.URI;
-import java.text.ParseException;
-
-import static no.helseid.signing.Util.createJWKFromKeyReference;
+import java.util.Date;
 
 /**
- * Default implementation of a DPoPProofCreator
+ * Default implementation of a DPoPProofCreator.
+ * The binding of an access token to the key, verified thru the thumbprint in its cnf claim, is remembered together with
+ * the hash of the token for the ath claim, so proofs for a known access token are created without parsing or hashing the token
  */
 public class DefaultDPoPProofCreator implements DPoPProofCreator {
-  private final DPoPProofFactory factory;
+  private final SigningMaterial signingMaterial;
+  private final JWSHeader header;
   private final String keyId;
-  private final Base64URL thumbprint;
+  private final TokenBindings tokenBindings;
 
   /**
    * Create a default implementation of the DPoPProofCreator
@@ -32,14 +31,13 @@ public class DefaultDPoPProofCreator implements DPoPProofCreator {
    * @throws HelseIdException  if unable to create a creator
    */
   public DefaultDPoPProofCreator(KeyReference keyReference) throws HelseIdException {
-    try {
-      JWK jwk = createJWKFromKeyReference(keyReference);
-      this.factory = new DefaultDPoPProofFactory(jwk, JWSAlgorithm.parse(jwk.getAlgorithm().getName()));
-      this.keyId = jwk.getKeyID();
-      this.thumbprint = jwk.computeThumbprint();
-    } catch (JOSEException e) {
-      throw new HelseIdException("Failed to create factory", e);
-    }
+    this.signingMaterial = SigningMaterial.of(keyReference);
+    this.header = new JWSHeader.Builder(signingMaterial.getJWSAlgorithm())
+        .type(DPoPProofFactory.TYPE)
+        .jwk(signingMaterial.getJWK().toPublicJWK())
+        .build();
+    this.keyId = signingMaterial.getKeyId();
+    this.tokenBindings = new TokenBindings(signingMaterial.getThumbprint());
   }
 
   /**
@@ -79,27 +77,38 @@ public class DefaultDPoPProofCreator implements DPoPProofCreator {
    * @throws HelseIdException if unable to create a DPoP-Proof, usually the thumbprint in the access token does not match the signing key
    */
   private String createDPoPProof(URI htu, HttpMethod htm, String nonce, String accessToken) throws HelseIdException {
-    if (accessToken != null) {
-      try {
-        Base64URL accessTokenJwkThumbprint = JWKThumbprintConfirmation.parse(SignedJWT.parse(accessToken).getJWTClaimsSet()).getValue();
-
-        if (!thumbprint.equals(accessTokenJwkThumbprint)) {
-          throw new HelseIdException("The JWK thumbprint in the access token does not match the thumbprint of the private key JWK");
-        }
+    Base64URL ath = accessToken == null ? null : tokenBindings.athOf(accessToken);
 
-      } catch (ParseException e) {
-        throw new HelseIdException("Unable to parse access token", e);
-      }
+    JWTClaimsSet.Builder claims = new JWTClaimsSet.Builder()
+        .jwtID(new JWTID(DPoPProofFactory.MINIMAL_JTI_BYTE_LENGTH).getValue())
+        .claim("htm", htm.value)
+        .claim("htu", DPoPClaims.htu(htu))
+        .issueTime(new Date(System.currentTimeMillis() / 1000 * 1000));
+    if (ath != null) {
+      claims.claim("ath", ath.toString());
+    }
+    if (nonce != null) {
+      claims.claim("nonce", nonce);
     }
 
     try {
-      var dPoPAccessToken = accessToken == null ? null : new DPoPAccessToken(accessToken);
-      return factory.createDPoPJWT(htm.value, htu, dPoPAccessToken, Nonce.parse(nonce)).serialize();
+      SignedJWT proof = new SignedJWT(header, claims.build());
+      proof.sign(signingMaterial.getSigner());
+      return proof.serialize();
     } catch (JOSEException e) {
       throw new HelseIdException("Unable to create DPoP proof", e);
     }
   }
 
+  /**
+   * Number of access tokens whose binding is currently remembered
+   *
+   * @return the number of remembered token bindings
+   */
+  int rememberedTokenBindings() {
+    return tokenBindings.size();
+  }
+
   @Override
   public String getKeyId() {
     return keyId;
@@ -0,0 +1,150 @@
+package no.helseid.dpop;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.JWSSigner;
+import com.nimbusds.jose.util.Base64URL;
+import com.nimbusds.oauth2.sdk.dpop.DPoPProofFactory;
+import no.helseid.exceptions.HelseIdException;
+import no.helseid.signing.KeyReference;
+import no.helseid.signing.SigningMaterial;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static com.nimbusds.oauth2.sdk.dpop.DPoPProofFactory.MINIMAL_JTI_BYTE_LENGTH;
+
+/**
+ * A DPoPProofCreator for a high rate of proofs, creating the same claims as the DefaultDPoPProofCreator.
+ * The header, including the public JWK, is encoded once per creator, and the payload is written directly as compact JSON,
+ * leaving the id of the proof, its timestamp and the signature to each proof. The ids are drawn from a small, fixed set of
+ * random generators shared by all creators, so concurrent proofs seldom contend on the same generator.
+ * Use it thru {@code ClientCredentials.Builder.setCustomDPoPProofCreator}
+ */
+public final class PreparedDPoPProofCreator implements DPoPProofCreator {
+  private static final Base64.Encoder BASE64_URL_ENCODER = Base64.getUrlEncoder().withoutPadding();
+  private static final SecureRandom[] JTI_RANDOMS = createJtiRandoms();
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private final JWSSigner signer;
+  private final JWSHeader header;
+  private final String encodedHeader;
+  private final String keyId;
+  private final TokenBindings tokenBindings;
+
+  /**
+   * Create a DPoPProofCreator with the header of the key encoded once
+   * @param keyReference a key reference
+   * @throws HelseIdException if unable to create a creator
+   */
+  public PreparedDPoPProofCreator(KeyReference keyReference) throws HelseIdException {
+    SigningMaterial signingMaterial = SigningMaterial.of(keyReference);
+    this.signer = signingMaterial.getSigner();
+    this.header = new JWSHeader.Builder(signingMaterial.getJWSAlgorithm())
+        .type(DPoPProofFactory.TYPE)
+        .jwk(signingMaterial.getJWK().toPublicJWK())
+        .build();
+    this.encodedHeader = header.toBase64URL().toString();
+    this.keyId = signingMaterial.getKeyId();
+    this.tokenBindings = new TokenBindings(signingMaterial.getThumbprint());
+  }
+
+  @Override
+  public String createDPoPProofWithNonce(URI htu, HttpMethod htm, String nonce) throws HelseIdException {
+    return createDPoPProof(htu, htm, nonce, null);
+  }
+
+  @Override
+  public String createDPoPProof(URI htu, HttpMethod htm, String accessToken) throws HelseIdException {
+    return createDPoPProof(htu, htm, null, accessToken);
+  }
+
+  @Override
+  public String getKeyId() {
+    return keyId;
+  }
+
+  /**
+   * Creating a DPoP-Proof
+   *
+   * @param htu   - Request URL
+   * @param htm   - Request Method
+   * @param nonce - Nonce provided by HelseId
+   * @param accessToken - DPoP Access token bound by a private key
+   * @return string formatted DPoP-Proof
+   * @throws HelseIdException if unable to create a DPoP-Proof, usually the thumbprint in the access token does not match the signing key
+   */
+  private String createDPoPProof(URI htu, HttpMethod htm, String nonce, String accessToken) throws HelseIdException {
+    Base64URL ath = accessToken == null ? null : tokenBindings.athOf(accessToken);
+
+    byte[] jti = new byte[MINIMAL_JTI_BYTE_LENGTH];
+    JTI_RANDOMS[ThreadLocalRandom.current().nextInt(JTI_RANDOMS.length)].nextBytes(jti);
+
+    StringBuilder payload = new StringBuilder(160 + (nonce == null ? 0 : nonce.length()))
+        .append("{\"jti\":\"").append(BASE64_URL_ENCODER.encodeToString(jti))
+        .append("\",\"htm\":");
+    appendJsonString(payload, htm.value);
+    payload.append(",\"htu\":");
+    appendJsonString(payload, DPoPClaims.htu(htu));
+    payload.append(",\"iat\":").append(System.currentTimeMillis() / 1000);
+    if (ath != null) {
+      payload.append(",\"ath\":\"").append(ath).append('"');
+    }
+    if (nonce != null) {
+      payload.append(",\"nonce\":");
+      appendJsonString(payload, nonce);
+    }
+    payload.append('}');
+
+    String signingInput = encodedHeader + '.' + BASE64_URL_ENCODER.encodeToString(payload.toString().getBytes(StandardCharsets.UTF_8));
+    try {
+      Base64URL signature = signer.sign(header, signingInput.getBytes(StandardCharsets.US_ASCII));
+      return signingInput + '.' + signature;
+    } catch (JOSEException e) {
+      throw new HelseIdException("Unable to create DPoP proof", e);
+    }
+  }
+
+  /**
+   * Append a value as a JSON string, escaping quotes, backslashes and control characters
+   *
+   * @param builder the JSON being written
+   * @param value the value of the string
+   */
+  private static void appendJsonString(StringBuilder builder, String value) {
+    builder.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        builder.append('\\').append(c);
+      } else if (c < 0x20) {
+        builder.append("\\u00").append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xf]);
+      } else {
+        builder.append(c);
+      }
+    }
+    builder.append('"');
+  }
+
+  /**
+   * Create one seeded generator per processor, at most 16, since a generator is locked while drawing from it
+   *
+   * @return the generators of the proof ids
+   */
+  private static SecureRandom[] createJtiRandoms() {
+    SecureRandom[] randoms = new SecureRandom[Math.min(Runtime.getRuntime().availableProcessors(), 16)];
+    for (int i = 0; i < randoms.length; i++) {
+      try {
+        // Instances of DRBG are locked individually, unlike the default generator which shares the native source
+        randoms[i] = SecureRandom.getInstance("DRBG");
+      } catch (NoSuchAlgorithmException e) {
+        randoms[i] = new SecureRandom();
+      }
+    }
+    return randoms;
+  }
+}
@@ -0,0 +1,92 @@
+package no.helseid.dpop;
+
+import com.nimbusds.jose.util.Base64URL;
+import com.nimbusds.jwt.SignedJWT;
+import com.nimbusds.oauth2.sdk.dpop.JWKThumbprintConfirmation;
+import no.helseid.exceptions.HelseIdException;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The verified bindings of the most recently used access tokens to a key, with the hash of each token for the ath claim.
+ * An access token is parsed and hashed only the first time it is seen
+ */
+final class TokenBindings {
+  /**
+   * The number of access tokens whose binding is remembered
+   */
+  static final int MAXIMUM_TOKEN_BINDINGS = 64;
+  private final Base64URL thumbprint;
+  private final ConcurrentHashMap<String, TokenBinding> tokenBindings = new ConcurrentHashMap<>();
+
+  /**
+   * @param thumbprint the SHA-256 JWK thumbprint of the key the access tokens must be bound to
+   */
+  TokenBindings(Base64URL thumbprint) {
+    this.thumbprint = thumbprint;
+  }
+
+  /**
+   * Access the hash of an access token bound to the key
+   *
+   * @param accessToken the access token
+   * @return the base64url encoded SHA-256 hash of the access token
+   * @throws HelseIdException if the access token can not be parsed, or is not bound to the key
+   */
+  Base64URL athOf(String accessToken) throws HelseIdException {
+    TokenBinding tokenBinding = tokenBindings.get(accessToken);
+    if (tokenBinding == null) {
+      tokenBinding = bind(accessToken);
+    }
+    if (!tokenBinding.boundToKey()) {
+      throw new HelseIdException("The JWK thumbprint in the access token does not match the thumbprint of the private key JWK");
+    }
+    return tokenBinding.ath();
+  }
+
+  /**
+   * Number of access tokens whose binding is currently remembered
+   *
+   * @return the number of remembered token bindings
+   */
+  int size() {
+    return tokenBindings.size();
+  }
+
+  private TokenBinding bind(String accessToken) throws HelseIdException {
+    TokenBinding tokenBinding;
+    try {
+      JWKThumbprintConfirmation confirmation = JWKThumbprintConfirmation.parse(SignedJWT.parse(accessToken).getJWTClaimsSet());
+      byte[] hash = MessageDigest.getInstance("SHA-256").digest(accessToken.getBytes(StandardCharsets.US_ASCII));
+      tokenBinding = new TokenBinding(confirmation != null && thumbprint.equals(confirmation.getValue()), Base64URL.encode(hash));
+    } catch (ParseException e) {
+      throw new HelseIdException("Unable to parse access token", e);
+    } catch (NoSuchAlgorithmException e) {
+      throw new HelseIdException("Unable to hash access token", e);
+    }
+
+    if (tokenBindings.size() >= MAXIMUM_TOKEN_BINDINGS) {
+      // Tokens are replaced as they expire, so any remembered token is as likely as another to be stale
+      Iterator<String> iterator = tokenBindings.keySet().iterator();
+      if (iterator.hasNext()) {
+        tokenBindings.remove(iterator.next());
+      }
+    }
+    tokenBindings.put(accessToken, tokenBinding);
+    return tokenBinding;
+  }
+
+  /**
+   * The verified binding of an access token to the key
+   *
+   * @param boundToKey true if the thumbprint in the cnf claim of the token matches the key
+   * @param ath the base64url encoded SHA-256 hash of the access token
+   */
+  private record TokenBinding(boolean boundToKey, Base64URL ath) {
+  }
+}
@@ -1,5 +1,6 @@
 package no.helseid.endpoints.token;
 
+import java.time.Instant;
 import java.util.Set;
 
 /**
@@ -10,6 +11,7 @@ public final class AccessTokenResponse extends TokenResponse {
   private final String tokenType;
   private final long expiresInSeconds;
   private final Set<String> scope;
+  private final Instant serverDate;
 
   /**
    * Create a representation of a successful response from the token-endpoint in HelseID
@@ -28,12 +30,36 @@ public final class AccessTokenResponse extends TokenResponse {
       Set<String> scope,
       String rawResponseBody,
       int statusCode
+  ) {
+    this(accessToken, tokenType, expiresInSeconds, scope, rawResponseBody, statusCode, null);
+  }
+
+  /**
+   * Create a representation of a successful response from the token-endpoint in HelseID, including the time of the response
+   *
+   * @param accessToken the access token returned from HelseID
+   * @param tokenType the token type, case-insensitive
+   * @param expiresInSeconds the number of seconds until the token expires
+   * @param scope the scopes included in the returned token
+   * @param rawResponseBody the raw response body
+   * @param statusCode the status code of the response
+   * @param serverDate the time of the response according to the Date header of HelseID, null if unknown
+   */
+  public AccessTokenResponse(
+      String accessToken,
+      String tokenType,
+      long expiresInSeconds,
+      Set<String> scope,
+      String rawResponseBody,
+      int statusCode,
+      Instant serverDate
   ) {
     super(rawResponseBody, statusCode);
     this.accessToken = accessToken;
     this.tokenType = tokenType;
     this.expiresInSeconds = expiresInSeconds;
     this.scope = scope;
+    this.serverDate = serverDate;
   }
 
   /**
@@ -68,4 +94,13 @@ public final class AccessTokenResponse extends TokenResponse {
   public Set<String> scope() {
     return scope;
   }
-}
\ No newline at end of file
+
+  /**
+   * Access the time of the response according to the clock of HelseID, with a resolution of seconds.
+   * Only known for responses received from HelseID, it is not retained by the codecs
+   * @return the time of the response according to the Date header, null if unknown
+   */
+  public Instant serverDate() {
+    return serverDate;
+  }
+}
@@ -0,0 +1,31 @@
+package no.helseid.endpoints.token;
+
+import no.helseid.cache.ValueCodec;
+import no.helseid.exceptions.HelseIdException;
+
+/**
+ * Converts access token responses to and from bytes, used when tokens are cached outside the heap.
+ * The encoding is the versioned, compact encoding of TokenResponseCodec
+ */
+public final class AccessTokenResponseCodec implements ValueCodec<AccessTokenResponse> {
+  private final TokenResponseCodec tokenResponseCodec = new TokenResponseCodec();
+
+  /**
+   * Create a new instance of AccessTokenResponseCodec
+   */
+  public AccessTokenResponseCodec() {
+  }
+
+  @Override
+  public byte[] encode(AccessTokenResponse accessTokenResponse) throws HelseIdException {
+    return tokenResponseCodec.encode(accessTokenResponse);
+  }
+
+  @Override
+  public AccessTokenResponse decode(byte[] bytes) throws HelseIdException {
+    if (tokenResponseCodec.decode(bytes) instanceof AccessTokenResponse accessTokenResponse) {
+      return accessTokenResponse;
+    }
+    throw new HelseIdException("The cached token response is not an access token response");
+  }
+}
@@ -0,0 +1,122 @@
+package no.helseid.endpoints.token;
+
+import no.helseid.exceptions.HelseIdException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A minimal binary encoding of variable length integers and length prefixed UTF-8 strings
+ */
+final class CompactBinary {
+
+  private CompactBinary() {
+  }
+
+  /**
+   * Writes values to a growing byte array
+   */
+  static final class Writer {
+    private byte[] buffer;
+    private int size;
+
+    Writer(int initialCapacity) {
+      this.buffer = new byte[Math.max(16, initialCapacity)];
+    }
+
+    Writer writeByte(int value) {
+      ensureCapacity(1);
+      buffer[size++] = (byte) value;
+      return this;
+    }
+
+    /**
+     * Write an unsigned value using seven bits per byte, small values occupy a single byte
+     */
+    Writer writeVarLong(long value) {
+      ensureCapacity(10);
+      while ((value & ~0x7FL) != 0) {
+        buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      buffer[size++] = (byte) value;
+      return this;
+    }
+
+    Writer writeString(String value) {
+      return writeBytes(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    Writer writeBytes(byte[] bytes) {
+      writeVarLong(bytes.length);
+      ensureCapacity(bytes.length);
+      System.arraycopy(bytes, 0, buffer, size, bytes.length);
+      size += bytes.length;
+      return this;
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(buffer, size);
+    }
+
+    private void ensureCapacity(int additional) {
+      if (size + additional > buffer.length) {
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + additional));
+      }
+    }
+  }
+
+  /**
+   * Reads values from a byte array, failing on truncated or malformed input
+   */
+  static final class Reader {
+    private final byte[] buffer;
+    private int position;
+
+    Reader(byte[] buffer) {
+      this.buffer = buffer;
+    }
+
+    int readByte() throws HelseIdException {
+      if (position >= buffer.length) {
+        throw truncated();
+      }
+      return buffer[position++] & 0xFF;
+    }
+
+    long readVarLong() throws HelseIdException {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        int current = readByte();
+        value |= (long) (current & 0x7F) << shift;
+        if ((current & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new HelseIdException("Malformed variable length integer");
+    }
+
+    int readLength() throws HelseIdException {
+      long length = readVarLong();
+      if (length < 0 || length > buffer.length - position) {
+        throw truncated();
+      }
+      return (int) length;
+    }
+
+    String readString() throws HelseIdException {
+      int length = readLength();
+      String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+      position += length;
+      return value;
+    }
+
+    boolean hasRemaining() {
+      return position < buffer.length;
+    }
+
+    private static HelseIdException truncated() {
+      return new HelseIdException("Truncated value");
+    }
+  }
+}
@@ -0,0 +1,209 @@
+package no.helseid.endpoints.token;
+
+import no.helseid.configuration.Client;
+import no.helseid.configuration.Tenancy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * An immutable key identifying a cached token response.
+ * The key is composed of the client, the key used to sign the client assertion and the details of the token request,
+ * with the scopes in canonical order so the same request always results in the same key.
+ * The hash code and the string representation are computed once, so a key held by its user is looked up without allocation.
+ */
+public final class TokenCacheKey {
+  private static final String VERSION = "v1";
+  private static final String ABSENT = "-";
+
+  private final Client derivedFrom;
+  private final String clientId;
+  private final String keyId;
+  private final Tenancy tenancy;
+  private final String parentOrganizationNumber;
+  private final String childOrganizationNumber;
+  private final String sfmJournalId;
+  private final List<String> scope;
+  private final int hashCode;
+  private final String value;
+
+  private TokenCacheKey(
+      Client derivedFrom,
+      String keyId,
+      Tenancy tenancy,
+      String parentOrganizationNumber,
+      String childOrganizationNumber,
+      String sfmJournalId,
+      List<String> scope
+  ) {
+    this.derivedFrom = derivedFrom;
+    this.clientId = derivedFrom.clientId();
+    this.keyId = keyId;
+    this.tenancy = tenancy;
+    this.parentOrganizationNumber = parentOrganizationNumber;
+    this.childOrganizationNumber = childOrganizationNumber;
+    this.sfmJournalId = sfmJournalId;
+    this.scope = scope;
+    this.hashCode = Objects.hash(clientId, keyId, tenancy, parentOrganizationNumber, childOrganizationNumber, sfmJournalId, scope);
+    this.value = createValue();
+  }
+
+  /**
+   * Derive the cache key of a token request
+   *
+   * @param client the client requesting the token
+   * @param tokenRequestDetails the details of the token request, might be null
+   * @return the cache key of the token request
+   */
+  public static TokenCacheKey of(Client client, TokenRequestDetails tokenRequestDetails) {
+    Set<String> scopeSet = tokenRequestDetails == null || tokenRequestDetails.scope() == null || tokenRequestDetails.scope().isEmpty()
+        ? client.scope()
+        : tokenRequestDetails.scope();
+
+    List<String> scope = scopeSet == null ? new ArrayList<>() : new ArrayList<>(scopeSet);
+    Collections.sort(scope);
+
+    if (tokenRequestDetails == null) {
+      return new TokenCacheKey(client, client.keyReference().getKeyId(), null, null, null, null, Collections.unmodifiableList(scope));
+    }
+
+    return new TokenCacheKey(
+        client,
+        client.keyReference().getKeyId(),
+        tokenRequestDetails.tenancy(),
+        tokenRequestDetails.parentOrganizationNumber(),
+        tokenRequestDetails.childOrganizationNumber(),
+        tokenRequestDetails.sfmJournalId(),
+        Collections.unmodifiableList(scope)
+    );
+  }
+
+  /**
+   * Check if the key is derived from the client and the key currently referenced by the client
+   *
+   * @param client the client requesting the token
+   * @return true if the key is derived from the same client instance and key id
+   */
+  public boolean isDerivedFrom(Client client) {
+    return derivedFrom == client && Objects.equals(keyId, client.keyReference().getKeyId());
+  }
+
+  /**
+   * Access the client id of the key
+   * @return the client id
+   */
+  public String clientId() {
+    return clientId;
+  }
+
+  /**
+   * Access the id of the key signing the client assertion
+   * @return the key id
+   */
+  public String keyId() {
+    return keyId;
+  }
+
+  /**
+   * Access the tenancy of the token request
+   * @return the tenancy, null if the token request has no details
+   */
+  public Tenancy tenancy() {
+    return tenancy;
+  }
+
+  /**
+   * Access the parent organization number of the token request
+   * @return the parent organization number if present, otherwise null
+   */
+  public String parentOrganizationNumber() {
+    return parentOrganizationNumber;
+  }
+
+  /**
+   * Access the child organization number of the token request
+   * @return the child organization number if present, otherwise null
+   */
+  public String childOrganizationNumber() {
+    return childOrganizationNumber;
+  }
+
+  /**
+   * Access the SFM journal-id of the token request
+   * @return the SFM journal-id if present, otherwise null
+   */
+  public String sfmJournalId() {
+    return sfmJournalId;
+  }
+
+  /**
+   * Access the scopes of the token request in canonical order
+   * @return an unmodifiable, sorted list of scopes
+   */
+  public List<String> scope() {
+    return scope;
+  }
+
+  /**
+   * Access the stable string representation of the key, suitable as a key in a distributed cache.
+   * Every component is length prefixed, so different keys never share a representation
+   *
+   * @return the string representation of the key
+   */
+  public String value() {
+    return value;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof TokenCacheKey other)) {
+      return false;
+    }
+    return hashCode == other.hashCode
+        && Objects.equals(clientId, other.clientId)
+        && Objects.equals(keyId, other.keyId)
+        && tenancy == other.tenancy
+        && Objects.equals(parentOrganizationNumber, other.parentOrganizationNumber)
+        && Objects.equals(childOrganizationNumber, other.childOrganizationNumber)
+        && Objects.equals(sfmJournalId, other.sfmJournalId)
+        && scope.equals(other.scope);
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+
+  @Override
+  public String toString() {
+    return value;
+  }
+
+  private String createValue() {
+    StringBuilder builder = new StringBuilder(VERSION);
+    append(builder, clientId);
+    append(builder, keyId);
+    append(builder, tenancy == null ? null : tenancy.name());
+    append(builder, parentOrganizationNumber);
+    append(builder, childOrganizationNumber);
+    append(builder, sfmJournalId);
+    builder.append(';').append(scope.size());
+    scope.forEach(scopeValue -> append(builder, scopeValue));
+    return builder.toString();
+  }
+
+  private static void append(StringBuilder builder, String component) {
+    builder.append(';');
+    if (component == null) {
+      builder.append(ABSENT);
+    } else {
+      builder.append(component.length()).append(':').append(component);
+    }
+  }
+}
@@ -9,13 +9,21 @@ import com.nimbusds.oauth2.sdk.token.AccessTokenType;
 import com.nimbusds.oauth2.sdk.token.DPoPAccessToken;
 import com.nimbusds.oauth2.sdk.token.Tokens;
 import com.nimbusds.openid.connect.sdk.Nonce;
+import no.helseid.dpop.DPoPNonceStore;
 import no.helseid.dpop.DPoPProofCreator;
 import no.helseid.dpop.HttpMethod;
 import no.helseid.exceptions.HelseIdException;
+import no.helseid.http.DefaultHttpTransport;
+import no.helseid.http.HttpTransport;
 
-import java.io.IOException;
 import java.net.URI;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 /**
  * A util for performing requests to the token endpoint
@@ -42,7 +50,152 @@ public interface TokenEndpoint {
       Scope scope,
       List<URI> resources,
       Map<String, List<String>> customParams) throws HelseIdException {
-    TokenRequest request = new TokenRequest(
+    return sendRequest(tokenEndpointURI, dpopProofCreator, clientAssertion, grantType, scope, resources, customParams, null);
+  }
+
+  /**
+   * Sends a request to a token endpoint, including the latest DPoP-Nonce provided by the token endpoint if known.
+   * The request is only repeated if the token endpoint rejects the nonce and provides a new one.
+   * @param tokenEndpointURI the token endpoint
+   * @param dpopProofCreator a DPoP-proof creator
+   * @param clientAssertion a client assertion
+   * @param grantType the grant requested
+   * @param scope all scopes requested
+   * @param resources resource indicators for the token
+   * @param customParams optional additional parameters
+   * @param dPoPNonceStore a store remembering the latest DPoP-Nonce per endpoint, a nonce is always requested if null
+   * @return a Token Response
+   * @throws HelseIdException if an error occurs not representable by an ErrorResponse
+   */
+  static TokenResponse sendRequest(
+      URI tokenEndpointURI,
+      DPoPProofCreator dpopProofCreator,
+      SignedJWT clientAssertion,
+      AuthorizationGrant grantType,
+      Scope scope,
+      List<URI> resources,
+      Map<String, List<String>> customParams,
+      DPoPNonceStore dPoPNonceStore) throws HelseIdException {
+    return sendRequest(tokenEndpointURI, dpopProofCreator, clientAssertion, grantType, scope, resources, customParams, dPoPNonceStore,
+        DefaultHttpTransport.getInstance());
+  }
+
+  /**
+   * Sends a request to a token endpoint thru the provided transport, including the latest DPoP-Nonce provided by the token endpoint if known.
+   * The request is only repeated if the token endpoint rejects the nonce and provides a new one.
+   * @param tokenEndpointURI the token endpoint
+   * @param dpopProofCreator a DPoP-proof creator
+   * @param clientAssertion a client assertion
+   * @param grantType the grant requested
+   * @param scope all scopes requested
+   * @param resources resource indicators for the token
+   * @param customParams optional additional parameters
+   * @param dPoPNonceStore a store remembering the latest DPoP-Nonce per endpoint, a nonce is always requested if null
+   * @param httpTransport the transport sending the requests
+   * @return a Token Response
+   * @throws HelseIdException if an error occurs not representable by an ErrorResponse
+   */
+  static TokenResponse sendRequest(
+      URI tokenEndpointURI,
+      DPoPProofCreator dpopProofCreator,
+      SignedJWT clientAssertion,
+      AuthorizationGrant grantType,
+      Scope scope,
+      List<URI> resources,
+      Map<String, List<String>> customParams,
+      DPoPNonceStore dPoPNonceStore,
+      HttpTransport httpTransport) throws HelseIdException {
+    TokenRequest request = createTokenRequest(tokenEndpointURI, clientAssertion, grantType, scope, resources, customParams);
+    String storedDPoPNonce = dPoPNonceStore == null ? null : dPoPNonceStore.get(tokenEndpointURI);
+    HTTPResponse initialHttpResponse = httpTransport.send(prepareHttpRequest(request, dpopProofCreator, storedDPoPNonce));
+    Nonce initialDPoPNonce = initialHttpResponse.getDPoPNonce();
+    TokenResponse initialTokenResponse = handleInitialResponse(initialHttpResponse, initialDPoPNonce, dPoPNonceStore, tokenEndpointURI);
+
+    if (initialTokenResponse != null) {
+      return initialTokenResponse;
+    }
+
+    HTTPResponse httpResponse = httpTransport.send(prepareHttpRequest(request, dpopProofCreator, initialDPoPNonce.getValue()));
+    return handleResponse(httpResponse, dPoPNonceStore, tokenEndpointURI);
+  }
+
+  /**
+   * Sends a request to a token endpoint without blocking, including the latest DPoP-Nonce provided by the token endpoint if known.
+   * The DPoP-proof of the first attempt is created on the calling thread, the DPoP-proof of a repeated request is created by the executor.
+   * @param tokenEndpointURI the token endpoint
+   * @param dpopProofCreator a DPoP-proof creator
+   * @param clientAssertion a client assertion
+   * @param grantType the grant requested
+   * @param scope all scopes requested
+   * @param resources resource indicators for the token
+   * @param customParams optional additional parameters
+   * @param dPoPNonceStore a store remembering the latest DPoP-Nonce per endpoint, a nonce is always requested if null
+   * @param httpTransport the transport sending the requests
+   * @param executor the executor creating DPoP-proofs and processing responses
+   * @return a future completed with a Token Response, or failed with a HelseIdException if an error occurs not representable by an ErrorResponse
+   */
+  static CompletableFuture<TokenResponse> sendRequestAsync(
+      URI tokenEndpointURI,
+      DPoPProofCreator dpopProofCreator,
+      SignedJWT clientAssertion,
+      AuthorizationGrant grantType,
+      Scope scope,
+      List<URI> resources,
+      Map<String, List<String>> customParams,
+      DPoPNonceStore dPoPNonceStore,
+      HttpTransport httpTransport,
+      Executor executor) {
+    TokenRequest request = createTokenRequest(tokenEndpointURI, clientAssertion, grantType, scope, resources, customParams);
+    String storedDPoPNonce = dPoPNonceStore == null ? null : dPoPNonceStore.get(tokenEndpointURI);
+    HTTPRequest initialHttpRequest;
+    try {
+      initialHttpRequest = prepareHttpRequest(request, dpopProofCreator, storedDPoPNonce);
+    } catch (HelseIdException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+
+    return httpTransport.sendAsync(initialHttpRequest)
+        .thenComposeAsync(initialHttpResponse -> {
+          try {
+            Nonce initialDPoPNonce = initialHttpResponse.getDPoPNonce();
+            TokenResponse initialTokenResponse = handleInitialResponse(initialHttpResponse, initialDPoPNonce, dPoPNonceStore, tokenEndpointURI);
+
+            if (initialTokenResponse != null) {
+              return CompletableFuture.completedFuture(initialTokenResponse);
+            }
+
+            return httpTransport.sendAsync(prepareHttpRequest(request, dpopProofCreator, initialDPoPNonce.getValue()))
+                .thenApplyAsync(httpResponse -> {
+                  try {
+                    return handleResponse(httpResponse, dPoPNonceStore, tokenEndpointURI);
+                  } catch (HelseIdException e) {
+                    throw new CompletionException(e);
+                  }
+                }, executor);
+          } catch (HelseIdException e) {
+            return CompletableFuture.failedFuture(e);
+          }
+        }, executor);
+  }
+
+  /**
+   * Create a token request authenticated by a client assertion
+   * @param tokenEndpointURI the token endpoint
+   * @param clientAssertion a client assertion
+   * @param grantType the grant requested
+   * @param scope all scopes requested
+   * @param resources resource indicators for the token
+   * @param customParams optional additional parameters
+   * @return a nimbus token request
+   */
+  private static TokenRequest createTokenRequest(
+      URI tokenEndpointURI,
+      SignedJWT clientAssertion,
+      AuthorizationGrant grantType,
+      Scope scope,
+      List<URI> resources,
+      Map<String, List<String>> customParams) {
+    return new TokenRequest(
         tokenEndpointURI,
         new PrivateKeyJWT(clientAssertion),
         grantType,
@@ -52,26 +205,53 @@ public interface TokenEndpoint {
         null,
         customParams
     );
-    HTTPResponse httpResponseWithoutIncludingDPoPNonceResponseHeader = sendTokenRequest(request, dpopProofCreator, null);
-    com.nimbusds.oauth2.sdk.TokenResponse initialTokenResponse = parseTokenResponse(httpResponseWithoutIncludingDPoPNonceResponseHeader);
+  }
 
-    // Should not happen because of DPoP
+  /**
+   * Handle the response of the first attempt of a token request
+   * @param initialHttpResponse the HTTP response of the first attempt
+   * @param initialDPoPNonce the DPoP-Nonce provided in the response, read before the response is parsed
+   * @param dPoPNonceStore the store remembering the nonce, ignored if null
+   * @param tokenEndpointURI the token endpoint
+   * @return a Token Response, or null if the request should be repeated with the provided DPoP-Nonce
+   * @throws HelseIdException if the response is unprocessable or a nonce is required but not provided
+   */
+  private static TokenResponse handleInitialResponse(
+      HTTPResponse initialHttpResponse,
+      Nonce initialDPoPNonce,
+      DPoPNonceStore dPoPNonceStore,
+      URI tokenEndpointURI) throws HelseIdException {
+    rememberDPoPNonce(dPoPNonceStore, tokenEndpointURI, initialDPoPNonce);
+    com.nimbusds.oauth2.sdk.TokenResponse initialTokenResponse = parseTokenResponse(initialHttpResponse);
+
+    // Only expected when a remembered nonce is accepted
     if (initialTokenResponse.indicatesSuccess()) {
-      return handleSuccess(initialTokenResponse.toSuccessResponse().getTokens(), httpResponseWithoutIncludingDPoPNonceResponseHeader);
+      return handleSuccess(initialTokenResponse.toSuccessResponse().getTokens(), initialHttpResponse);
     }
 
-    ErrorObject errorObjectWithoutDPoPNonce = initialTokenResponse.toErrorResponse().getErrorObject();
+    ErrorObject initialErrorObject = initialTokenResponse.toErrorResponse().getErrorObject();
 
-    if (!OAuth2Error.USE_DPOP_NONCE.equals(errorObjectWithoutDPoPNonce)) {
-      return handleError(errorObjectWithoutDPoPNonce);
+    if (!OAuth2Error.USE_DPOP_NONCE.equals(initialErrorObject)) {
+      return handleError(initialErrorObject);
     }
 
-    Nonce dPoPNonce = httpResponseWithoutIncludingDPoPNonceResponseHeader.getDPoPNonce();
-    if (dPoPNonce == null) {
+    if (initialDPoPNonce == null) {
       throw new HelseIdException("Response indicating missing nonce but none was provided.");
     }
 
-    HTTPResponse httpResponse = sendTokenRequest(request, dpopProofCreator, dPoPNonce.getValue());
+    return null;
+  }
+
+  /**
+   * Handle the response of a token request including a DPoP-Nonce provided by the token endpoint
+   * @param httpResponse the HTTP response
+   * @param dPoPNonceStore the store remembering the nonce, ignored if null
+   * @param tokenEndpointURI the token endpoint
+   * @return a Token Response
+   * @throws HelseIdException if the response is unprocessable
+   */
+  private static TokenResponse handleResponse(HTTPResponse httpResponse, DPoPNonceStore dPoPNonceStore, URI tokenEndpointURI) throws HelseIdException {
+    rememberDPoPNonce(dPoPNonceStore, tokenEndpointURI, httpResponse.getDPoPNonce());
     com.nimbusds.oauth2.sdk.TokenResponse dPoPTokenResponse = parseTokenResponse(httpResponse);
 
     if (dPoPTokenResponse.indicatesSuccess()) {
@@ -81,6 +261,18 @@ public interface TokenEndpoint {
     return handleError(dPoPTokenResponse.toErrorResponse().getErrorObject());
   }
 
+  /**
+   * Remember a DPoP-Nonce provided by the token endpoint, if any
+   * @param dPoPNonceStore the store remembering the nonce, ignored if null
+   * @param tokenEndpointURI the token endpoint
+   * @param dPoPNonce the nonce provided in a response, ignored if null
+   */
+  private static void rememberDPoPNonce(DPoPNonceStore dPoPNonceStore, URI tokenEndpointURI, Nonce dPoPNonce) {
+    if (dPoPNonceStore != null && dPoPNonce != null) {
+      dPoPNonceStore.put(tokenEndpointURI, dPoPNonce.getValue());
+    }
+  }
+
   /**
    * Parses the token response and converts it to a HelseID AccessTokenResponse
    * @param tokens the nimbus token response
@@ -101,10 +293,28 @@ public interface TokenEndpoint {
         accessToken.getLifetime(),
         scope,
         httpResponse.getBody(),
-        httpResponse.getStatusCode()
+        httpResponse.getStatusCode(),
+        parseServerDate(httpResponse)
     );
   }
 
+  /**
+   * Parse the Date header of a response from the token endpoint
+   * @param httpResponse the HTTP response
+   * @return the time of the response according to the token endpoint, null if missing or malformed
+   */
+  private static Instant parseServerDate(HTTPResponse httpResponse) {
+    String date = httpResponse.getHeaderValue("Date");
+    if (date == null) {
+      return null;
+    }
+    try {
+      return DateTimeFormatter.RFC_1123_DATE_TIME.parse(date, Instant::from);
+    } catch (DateTimeParseException e) {
+      return null;
+    }
+  }
+
   private static ErrorResponse handleError(ErrorObject errorObject) {
     return new ErrorResponse(
         errorObject.getCode(),
@@ -115,25 +325,20 @@ public interface TokenEndpoint {
   }
 
   /**
-   * Internal util class for sending token request and handle exception during the process
+   * Internal util class for preparing a token request including a DPoP-proof
    * @param tokenRequest a token request object
    * @param dPoPProofCreator a DPoP-proof creator
    * @param dPoPNonce an optional DPoP-Nonce
-   * @return a nimbus HTTP Response
-   * @throws HelseIdException if the request is not sent off or the response is not processable
+   * @return a nimbus HTTP Request ready to be sent
+   * @throws HelseIdException if the DPoP-proof can not be created
    */
-  private static HTTPResponse sendTokenRequest(TokenRequest tokenRequest, DPoPProofCreator dPoPProofCreator, String dPoPNonce) throws HelseIdException {
+  private static HTTPRequest prepareHttpRequest(TokenRequest tokenRequest, DPoPProofCreator dPoPProofCreator, String dPoPNonce) throws HelseIdException {
     HTTPRequest httpRequest = tokenRequest.toHTTPRequest();
     var htu = httpRequest.getURI();
     var htm = httpRequest.getMethod();
     var dPoPProof = dPoPProofCreator.createDPoPProofWithNonce(htu, new HttpMethod(htm.name()), dPoPNonce);
     httpRequest.setHeader("DPoP", dPoPProof);
-
-    try {
-      return httpRequest.send();
-    } catch (IOException e) {
-      throw new HelseIdException("Error occurred sending the request", e);
-    }
+    return httpRequest;
   }
 
   /**
@@ -6,7 +6,8 @@ import no.helseid.exceptions.HelseIdException;
 import java.util.*;
 
 /**
- * A collection of details in a token request
+ * A collection of details in a token request.
+ * Details are equal when all their values are equal, the hash code is computed once
  */
 public final class TokenRequestDetails {
   private final Tenancy tenancy;
@@ -14,6 +15,7 @@ public final class TokenRequestDetails {
   private final String childOrganizationNumber;
   private final String sfmJournalId;
   private final Set<String> scope;
+  private final int hashCode;
 
   /**
    * Create a new instance of TokenRequestDetails
@@ -36,7 +38,8 @@ public final class TokenRequestDetails {
     this.parentOrganizationNumber = parentOrganizationNumber;
     this.childOrganizationNumber = childOrganizationNumber;
     this.sfmJournalId = sfmJournalId;
-    this.scope = scope;
+    this.scope = scope == null ? null : Collections.unmodifiableSet(new LinkedHashSet<>(scope));
+    this.hashCode = Objects.hash(tenancy, parentOrganizationNumber, childOrganizationNumber, sfmJournalId, this.scope);
   }
 
   /**
@@ -79,6 +82,27 @@ public final class TokenRequestDetails {
     return scope;
   }
 
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof TokenRequestDetails other)) {
+      return false;
+    }
+    return hashCode == other.hashCode
+        && tenancy == other.tenancy
+        && Objects.equals(parentOrganizationNumber, other.parentOrganizationNumber)
+        && Objects.equals(childOrganizationNumber, other.childOrganizationNumber)
+        && Objects.equals(sfmJournalId, other.sfmJournalId)
+        && Objects.equals(scope, other.scope);
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+
   /**
    * Builder class for TokenRequestDetails
    */
@@ -173,7 +197,7 @@ public final class TokenRequestDetails {
           parentOrganizationNumber,
           childOrganizationNumber,
           sfmJournalId,
-          Collections.unmodifiableSet(scopeSet)
+          scopeSet
       );
     }
   }
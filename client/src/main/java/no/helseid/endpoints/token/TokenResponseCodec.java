@@ -0,0 +1,211 @@
+package no.helseid.endpoints.token;
+
+import no.helseid.cache.ValueCodec;
+import no.helseid.exceptions.HelseIdException;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Converts token responses to and from a versioned, compact binary representation, used when responses are cached outside the heap.
+ * Lengths and numbers are variable length integers, common token types are a single byte,
+ * and the access token is only stored once even though it is repeated in the raw response body.
+ * Decoding reads the fields in a fixed order and never uses reflection
+ */
+public final class TokenResponseCodec implements ValueCodec<TokenResponse> {
+  /**
+   * The version of the encoding, written as the first byte of every encoded value
+   */
+  public static final byte VERSION = 1;
+  private static final int ACCESS_TOKEN_RESPONSE = 1;
+  private static final int ERROR_RESPONSE = 2;
+  private static final int LITERAL_TOKEN_TYPE = 0;
+  private static final String[] KNOWN_TOKEN_TYPES = {null, "DPoP", "Bearer"};
+  private static final int HAS_ACCESS_TOKEN = 1;
+  private static final int HAS_TOKEN_TYPE = 1 << 1;
+  private static final int HAS_SCOPE = 1 << 2;
+  private static final int HAS_RAW_RESPONSE_BODY = 1 << 3;
+  private static final int HAS_ERROR = 1;
+  private static final int HAS_ERROR_DESCRIPTION = 1 << 1;
+
+  /**
+   * Create a new instance of TokenResponseCodec
+   */
+  public TokenResponseCodec() {
+  }
+
+  @Override
+  public byte[] encode(TokenResponse tokenResponse) throws HelseIdException {
+    if (tokenResponse instanceof AccessTokenResponse accessTokenResponse) {
+      return encodeAccessTokenResponse(accessTokenResponse);
+    }
+    if (tokenResponse instanceof ErrorResponse errorResponse) {
+      return encodeErrorResponse(errorResponse);
+    }
+    throw new HelseIdException("Unsupported token response: " + (tokenResponse == null ? null : tokenResponse.getClass().getName()));
+  }
+
+  @Override
+  public TokenResponse decode(byte[] bytes) throws HelseIdException {
+    var reader = new CompactBinary.Reader(bytes);
+    if (reader.readByte() != VERSION) {
+      throw new HelseIdException("Unsupported encoding of the cached token response");
+    }
+
+    TokenResponse tokenResponse = switch (reader.readByte()) {
+      case ACCESS_TOKEN_RESPONSE -> decodeAccessTokenResponse(reader);
+      case ERROR_RESPONSE -> decodeErrorResponse(reader);
+      default -> throw new HelseIdException("Unsupported type of the cached token response");
+    };
+
+    if (reader.hasRemaining()) {
+      throw new HelseIdException("Unexpected trailing bytes in the cached token response");
+    }
+    return tokenResponse;
+  }
+
+  private static byte[] encodeAccessTokenResponse(AccessTokenResponse accessTokenResponse) {
+    String accessToken = accessTokenResponse.accessToken();
+    String tokenType = accessTokenResponse.tokenType();
+    Set<String> scope = accessTokenResponse.scope();
+    String rawResponseBody = accessTokenResponse.rawResponseBody();
+
+    int flags = (accessToken != null ? HAS_ACCESS_TOKEN : 0)
+        | (tokenType != null ? HAS_TOKEN_TYPE : 0)
+        | (scope != null ? HAS_SCOPE : 0)
+        | (rawResponseBody != null ? HAS_RAW_RESPONSE_BODY : 0);
+
+    var writer = new CompactBinary.Writer((accessToken == null ? 0 : accessToken.length()) + (rawResponseBody == null ? 0 : rawResponseBody.length()))
+        .writeByte(VERSION)
+        .writeByte(ACCESS_TOKEN_RESPONSE)
+        .writeByte(flags)
+        .writeVarLong(accessTokenResponse.statusCode())
+        .writeVarLong(zigZag(accessTokenResponse.expiresInSeconds()));
+
+    if (accessToken != null) {
+      writer.writeString(accessToken);
+    }
+    if (tokenType != null) {
+      int knownTokenType = indexOfKnownTokenType(tokenType);
+      writer.writeByte(knownTokenType);
+      if (knownTokenType == LITERAL_TOKEN_TYPE) {
+        writer.writeString(tokenType);
+      }
+    }
+    if (scope != null) {
+      writer.writeVarLong(scope.size());
+      scope.forEach(writer::writeString);
+    }
+    if (rawResponseBody != null) {
+      // The access token is left out of the raw body, the offset where it belongs is stored instead
+      int accessTokenOffset = accessToken == null || accessToken.isEmpty() ? -1 : rawResponseBody.indexOf(accessToken);
+      if (accessTokenOffset < 0) {
+        writer.writeVarLong(0).writeString(rawResponseBody);
+      } else {
+        writer.writeVarLong(accessTokenOffset + 1L)
+            .writeString(rawResponseBody.substring(0, accessTokenOffset) + rawResponseBody.substring(accessTokenOffset + accessToken.length()));
+      }
+    }
+    return writer.toByteArray();
+  }
+
+  private static AccessTokenResponse decodeAccessTokenResponse(CompactBinary.Reader reader) throws HelseIdException {
+    int flags = reader.readByte();
+    int statusCode = (int) reader.readVarLong();
+    long expiresInSeconds = unZigZag(reader.readVarLong());
+
+    String accessToken = (flags & HAS_ACCESS_TOKEN) != 0 ? reader.readString() : null;
+
+    String tokenType = null;
+    if ((flags & HAS_TOKEN_TYPE) != 0) {
+      int knownTokenType = reader.readByte();
+      if (knownTokenType == LITERAL_TOKEN_TYPE) {
+        tokenType = reader.readString();
+      } else if (knownTokenType < KNOWN_TOKEN_TYPES.length) {
+        tokenType = KNOWN_TOKEN_TYPES[knownTokenType];
+      } else {
+        throw new HelseIdException("Unsupported token type of the cached token response");
+      }
+    }
+
+    Set<String> scope = null;
+    if ((flags & HAS_SCOPE) != 0) {
+      int scopeSize = reader.readLength();
+      Set<String> scopeSet = new LinkedHashSet<>(scopeSize * 2);
+      for (int i = 0; i < scopeSize; i++) {
+        scopeSet.add(reader.readString());
+      }
+      scope = Collections.unmodifiableSet(scopeSet);
+    }
+
+    String rawResponseBody = null;
+    if ((flags & HAS_RAW_RESPONSE_BODY) != 0) {
+      long accessTokenOffset = reader.readVarLong() - 1;
+      String remainder = reader.readString();
+      if (accessTokenOffset < 0) {
+        rawResponseBody = remainder;
+      } else if (accessToken != null && accessTokenOffset <= remainder.length()) {
+        int offset = (int) accessTokenOffset;
+        rawResponseBody = remainder.substring(0, offset) + accessToken + remainder.substring(offset);
+      } else {
+        throw new HelseIdException("Malformed raw response body of the cached token response");
+      }
+    }
+
+    return new AccessTokenResponse(accessToken, tokenType, expiresInSeconds, scope, rawResponseBody, statusCode);
+  }
+
+  private static byte[] encodeErrorResponse(ErrorResponse errorResponse) {
+    String error = errorResponse.error();
+    String errorDescription = errorResponse.errorDescription();
+    String rawResponseBody = errorResponse.rawResponseBody();
+
+    int flags = (error != null ? HAS_ERROR : 0)
+        | (errorDescription != null ? HAS_ERROR_DESCRIPTION : 0)
+        | (rawResponseBody != null ? HAS_RAW_RESPONSE_BODY : 0);
+
+    var writer = new CompactBinary.Writer(rawResponseBody == null ? 0 : rawResponseBody.length())
+        .writeByte(VERSION)
+        .writeByte(ERROR_RESPONSE)
+        .writeByte(flags)
+        .writeVarLong(errorResponse.statusCode());
+
+    if (error != null) {
+      writer.writeString(error);
+    }
+    if (errorDescription != null) {
+      writer.writeString(errorDescription);
+    }
+    if (rawResponseBody != null) {
+      writer.writeString(rawResponseBody);
+    }
+    return writer.toByteArray();
+  }
+
+  private static ErrorResponse decodeErrorResponse(CompactBinary.Reader reader) throws HelseIdException {
+    int flags = reader.readByte();
+    int statusCode = (int) reader.readVarLong();
+    String error = (flags & HAS_ERROR) != 0 ? reader.readString() : null;
+    String errorDescription = (flags & HAS_ERROR_DESCRIPTION) != 0 ? reader.readString() : null;
+    String rawResponseBody = (flags & HAS_RAW_RESPONSE_BODY) != 0 ? reader.readString() : null;
+    return new ErrorResponse(error, errorDescription, statusCode, rawResponseBody);
+  }
+
+  private static int indexOfKnownTokenType(String tokenType) {
+    for (int i = 1; i < KNOWN_TOKEN_TYPES.length; i++) {
+      if (KNOWN_TOKEN_TYPES[i].equals(tokenType)) {
+        return i;
+      }
+    }
+    return LITERAL_TOKEN_TYPE;
+  }
+
+  private static long zigZag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unZigZag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+}
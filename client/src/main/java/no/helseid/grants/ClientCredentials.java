@@ -1,18 +1,30 @@
 package no.helseid.grants;
 
+import no.helseid.cache.CacheStats;
 import no.helseid.cache.ExpiringCache;
 import no.helseid.cache.InMemoryExpiringCache;
+import no.helseid.clientassertion.ClientAssertionPool;
+import no.helseid.concurrent.DaemonThreadFactory;
+import no.helseid.concurrent.LeaseManager;
 import no.helseid.configuration.Client;
+import no.helseid.dpop.DPoPNonceStore;
 import no.helseid.dpop.DPoPProofCreator;
 import no.helseid.dpop.DefaultDPoPProofCreator;
 import no.helseid.endpoints.token.AccessTokenResponse;
 import no.helseid.endpoints.token.TokenRequestDetails;
 import no.helseid.endpoints.token.TokenResponse;
 import no.helseid.exceptions.HelseIdException;
+import no.helseid.http.DefaultHttpTransport;
+import no.helseid.http.HttpTransport;
 import no.helseid.metadata.MetadataProvider;
 import no.helseid.metadata.RemoteMetadataProvider;
 
 import java.net.URI;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Client Credentials pattern
@@ -33,20 +45,87 @@ public interface ClientCredentials {
    */
   TokenResponse getAccessToken(TokenRequestDetails tokenRequestDetails) throws HelseIdException;
 
+  /**
+   * Request access token from HelseID without details and without blocking the calling thread
+   * @return a future completed with the token response from HelseID, or failed with a HelseIdException
+   */
+  default CompletableFuture<TokenResponse> getAccessTokenAsync() {
+    return getAccessTokenAsync(null);
+  }
+
+  /**
+   * Request access token from HelseID including details and without blocking the calling thread.
+   * The default implementation requests the token on the calling thread, returning a completed future
+   * @param tokenRequestDetails the details to be included in the token request
+   * @return a future completed with the token response from HelseID, or failed with a HelseIdException
+   */
+  default CompletableFuture<TokenResponse> getAccessTokenAsync(TokenRequestDetails tokenRequestDetails) {
+    try {
+      return CompletableFuture.completedFuture(getAccessToken(tokenRequestDetails));
+    } catch (HelseIdException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /**
+   * Request the tokens of many token request details in parallel, such as every tenant of a multi-tenant client,
+   * so the tokens are cached before they are first needed. Blocks until every token request has completed
+   * @param tokenRequestDetails the details of each token request, null elements request the token without details
+   * @return the result of every token request
+   * @throws HelseIdException if the calling thread is interrupted while waiting
+   */
+  default PrefetchReport prefetch(Collection<TokenRequestDetails> tokenRequestDetails) throws HelseIdException {
+    return prefetch(tokenRequestDetails, PrefetchOptions.defaultOptions());
+  }
+
+  /**
+   * Request the tokens of many token request details in parallel, bounded by the concurrency and rate cap of the options.
+   * Blocks until every token request has completed
+   * @param tokenRequestDetails the details of each token request, null elements request the token without details
+   * @param prefetchOptions the concurrency and rate cap of the token requests
+   * @return the result of every token request
+   * @throws HelseIdException if the calling thread is interrupted while waiting
+   */
+  default PrefetchReport prefetch(Collection<TokenRequestDetails> tokenRequestDetails, PrefetchOptions prefetchOptions) throws HelseIdException {
+    return TokenPrefetcher.prefetch(this, tokenRequestDetails, prefetchOptions);
+  }
+
   /**
    * Returning the dpop proof creator used in client credentials
    * @return the dpop proof creator used in client credentials
    */
   DPoPProofCreator getCurrentDPoPProofCreator();
 
+  /**
+   * Take a snapshot of the statistics of the token cache, including the time spent requesting tokens on a miss
+   * @return the statistics of the token cache, empty if the cache does not keep statistics
+   */
+  default CacheStats getTokenCacheStats() {
+    return CacheStats.empty();
+  }
+
   /**
    * Builder class for Client Credentials
    */
   class Builder {
-    private final MetadataProvider metadataProvider;
+    /**
+     * The time a lease on a missing token is held at most, unless configured otherwise
+     */
+    public static final long DEFAULT_LEASE_TIME_IN_MILLISECONDS = 10_000L;
+    private MetadataProvider metadataProvider;
     private Client client;
     private ExpiringCache<AccessTokenResponse> tokenCache;
     private DPoPProofCreator dPoPProofCreator;
+    private DPoPNonceStore dPoPNonceStore;
+    private double refreshAheadFraction;
+    private Executor backgroundExecutor;
+    private HttpTransport httpTransport;
+    private Executor signingExecutor;
+    private LeaseManager leaseManager;
+    private long leaseTimeInMilliseconds = DEFAULT_LEASE_TIME_IN_MILLISECONDS;
+    private NegativeCachePolicy negativeCachePolicy;
+    private TokenExpiryPolicy tokenExpiryPolicy;
+    private ClientAssertionPool clientAssertionPool;
 
     /**
      * Initialize a builder class for client credentials
@@ -66,6 +145,17 @@ public interface ClientCredentials {
       return this;
     }
 
+    /**
+     * Assign a custom metadata provider, the default is the shared provider of the authority.
+     * A RemoteMetadataProvider built with stale-while-revalidate keeps token requests independent of a slow discovery endpoint
+     * @param metadataProvider a custom metadata provider
+     * @return the current builder
+     */
+    public Builder setCustomMetadataProvider(final MetadataProvider metadataProvider) {
+      this.metadataProvider = metadataProvider;
+      return this;
+    }
+
     /**
      * Assign a custom token cache implementation, the default is in memory
      * @param tokenCache a custom token cache implementation
@@ -86,6 +176,119 @@ public interface ClientCredentials {
       return this;
     }
 
+    /**
+     * Assign a custom store of DPoP-Nonces, the default store is bound to the built client credentials.
+     * The latest nonce provided by the token endpoint is remembered and included in the next token request.
+     * @param dPoPNonceStore a custom store of DPoP-Nonces
+     * @return the current builder
+     */
+    public Builder setCustomDPoPNonceStore(final DPoPNonceStore dPoPNonceStore) {
+      this.dPoPNonceStore = dPoPNonceStore;
+      return this;
+    }
+
+    /**
+     * Enable refresh-ahead of cached tokens, disabled by default.
+     * A cached token which is requested after the given fraction of its lifetime has passed is renewed in the background,
+     * while callers are served the still valid token until the renewed token replaces it.
+     * The lifetime ends at the local expiry of the token expiry policy, after its safety margin and clock skew compensation.
+     * @param refreshAheadFraction the fraction of the token lifetime after which a token in use is renewed, between 0 and 1
+     * @return the current builder
+     */
+    public Builder withRefreshAhead(final double refreshAheadFraction) {
+      this.refreshAheadFraction = refreshAheadFraction;
+      return this;
+    }
+
+    /**
+     * Assign a custom executor for background work such as refresh-ahead, the default is a pool of daemon threads.
+     * Renewals are submitted from the thread of the shared timing wheel, so the executor must run its tasks on other
+     * threads, an executor running tasks on the submitting thread stalls every timer of the process during the token request
+     * @param backgroundExecutor a custom executor for background work
+     * @return the current builder
+     */
+    public Builder setCustomBackgroundExecutor(final Executor backgroundExecutor) {
+      this.backgroundExecutor = backgroundExecutor;
+      return this;
+    }
+
+    /**
+     * Assign a custom transport for requests to the token endpoint, the default is a transport shared by HelseID internals.
+     * Connections are reused across token requests, paying the TLS handshake once per connection
+     * @param httpTransport a custom transport
+     * @return the current builder
+     */
+    public Builder setCustomHttpTransport(final HttpTransport httpTransport) {
+      this.httpTransport = httpTransport;
+      return this;
+    }
+
+    /**
+     * Assign a custom executor for signing and metadata resolution in asynchronous token requests, the default is the common pool
+     * @param signingExecutor a custom executor for signing
+     * @return the current builder
+     */
+    public Builder setCustomSigningExecutor(final Executor signingExecutor) {
+      this.signingExecutor = signingExecutor;
+      return this;
+    }
+
+    /**
+     * Assign a lease manager shared by every replica using the same token cache, the default is no leases.
+     * On a miss, only the replica acquiring the lease requests the token while the others wait for it to appear in the cache
+     * @param leaseManager a custom lease manager
+     * @return the current builder
+     */
+    public Builder setCustomLeaseManager(final LeaseManager leaseManager) {
+      this.leaseManager = leaseManager;
+      return this;
+    }
+
+    /**
+     * Assign the time a lease on a missing token is held at most. Replicas waiting for the token request it themselves
+     * if it does not appear within this time
+     * @param leaseTimeInMilliseconds the lease time in milliseconds
+     * @return the current builder
+     */
+    public Builder withLeaseTime(final long leaseTimeInMilliseconds) {
+      this.leaseTimeInMilliseconds = leaseTimeInMilliseconds;
+      return this;
+    }
+
+    /**
+     * Enable remembering error responses from HelseID per cache key, disabled by default.
+     * A remembered error response is returned without a token request until its backoff has passed
+     * @param negativeCachePolicy the policy for remembering error responses
+     * @return the current builder
+     */
+    public Builder withNegativeCaching(final NegativeCachePolicy negativeCachePolicy) {
+      this.negativeCachePolicy = negativeCachePolicy;
+      return this;
+    }
+
+    /**
+     * Assign a custom policy for when a cached token expires locally, the default expires a token at the end of its lifetime.
+     * A safety margin and jitter expire tokens early, spreading the renewals of replicas caching the same token
+     * @param tokenExpiryPolicy a custom token expiry policy
+     * @return the current builder
+     */
+    public Builder setCustomTokenExpiryPolicy(final TokenExpiryPolicy tokenExpiryPolicy) {
+      this.tokenExpiryPolicy = tokenExpiryPolicy;
+      return this;
+    }
+
+    /**
+     * Take client assertions from a pool of assertions signed in the background, so a token request only waits for HelseID.
+     * The assertion of the next token request on a cached token is signed just before its refresh-ahead point or expiry.
+     * Without a pool the client assertion is signed on the thread requesting the token
+     * @param clientAssertionPool the pool of signed client assertions
+     * @return the current builder
+     */
+    public Builder withClientAssertionPool(final ClientAssertionPool clientAssertionPool) {
+      this.clientAssertionPool = clientAssertionPool;
+      return this;
+    }
+
     /**
      * Build the client credentials
      * @return a default implementation of client credentials
@@ -96,6 +299,10 @@ public interface ClientCredentials {
         throw new HelseIdException("No client is provided");
       }
 
+      if (metadataProvider == null) {
+        throw new HelseIdException("No metadata provider is provided");
+      }
+
       if (tokenCache == null) {
         this.tokenCache = new InMemoryExpiringCache<>();
       }
@@ -104,11 +311,49 @@ public interface ClientCredentials {
         this.dPoPProofCreator = new DefaultDPoPProofCreator(client.keyReference());
       }
 
+      if (dPoPNonceStore == null) {
+        this.dPoPNonceStore = new DPoPNonceStore();
+      }
+
+      if (httpTransport == null) {
+        this.httpTransport = DefaultHttpTransport.getInstance();
+      }
+
+      if (tokenExpiryPolicy == null) {
+        this.tokenExpiryPolicy = TokenExpiryPolicy.defaultPolicy();
+      }
+
+      if (signingExecutor == null) {
+        this.signingExecutor = ForkJoinPool.commonPool();
+      }
+
+      if (refreshAheadFraction < 0 || refreshAheadFraction >= 1) {
+        throw new HelseIdException("The refresh-ahead fraction must be between 0 and 1");
+      }
+
+      if (leaseTimeInMilliseconds <= 0) {
+        throw new HelseIdException("The lease time must be positive");
+      }
+
+      if (refreshAheadFraction > 0 && backgroundExecutor == null) {
+        this.backgroundExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("helseid-token-refresh"));
+      }
+
       return new DefaultClientCredentials(
           this.client,
           this.metadataProvider,
           this.tokenCache,
-          this.dPoPProofCreator
+          this.dPoPProofCreator,
+          this.dPoPNonceStore,
+          this.httpTransport,
+          this.signingExecutor,
+          this.refreshAheadFraction,
+          this.backgroundExecutor,
+          this.leaseManager,
+          this.leaseTimeInMilliseconds,
+          this.negativeCachePolicy,
+          this.tokenExpiryPolicy,
+          this.clientAssertionPool
       );
     }
   }
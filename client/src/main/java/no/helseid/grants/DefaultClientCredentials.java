@@ -1,53 +1,117 @@
 package no.helseid.grants;
 
 import com.nimbusds.jwt.SignedJWT;
-import com.nimbusds.oauth2.sdk.AuthorizationGrant;
 import com.nimbusds.oauth2.sdk.ClientCredentialsGrant;
 import com.nimbusds.oauth2.sdk.Scope;
+import com.nimbusds.openid.connect.sdk.op.OIDCProviderMetadata;
+import no.helseid.cache.CacheEntry;
+import no.helseid.cache.CacheStats;
 import no.helseid.cache.ExpiringCache;
 import no.helseid.clientassertion.AssertionDetails;
-import no.helseid.clientassertion.ClientAssertion;
+import no.helseid.clientassertion.ClientAssertionPool;
+import no.helseid.clientassertion.ClientAssertionTemplate;
+import no.helseid.concurrent.LeaseManager;
+import no.helseid.concurrent.SingleFlight;
+import no.helseid.concurrent.TimingWheel;
 import no.helseid.configuration.Client;
+import no.helseid.dpop.DPoPNonceStore;
 import no.helseid.dpop.DPoPProofCreator;
 import no.helseid.endpoints.token.AccessTokenResponse;
+import no.helseid.endpoints.token.ErrorResponse;
+import no.helseid.endpoints.token.TokenCacheKey;
 import no.helseid.endpoints.token.TokenEndpoint;
 import no.helseid.endpoints.token.TokenRequestDetails;
 import no.helseid.endpoints.token.TokenResponse;
 import no.helseid.exceptions.HelseIdException;
+import no.helseid.http.HttpTransport;
 import no.helseid.metadata.MetadataProvider;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.time.Instant;
-
 import java.util.Collections;
-import java.util.Set;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 
 /**
  * Default implementation of Client Credentials
  */
 public final class DefaultClientCredentials implements ClientCredentials {
+  private static final long REFRESH_RETRY_DELAY_IN_MILLISECONDS = 5000L;
+  private static final long INITIAL_LEASE_POLL_INTERVAL_IN_MILLISECONDS = 50L;
+  private static final long MAXIMUM_LEASE_POLL_INTERVAL_IN_MILLISECONDS = 1000L;
+  private static final int MAXIMUM_REMEMBERED_CACHE_KEYS = 1024;
   private final Client client;
   private final MetadataProvider metadataProvider;
   private final ExpiringCache<AccessTokenResponse> tokenCache;
   private final DPoPProofCreator dPoPProofCreator;
+  private final DPoPNonceStore dPoPNonceStore;
+  private final HttpTransport httpTransport;
+  private final Executor signingExecutor;
+  private final double refreshAheadFraction;
+  private final Executor backgroundExecutor;
+  private final LeaseManager leaseManager;
+  private final long leaseTimeInMilliseconds;
+  private final NegativeCachePolicy negativeCachePolicy;
+  private final TokenExpiryPolicy tokenExpiryPolicy;
+  private final ClientAssertionPool clientAssertionPool;
+  private final SingleFlight<CacheEntry<AccessTokenResponse>> inFlightLoads = new SingleFlight<>();
+  private final ConcurrentHashMap<String, RefreshSchedule> refreshSchedules = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, RememberedError> rememberedErrors = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, ClientAssertionTemplate> assertionTemplates = new ConcurrentHashMap<>();
+  // The cache keys derived per token request details, equal details built for each request share their key
+  private final ConcurrentHashMap<TokenRequestDetails, TokenCacheKey> cacheKeys = new ConcurrentHashMap<>();
+  private volatile TokenCacheKey defaultCacheKey;
 
   /**
    * @param client the client preforming the client credentials flow
    * @param metadataProvider a metadata provider accessing and caching the discovery endpoint
    * @param tokenCache a cache containing token responses
    * @param dPoPProofCreator a dpop proof creator
+   * @param dPoPNonceStore a store remembering the latest DPoP-Nonce of the token endpoint
+   * @param httpTransport the transport sending requests to the token endpoint
+   * @param signingExecutor the executor signing and resolving metadata in asynchronous token requests
+   * @param refreshAheadFraction the fraction of the token lifetime after which a token in use is renewed, 0 disables refresh-ahead
+   * @param backgroundExecutor the executor running background refreshes on its own threads, only required if refresh-ahead is enabled
+   * @param leaseManager the lease manager letting a single process request a token missing in a shared token cache, null disables leases
+   * @param leaseTimeInMilliseconds the time a lease is held at most, and the time others wait for the token before requesting it themselves
+   * @param negativeCachePolicy the policy for remembering error responses per cache key, null disables negative caching
+   * @param tokenExpiryPolicy the policy for when a cached token expires locally
+   * @param clientAssertionPool the pool of client assertions signed in the background, null signs on the requesting thread
    */
   DefaultClientCredentials(
       Client client,
       MetadataProvider metadataProvider,
       ExpiringCache<AccessTokenResponse> tokenCache,
-      DPoPProofCreator dPoPProofCreator
+      DPoPProofCreator dPoPProofCreator,
+      DPoPNonceStore dPoPNonceStore,
+      HttpTransport httpTransport,
+      Executor signingExecutor,
+      double refreshAheadFraction,
+      Executor backgroundExecutor,
+      LeaseManager leaseManager,
+      long leaseTimeInMilliseconds,
+      NegativeCachePolicy negativeCachePolicy,
+      TokenExpiryPolicy tokenExpiryPolicy,
+      ClientAssertionPool clientAssertionPool
   ) {
     this.client = client;
     this.metadataProvider = metadataProvider;
     this.tokenCache = tokenCache;
     this.dPoPProofCreator = dPoPProofCreator;
+    this.dPoPNonceStore = dPoPNonceStore;
+    this.httpTransport = httpTransport;
+    this.signingExecutor = signingExecutor;
+    this.refreshAheadFraction = refreshAheadFraction;
+    this.backgroundExecutor = backgroundExecutor;
+    this.leaseManager = leaseManager;
+    this.leaseTimeInMilliseconds = leaseTimeInMilliseconds;
+    this.negativeCachePolicy = negativeCachePolicy;
+    this.tokenExpiryPolicy = tokenExpiryPolicy;
+    this.clientAssertionPool = clientAssertionPool;
   }
 
   @Override
@@ -55,6 +119,11 @@ public final class DefaultClientCredentials implements ClientCredentials {
     return dPoPProofCreator;
   }
 
+  @Override
+  public CacheStats getTokenCacheStats() {
+    return tokenCache.stats();
+  }
+
   @Override
   public TokenResponse getAccessToken() throws HelseIdException {
     return getAccessToken(null);
@@ -63,76 +132,645 @@ public final class DefaultClientCredentials implements ClientCredentials {
   @Override
   public TokenResponse getAccessToken(TokenRequestDetails tokenRequestDetails) throws HelseIdException {
     var metadata = metadataProvider.getMetadata();
-    var scopeSet = getCurrentScope(client, tokenRequestDetails);
+    var cacheKey = createCacheKey(tokenRequestDetails);
+
+    var loaded = new AtomicBoolean();
+    AccessTokenResponse accessTokenResponse;
+    try {
+      // Concurrent misses on the same key share a single request to HelseID, also with caches not coordinating their loads
+      accessTokenResponse = tokenCache.getOrLoad(cacheKey, key -> {
+        loaded.set(true);
+        return inFlightLoads.execute(key, () -> loadAccessToken(metadata, tokenRequestDetails, key));
+      }).value();
+    } catch (UncachedTokenResponse e) {
+      return e.tokenResponse();
+    }
+
+    if (refreshAheadFraction > 0 && !loaded.get()) {
+      refreshAheadIfDue(cacheKey);
+    }
+    return accessTokenResponse;
+  }
+
+  @Override
+  public CompletableFuture<TokenResponse> getAccessTokenAsync(TokenRequestDetails tokenRequestDetails) {
+    var cacheKey = createCacheKey(tokenRequestDetails);
+
+    // A cached token completes the future immediately, loads share the in-flight requests of the blocking path
+    var loaded = new AtomicBoolean();
+    return tokenCache.getOrLoadAsync(cacheKey, key -> {
+          loaded.set(true);
+          return inFlightLoads.executeAsync(key, () -> loadAccessTokenAsync(tokenRequestDetails, key));
+        })
+        .handle((cachedEntry, throwable) -> {
+          if (throwable == null) {
+            if (refreshAheadFraction > 0 && !loaded.get()) {
+              refreshAheadIfDue(cacheKey);
+            }
+            return CompletableFuture.<TokenResponse>completedFuture(cachedEntry.value());
+          }
+
+          Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+          if (cause instanceof UncachedTokenResponse uncachedTokenResponse) {
+            return CompletableFuture.completedFuture(uncachedTokenResponse.tokenResponse());
+          }
+          return CompletableFuture.<TokenResponse>failedFuture(cause);
+        })
+        .thenCompose(Function.identity());
+  }
+
+  /**
+   * Record the use of a cached token, and renew it in the background if it has passed its refresh-ahead point
+   *
+   * @param cacheKey the key the token is cached on
+   */
+  private void refreshAheadIfDue(String cacheKey) {
+    RefreshSchedule refreshSchedule = refreshSchedules.get(cacheKey);
+    if (refreshSchedule == null) {
+      return;
+    }
+
+    if (!refreshSchedule.used) {
+      refreshSchedule.used = true;
+    }
+    if (refreshSchedule.refreshAtEpochMillisecond <= System.currentTimeMillis()) {
+      refresh(cacheKey, refreshSchedule);
+    }
+  }
+
+  /**
+   * Schedule the refresh-ahead of a cached token on the shared timing wheel, replacing the previous schedule on the key
+   *
+   * @param cacheKey the key the token is cached on
+   * @param refreshSchedule the refresh-ahead point of the token
+   */
+  private void scheduleRefresh(String cacheKey, RefreshSchedule refreshSchedule) {
+    RefreshSchedule replacedSchedule = refreshSchedules.put(cacheKey, refreshSchedule);
+    if (replacedSchedule != null) {
+      replacedSchedule.cancelTimer();
+    }
+    refreshSchedule.timer = TimingWheel.shared().schedule(
+        () -> onRefreshPoint(cacheKey, refreshSchedule), refreshSchedule.refreshAtEpochMillisecond);
+  }
 
-    var cacheKey = createCacheKey(client, tokenRequestDetails, scopeSet);
+  /**
+   * Renew a token used since it was cached when its refresh-ahead point passes, without waiting for the next access.
+   * The schedule of an unused token is kept until the token expires, an access until then still renews it
+   *
+   * @param cacheKey the key the token is cached on
+   * @param refreshSchedule the refresh-ahead point which passed
+   */
+  private void onRefreshPoint(String cacheKey, RefreshSchedule refreshSchedule) {
+    if (refreshSchedules.get(cacheKey) != refreshSchedule) {
+      return;
+    }
 
-    TokenResponse helseIdTokenResponse = tokenCache.get(cacheKey);
+    if (refreshSchedule.used) {
+      refresh(cacheKey, refreshSchedule);
+    } else {
+      refreshSchedule.timer = TimingWheel.shared().schedule(
+          () -> refreshSchedules.remove(cacheKey, refreshSchedule), refreshSchedule.expireAtEpochMillisecond);
+    }
+  }
 
-    if (helseIdTokenResponse != null) {
-      return helseIdTokenResponse;
+  /**
+   * Renew a cached token in the background.
+   * The schedule is removed before the refresh starts, so only one caller triggers the refresh.
+   * The time spent is recorded as a load by the statistics of the token cache
+   *
+   * @param cacheKey the key the token is cached on
+   * @param refreshSchedule the refresh-ahead point which passed
+   */
+  private void refresh(String cacheKey, RefreshSchedule refreshSchedule) {
+    if (!refreshSchedules.remove(cacheKey, refreshSchedule)) {
+      return;
     }
+    refreshSchedule.cancelTimer();
+
+    backgroundExecutor.execute(() -> {
+      long startNanoseconds = System.nanoTime();
+      try {
+        // Callers missing the token while it is renewed share the request of the renewal
+        CacheEntry<AccessTokenResponse> renewedEntry = inFlightLoads.execute(cacheKey, () -> {
+          long requestStartEpochMillisecond = System.currentTimeMillis();
+          TokenResponse tokenResponse = requestAccessToken(metadataProvider.getMetadata(), refreshSchedule.tokenRequestDetails);
+          return toCacheEntry(cacheKey, refreshSchedule.tokenRequestDetails, tokenResponse, requestStartEpochMillisecond);
+        });
+        tokenCache.put(cacheKey, renewedEntry.value(), renewedEntry.expireAtEpochMilliseconds());
+        tokenCache.statsCounter().recordLoadSuccess(System.nanoTime() - startNanoseconds);
+      } catch (HelseIdException | RuntimeException e) {
+        tokenCache.statsCounter().recordLoadFailure(System.nanoTime() - startNanoseconds);
+        retryRefreshLater(cacheKey, refreshSchedule);
+      }
+    });
+  }
 
-    AuthorizationGrant clientGrant = new ClientCredentialsGrant();
-    SignedJWT clientAssertion = ClientAssertion.createClientAssertionSignedJWT(
-        metadata.getIssuer().getValue(),
-        client,
-        tokenRequestDetails == null ? null : AssertionDetails.fromTokenRequestDetails(tokenRequestDetails)
+  /**
+   * Schedule a new refresh attempt after a failed refresh, the cached token is still served until it expires
+   *
+   * @param cacheKey the key the token is cached on
+   * @param failedSchedule the schedule of the failed refresh
+   */
+  private void retryRefreshLater(String cacheKey, RefreshSchedule failedSchedule) {
+    var retrySchedule = new RefreshSchedule(
+        System.currentTimeMillis() + REFRESH_RETRY_DELAY_IN_MILLISECONDS,
+        failedSchedule.expireAtEpochMillisecond,
+        failedSchedule.tokenRequestDetails
     );
+    // The token was in use when its refresh failed, so the retry renews it without waiting for another access
+    retrySchedule.used = failedSchedule.used;
+    if (refreshSchedules.putIfAbsent(cacheKey, retrySchedule) == null) {
+      retrySchedule.timer = TimingWheel.shared().schedule(
+          () -> onRefreshPoint(cacheKey, retrySchedule), retrySchedule.refreshAtEpochMillisecond);
+      prepareClientAssertion(cacheKey, retrySchedule.refreshAtEpochMillisecond);
+    }
+  }
+
+  /**
+   * Load a missing token into the token cache, unless an error response is remembered on the cache key
+   *
+   * @param metadata the metadata of HelseID
+   * @param tokenRequestDetails the details to be included in the token request
+   * @param cacheKey the key the token is cached on
+   * @return the token and its expiration
+   * @throws HelseIdException if a request to HelseID returned in an unprocessable failure,
+   * or an UncachedTokenResponse carrying a response which is not an access token
+   */
+  private CacheEntry<AccessTokenResponse> loadAccessToken(
+      OIDCProviderMetadata metadata,
+      TokenRequestDetails tokenRequestDetails,
+      String cacheKey
+  ) throws HelseIdException {
+    ErrorResponse rememberedErrorResponse = getRememberedErrorResponse(cacheKey);
+    if (rememberedErrorResponse != null) {
+      throw new UncachedTokenResponse(rememberedErrorResponse);
+    }
+
+    if (leaseManager != null) {
+      return requestAccessTokenUnderLease(metadata, tokenRequestDetails, cacheKey);
+    }
+
+    long requestStartEpochMillisecond = System.currentTimeMillis();
+    return toCacheEntry(cacheKey, tokenRequestDetails, requestAccessToken(metadata, tokenRequestDetails), requestStartEpochMillisecond);
+  }
+
+  /**
+   * Load a missing token into the token cache without blocking, unless an error response is remembered on the cache key
+   *
+   * @param tokenRequestDetails the details to be included in the token request
+   * @param cacheKey the key the token is cached on
+   * @return a future completed with the token and its expiration, or failed with an UncachedTokenResponse
+   * carrying a response which is not an access token
+   */
+  private CompletableFuture<CacheEntry<AccessTokenResponse>> loadAccessTokenAsync(TokenRequestDetails tokenRequestDetails, String cacheKey) {
+    ErrorResponse rememberedErrorResponse = getRememberedErrorResponse(cacheKey);
+    if (rememberedErrorResponse != null) {
+      return CompletableFuture.failedFuture(new UncachedTokenResponse(rememberedErrorResponse));
+    }
+
+    if (leaseManager != null) {
+      return requestAccessTokenUnderLeaseAsync(
+          tokenRequestDetails, cacheKey, System.currentTimeMillis() + leaseTimeInMilliseconds, INITIAL_LEASE_POLL_INTERVAL_IN_MILLISECONDS);
+    }
+
+    return requestAccessTokenAsync(tokenRequestDetails, cacheKey);
+  }
 
-    TokenResponse tokenResponse = TokenEndpoint.sendRequest(
+  /**
+   * Request a new access token from HelseID
+   *
+   * @param metadata the metadata of HelseID
+   * @param tokenRequestDetails the details to be included in the token request
+   * @return the token response from HelseID, might be a AccessTokenResponse or an ErrorResponse
+   * @throws HelseIdException if a request to HelseID returned in an unprocessable failure
+   */
+  private TokenResponse requestAccessToken(OIDCProviderMetadata metadata, TokenRequestDetails tokenRequestDetails) throws HelseIdException {
+    return TokenEndpoint.sendRequest(
         metadata.getTokenEndpointURI(),
         dPoPProofCreator,
-        clientAssertion,
-        clientGrant,
+        createClientAssertion(metadata, tokenRequestDetails),
+        new ClientCredentialsGrant(),
         Scope.parse(client.scope()),
         Collections.emptyList(),
-        null
+        null,
+        dPoPNonceStore,
+        httpTransport
     );
+  }
+
+  /**
+   * Request a new access token from HelseID while holding the lease on the cache key, so a single process requests the token
+   * on behalf of every process sharing the token cache. While another process holds the lease, the token cache is polled with
+   * an exponential backoff. If no token appears within the lease time, the token is requested without the lease.
+   *
+   * @param metadata the metadata of HelseID
+   * @param tokenRequestDetails the details to be included in the token request
+   * @param cacheKey the key the token is cached on
+   * @return the token and its expiration, requested from HelseID or cached by another process
+   * @throws HelseIdException if a request to HelseID returned in an unprocessable failure, or the wait is interrupted
+   */
+  private CacheEntry<AccessTokenResponse> requestAccessTokenUnderLease(
+      OIDCProviderMetadata metadata,
+      TokenRequestDetails tokenRequestDetails,
+      String cacheKey
+  ) throws HelseIdException {
+    long deadline = System.currentTimeMillis() + leaseTimeInMilliseconds;
+    long pollInterval = INITIAL_LEASE_POLL_INTERVAL_IN_MILLISECONDS;
 
-    if (tokenResponse instanceof AccessTokenResponse accessTokenResponse) {
-      var expireAtEpochMillisecond = Instant.now().plusSeconds(accessTokenResponse.expiresInSeconds()).toEpochMilli();
-      tokenCache.put(cacheKey, accessTokenResponse, expireAtEpochMillisecond);
+    while (true) {
+      LeaseManager.Lease lease = leaseManager.tryAcquire(cacheKey, leaseTimeInMilliseconds);
+      if (lease != null) {
+        try (lease) {
+          // Another process might have cached the token just before releasing the lease
+          CacheEntry<AccessTokenResponse> cachedEntry = tokenCache.getEntry(cacheKey);
+          if (cachedEntry != null) {
+            return cachedEntry;
+          }
+          long requestStartEpochMillisecond = System.currentTimeMillis();
+          CacheEntry<AccessTokenResponse> requestedEntry =
+              toCacheEntry(cacheKey, tokenRequestDetails, requestAccessToken(metadata, tokenRequestDetails), requestStartEpochMillisecond);
+          // Visible to the waiting processes before the lease is released
+          tokenCache.put(cacheKey, requestedEntry.value(), requestedEntry.expireAtEpochMilliseconds());
+          return requestedEntry;
+        }
+      }
+
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        long requestStartEpochMillisecond = System.currentTimeMillis();
+        return toCacheEntry(cacheKey, tokenRequestDetails, requestAccessToken(metadata, tokenRequestDetails), requestStartEpochMillisecond);
+      }
+
+      try {
+        Thread.sleep(Math.min(pollInterval, remaining));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new HelseIdException("Interrupted while waiting for a token requested by another process", e);
+      }
+
+      CacheEntry<AccessTokenResponse> cachedEntry = tokenCache.getEntry(cacheKey);
+      if (cachedEntry != null) {
+        return cachedEntry;
+      }
+      pollInterval = Math.min(pollInterval * 2, MAXIMUM_LEASE_POLL_INTERVAL_IN_MILLISECONDS);
     }
+  }
 
-    return tokenResponse;
+  /**
+   * Request a new access token from HelseID without blocking while holding the lease on the cache key.
+   * Polling the token cache while another process holds the lease is scheduled on the signing executor without blocking a thread
+   *
+   * @param tokenRequestDetails the details to be included in the token request
+   * @param cacheKey the key the token is cached on
+   * @param deadline the point in time after which the token is requested without the lease, in milliseconds since epoch
+   * @param pollInterval the delay before the token cache is polled again
+   * @return a future completed with the token and its expiration, requested from HelseID or cached by another process
+   */
+  private CompletableFuture<CacheEntry<AccessTokenResponse>> requestAccessTokenUnderLeaseAsync(
+      TokenRequestDetails tokenRequestDetails,
+      String cacheKey,
+      long deadline,
+      long pollInterval
+  ) {
+    LeaseManager.Lease lease;
+    try {
+      lease = leaseManager.tryAcquire(cacheKey, leaseTimeInMilliseconds);
+    } catch (HelseIdException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+
+    if (lease != null) {
+      CacheEntry<AccessTokenResponse> cachedEntry = tokenCache.getEntry(cacheKey);
+      if (cachedEntry != null) {
+        lease.release();
+        return CompletableFuture.completedFuture(cachedEntry);
+      }
+      return requestAccessTokenAsync(tokenRequestDetails, cacheKey)
+          .thenApply(requestedEntry -> {
+            tokenCache.put(cacheKey, requestedEntry.value(), requestedEntry.expireAtEpochMilliseconds());
+            return requestedEntry;
+          })
+          .whenComplete((requestedEntry, throwable) -> lease.release());
+    }
+
+    long remaining = deadline - System.currentTimeMillis();
+    if (remaining <= 0) {
+      return requestAccessTokenAsync(tokenRequestDetails, cacheKey);
+    }
+
+    Executor delayedExecutor = CompletableFuture.delayedExecutor(Math.min(pollInterval, remaining), TimeUnit.MILLISECONDS, signingExecutor);
+    return CompletableFuture
+        .supplyAsync(() -> tokenCache.getEntry(cacheKey), delayedExecutor)
+        .thenCompose(cachedEntry -> {
+          if (cachedEntry != null) {
+            return CompletableFuture.completedFuture(cachedEntry);
+          }
+          long nextPollInterval = Math.min(pollInterval * 2, MAXIMUM_LEASE_POLL_INTERVAL_IN_MILLISECONDS);
+          return requestAccessTokenUnderLeaseAsync(tokenRequestDetails, cacheKey, deadline, nextPollInterval);
+        });
+  }
+
+  /**
+   * Request a new access token from HelseID without blocking.
+   * Metadata resolution and signing runs on the signing executor, while the requests are sent by the transport
+   *
+   * @param tokenRequestDetails the details to be included in the token request
+   * @param cacheKey the key the token is cached on
+   * @return a future completed with the token and its expiration, or failed with an UncachedTokenResponse
+   * carrying a response which is not an access token
+   */
+  private CompletableFuture<CacheEntry<AccessTokenResponse>> requestAccessTokenAsync(TokenRequestDetails tokenRequestDetails, String cacheKey) {
+    long requestStartEpochMillisecond = System.currentTimeMillis();
+    return CompletableFuture
+        .supplyAsync(() -> {
+          try {
+            var metadata = metadataProvider.getMetadata();
+            return TokenEndpoint.sendRequestAsync(
+                metadata.getTokenEndpointURI(),
+                dPoPProofCreator,
+                createClientAssertion(metadata, tokenRequestDetails),
+                new ClientCredentialsGrant(),
+                Scope.parse(client.scope()),
+                Collections.emptyList(),
+                null,
+                dPoPNonceStore,
+                httpTransport,
+                signingExecutor
+            );
+          } catch (HelseIdException e) {
+            throw new CompletionException(e);
+          }
+        }, signingExecutor)
+        .thenCompose(Function.identity())
+        .thenApply(tokenResponse -> {
+          try {
+            return toCacheEntry(cacheKey, tokenRequestDetails, tokenResponse, requestStartEpochMillisecond);
+          } catch (UncachedTokenResponse e) {
+            throw new CompletionException(e);
+          }
+        });
   }
 
-  private String createCacheKey(Client client, TokenRequestDetails tokenRequestDetails, Set<String> scopeSet) {
-    MessageDigest digest;
+  /**
+   * Create a client assertion for the token request.
+   * The assertion is compiled once per cache key and issuer, leaving only the id, timestamps and signature to each request.
+   * The templates of about MAXIMUM_REMEMBERED_CACHE_KEYS cache keys are kept, as concurrent requests may briefly exceed the bound
+   *
+   * @param metadata the metadata of HelseID
+   * @param tokenRequestDetails the details to be included in the client assertion
+   * @return a signed client assertion
+   * @throws HelseIdException if signing fails
+   */
+  private SignedJWT createClientAssertion(OIDCProviderMetadata metadata, TokenRequestDetails tokenRequestDetails) throws HelseIdException {
+    String audience = metadata.getIssuer().getValue();
+    String cacheKey = createCacheKey(tokenRequestDetails);
+
+    ClientAssertionTemplate assertionTemplate = assertionTemplates.get(cacheKey);
+    if (assertionTemplate == null || !assertionTemplate.isCompiledFor(audience)) {
+      assertionTemplate = compileAssertionTemplate(cacheKey, audience, tokenRequestDetails);
+    }
+    return clientAssertionPool != null ? clientAssertionPool.take(assertionTemplate) : assertionTemplate.createSignedJWT();
+  }
+
+  /**
+   * Compile the client assertion template of a cache key, once for concurrent token requests on the key
+   *
+   * @param cacheKey the key the token is cached on
+   * @param audience the issuer of HelseID
+   * @param tokenRequestDetails the details to be included in the client assertion
+   * @return the template compiled for the audience
+   * @throws HelseIdException if the client has no key reference
+   */
+  private ClientAssertionTemplate compileAssertionTemplate(
+      String cacheKey,
+      String audience,
+      TokenRequestDetails tokenRequestDetails
+  ) throws HelseIdException {
+    if (!assertionTemplates.containsKey(cacheKey)) {
+      evictIfFull(assertionTemplates);
+    }
     try {
-      digest = MessageDigest.getInstance("SHA-256");
-    } catch (NoSuchAlgorithmException e) {
-      throw new RuntimeException(e);
+      return assertionTemplates.compute(cacheKey, (key, current) -> {
+        if (current != null && current.isCompiledFor(audience)) {
+          return current;
+        }
+        try {
+          return ClientAssertionTemplate.compile(
+              audience,
+              client,
+              tokenRequestDetails == null ? null : AssertionDetails.fromTokenRequestDetails(tokenRequestDetails)
+          );
+        } catch (HelseIdException e) {
+          throw new CompletionException(e);
+        }
+      });
+    } catch (CompletionException e) {
+      throw (HelseIdException) e.getCause();
     }
+  }
+
+  /**
+   * Prepare a successful token response for the token cache and schedule its refresh-ahead,
+   * or remember an error response if negative caching is enabled
+   *
+   * @param cacheKey the key the token is cached on
+   * @param tokenRequestDetails the details included in the token request
+   * @param tokenResponse the token response from HelseID
+   * @param requestStartEpochMillisecond the start of the token request, represented in milliseconds since epoch
+   * @return the token and its expiration
+   * @throws UncachedTokenResponse carrying the response if it is not an access token
+   */
+  private CacheEntry<AccessTokenResponse> toCacheEntry(
+      String cacheKey,
+      TokenRequestDetails tokenRequestDetails,
+      TokenResponse tokenResponse,
+      long requestStartEpochMillisecond
+  ) throws UncachedTokenResponse {
+    if (!(tokenResponse instanceof AccessTokenResponse accessTokenResponse)) {
+      if (negativeCachePolicy != null && tokenResponse instanceof ErrorResponse errorResponse) {
+        rememberErrorResponse(cacheKey, errorResponse);
+      }
+      throw new UncachedTokenResponse(tokenResponse);
+    }
+
+    if (negativeCachePolicy != null) {
+      rememberedErrors.remove(cacheKey);
+    }
+    // The lifetime is counted from the start of the request, the token was issued after it was sent
+    var expireAtEpochMillisecond = tokenExpiryPolicy.expireAtEpochMilliseconds(accessTokenResponse, requestStartEpochMillisecond);
+
+    // The next token request on the key is due at the refresh-ahead point, or otherwise when the token expires
+    var nextRequestAtEpochMillisecond = expireAtEpochMillisecond;
+    if (refreshAheadFraction > 0) {
+      // The fraction applies to the local lifetime, so a token is renewed before a safety margin or clock skew expires it
+      var refreshAtEpochMillisecond = requestStartEpochMillisecond
+          + (long) ((expireAtEpochMillisecond - requestStartEpochMillisecond) * refreshAheadFraction);
+      scheduleRefresh(cacheKey, new RefreshSchedule(refreshAtEpochMillisecond, expireAtEpochMillisecond, tokenRequestDetails));
+      nextRequestAtEpochMillisecond = refreshAtEpochMillisecond;
+    }
+    prepareClientAssertion(cacheKey, nextRequestAtEpochMillisecond);
+    return new CacheEntry<>(accessTokenResponse, expireAtEpochMillisecond);
+  }
 
-    StringBuilder builder = new StringBuilder();
-    builder.append(client.keyReference().getKeyId());
+  /**
+   * Have the client assertion of the next token request on a cache key signed in the background just before it is due
+   *
+   * @param cacheKey the key the token is cached on
+   * @param neededAtEpochMillisecond the time the next token request is due, represented in milliseconds since epoch
+   */
+  private void prepareClientAssertion(String cacheKey, long neededAtEpochMillisecond) {
+    if (clientAssertionPool == null) {
+      return;
+    }
+    ClientAssertionTemplate assertionTemplate = assertionTemplates.get(cacheKey);
+    if (assertionTemplate != null) {
+      clientAssertionPool.prepare(assertionTemplate, neededAtEpochMillisecond);
+    }
+  }
 
+  /**
+   * Access the error response remembered on a cache key, unless its backoff has passed
+   *
+   * @param cacheKey the key the token is cached on
+   * @return the remembered error response, null if none or negative caching is disabled
+   */
+  private ErrorResponse getRememberedErrorResponse(String cacheKey) {
+    if (negativeCachePolicy == null) {
+      return null;
+    }
+
+    RememberedError rememberedError = rememberedErrors.get(cacheKey);
+    if (rememberedError == null || rememberedError.expireAtEpochMillisecond() <= System.currentTimeMillis()) {
+      return null;
+    }
+    return rememberedError.errorResponse();
+  }
+
+  /**
+   * Remember an error response on a cache key, doubling the backoff of the previous failure on the same key.
+   * The errors of about MAXIMUM_REMEMBERED_CACHE_KEYS cache keys are remembered, an evicted key starts over with the first backoff
+   *
+   * @param cacheKey the key the token is cached on
+   * @param errorResponse the error response from HelseID
+   */
+  private void rememberErrorResponse(String cacheKey, ErrorResponse errorResponse) {
+    NegativeCachePolicy.Classification classification = negativeCachePolicy.classify(errorResponse);
+    if (classification == NegativeCachePolicy.Classification.UNCACHED) {
+      return;
+    }
+
+    if (!rememberedErrors.containsKey(cacheKey)) {
+      evictIfFull(rememberedErrors);
+    }
+    rememberedErrors.compute(cacheKey, (key, previous) -> {
+      int consecutiveFailures = previous == null ? 1 : previous.consecutiveFailures() + 1;
+      long backoff = negativeCachePolicy.backoffInMilliseconds(classification, consecutiveFailures);
+      return new RememberedError(errorResponse, consecutiveFailures, System.currentTimeMillis() + backoff);
+    });
+  }
+
+  /**
+   * Access the cache key of a token request, the key is remembered per distinct token request details
+   * and derived again when the key id of the client changes
+   *
+   * @param tokenRequestDetails the details to be included in the token request, might be null
+   * @return the string representation of the cache key
+   */
+  private String createCacheKey(TokenRequestDetails tokenRequestDetails) {
     if (tokenRequestDetails == null) {
-      return new String(digest.digest(builder.toString().getBytes()));
+      TokenCacheKey cacheKey = defaultCacheKey;
+      if (cacheKey == null || !cacheKey.isDerivedFrom(client)) {
+        cacheKey = TokenCacheKey.of(client, null);
+        defaultCacheKey = cacheKey;
+      }
+      return cacheKey.value();
     }
 
-    if (tokenRequestDetails.parentOrganizationNumber() != null) {
-      builder.append(tokenRequestDetails.parentOrganizationNumber());
+    TokenCacheKey rememberedCacheKey = cacheKeys.get(tokenRequestDetails);
+    if (rememberedCacheKey != null && rememberedCacheKey.isDerivedFrom(client)) {
+      return rememberedCacheKey.value();
     }
-    if (tokenRequestDetails.childOrganizationNumber() != null) {
-      builder.append(tokenRequestDetails.childOrganizationNumber());
+
+    TokenCacheKey cacheKey = TokenCacheKey.of(client, tokenRequestDetails);
+    if (rememberedCacheKey == null) {
+      evictIfFull(cacheKeys);
     }
-    if (tokenRequestDetails.sfmJournalId() != null) {
-      builder.append(tokenRequestDetails.sfmJournalId());
+    cacheKeys.put(tokenRequestDetails, cacheKey);
+    return cacheKey.value();
+  }
+
+  /**
+   * Make room for another entry in a map remembering state per cache key, bounding its size with many tenants.
+   * Keys are derived again, templates compiled again and errors learned again cheaply, so any entry is as good as another to evict
+   *
+   * @param rememberedPerCacheKey the map to make room in
+   */
+  private static void evictIfFull(ConcurrentHashMap<?, ?> rememberedPerCacheKey) {
+    if (rememberedPerCacheKey.size() >= MAXIMUM_REMEMBERED_CACHE_KEYS) {
+      Iterator<?> iterator = rememberedPerCacheKey.keySet().iterator();
+      if (iterator.hasNext()) {
+        rememberedPerCacheKey.remove(iterator.next());
+      }
     }
-    if (scopeSet != null) {
-      scopeSet.forEach(builder::append);
+  }
+
+  /**
+   * Carries a token response which is not cached out of a load of the token cache, sharing it with every caller waiting on the load
+   */
+  private static final class UncachedTokenResponse extends HelseIdException {
+    private final transient TokenResponse tokenResponse;
+
+    private UncachedTokenResponse(TokenResponse tokenResponse) {
+      super("The token response is not cached");
+      this.tokenResponse = tokenResponse;
     }
 
-    return new String(digest.digest(builder.toString().getBytes()));
+    private TokenResponse tokenResponse() {
+      return tokenResponse;
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+      // Used for control flow only, the stack trace is never read
+      return this;
+    }
   }
 
-  private Set<String> getCurrentScope(Client client, TokenRequestDetails tokenRequestDetails) {
-    if (tokenRequestDetails == null || tokenRequestDetails.scope().isEmpty()) {
-      return client.scope();
+  /**
+   * The point in time where a cached token in use should be renewed, and its timer on the timing wheel
+   */
+  private static final class RefreshSchedule {
+    private final long refreshAtEpochMillisecond;
+    private final long expireAtEpochMillisecond;
+    private final TokenRequestDetails tokenRequestDetails;
+    private volatile boolean used;
+    private volatile TimingWheel.Timeout timer;
+
+    /**
+     * @param refreshAtEpochMillisecond the timestamp of renewal, represented in milliseconds since epoch
+     * @param expireAtEpochMillisecond the timestamp where the cached token expires, represented in milliseconds since epoch
+     * @param tokenRequestDetails the details included in the renewal
+     */
+    private RefreshSchedule(long refreshAtEpochMillisecond, long expireAtEpochMillisecond, TokenRequestDetails tokenRequestDetails) {
+      this.refreshAtEpochMillisecond = refreshAtEpochMillisecond;
+      this.expireAtEpochMillisecond = expireAtEpochMillisecond;
+      this.tokenRequestDetails = tokenRequestDetails;
+    }
+
+    private void cancelTimer() {
+      TimingWheel.Timeout scheduledTimer = timer;
+      if (scheduledTimer != null) {
+        scheduledTimer.cancel();
+      }
     }
-    return tokenRequestDetails.scope();
+  }
+
+  /**
+   * An error response remembered on a cache key
+   * @param errorResponse the error response from HelseID
+   * @param consecutiveFailures the number of failed token requests on the cache key since the last success
+   * @param expireAtEpochMillisecond the timestamp after which the token is requested again, represented in milliseconds since epoch
+   */
+  private record RememberedError(ErrorResponse errorResponse, int consecutiveFailures, long expireAtEpochMillisecond) {
   }
 }
@@ -0,0 +1,238 @@
+package no.helseid.grants;
+
+import no.helseid.endpoints.token.ErrorResponse;
+import no.helseid.exceptions.HelseIdException;
+
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A policy for remembering error responses from HelseID per cache key, so a failing token request is not repeated on every call.
+ * Each consecutive failure on a cache key doubles the time the error response is remembered, up to a maximum,
+ * less a random jitter spreading the retries of many callers. Permanent errors, such as an unknown client or scope,
+ * are remembered longer than transient errors. A successful token request resets the backoff.
+ */
+public final class NegativeCachePolicy {
+  /**
+   * The error codes considered permanent, unless configured otherwise
+   */
+  public static final Set<String> DEFAULT_PERMANENT_ERRORS = Set.of(
+      "invalid_request",
+      "invalid_client",
+      "invalid_grant",
+      "unauthorized_client",
+      "unsupported_grant_type",
+      "invalid_scope",
+      "invalid_target"
+  );
+  /**
+   * The error codes which are never remembered, since the next request is expected to succeed
+   */
+  public static final Set<String> UNCACHED_ERRORS = Set.of("use_dpop_nonce");
+  /**
+   * The time a permanent error is remembered after the first failure, unless configured otherwise
+   */
+  public static final long DEFAULT_PERMANENT_INITIAL_BACKOFF_IN_MILLISECONDS = 30_000L;
+  /**
+   * The maximum time a permanent error is remembered, unless configured otherwise
+   */
+  public static final long DEFAULT_PERMANENT_MAXIMUM_BACKOFF_IN_MILLISECONDS = 600_000L;
+  /**
+   * The time a transient error is remembered after the first failure, unless configured otherwise
+   */
+  public static final long DEFAULT_TRANSIENT_INITIAL_BACKOFF_IN_MILLISECONDS = 1_000L;
+  /**
+   * The maximum time a transient error is remembered, unless configured otherwise
+   */
+  public static final long DEFAULT_TRANSIENT_MAXIMUM_BACKOFF_IN_MILLISECONDS = 30_000L;
+  /**
+   * The fraction of the backoff which is randomly subtracted, unless configured otherwise
+   */
+  public static final double DEFAULT_JITTER = 0.2;
+  private static final int MAXIMUM_BACKOFF_DOUBLINGS = 30;
+
+  private final Set<String> permanentErrors;
+  private final long permanentInitialBackoffInMilliseconds;
+  private final long permanentMaximumBackoffInMilliseconds;
+  private final long transientInitialBackoffInMilliseconds;
+  private final long transientMaximumBackoffInMilliseconds;
+  private final double jitter;
+
+  private NegativeCachePolicy(
+      Set<String> permanentErrors,
+      long permanentInitialBackoffInMilliseconds,
+      long permanentMaximumBackoffInMilliseconds,
+      long transientInitialBackoffInMilliseconds,
+      long transientMaximumBackoffInMilliseconds,
+      double jitter
+  ) {
+    this.permanentErrors = permanentErrors;
+    this.permanentInitialBackoffInMilliseconds = permanentInitialBackoffInMilliseconds;
+    this.permanentMaximumBackoffInMilliseconds = permanentMaximumBackoffInMilliseconds;
+    this.transientInitialBackoffInMilliseconds = transientInitialBackoffInMilliseconds;
+    this.transientMaximumBackoffInMilliseconds = transientMaximumBackoffInMilliseconds;
+    this.jitter = jitter;
+  }
+
+  /**
+   * Classify an error response by its error code
+   *
+   * @param errorResponse the error response from HelseID
+   * @return how long the error response should be remembered
+   */
+  public Classification classify(ErrorResponse errorResponse) {
+    String error = errorResponse.error();
+    if (error != null && UNCACHED_ERRORS.contains(error)) {
+      return Classification.UNCACHED;
+    }
+    if (error != null && permanentErrors.contains(error)) {
+      return Classification.PERMANENT;
+    }
+    return Classification.TRANSIENT;
+  }
+
+  /**
+   * Calculate the time an error response is remembered after a number of consecutive failures
+   *
+   * @param classification the classification of the error response
+   * @param consecutiveFailures the number of consecutive failures on the cache key, including the current one
+   * @return the time in milliseconds, 0 if the error response should not be remembered
+   */
+  public long backoffInMilliseconds(Classification classification, int consecutiveFailures) {
+    long initialBackoff;
+    long maximumBackoff;
+    switch (classification) {
+      case PERMANENT -> {
+        initialBackoff = permanentInitialBackoffInMilliseconds;
+        maximumBackoff = permanentMaximumBackoffInMilliseconds;
+      }
+      case TRANSIENT -> {
+        initialBackoff = transientInitialBackoffInMilliseconds;
+        maximumBackoff = transientMaximumBackoffInMilliseconds;
+      }
+      default -> {
+        return 0;
+      }
+    }
+
+    int doublings = Math.min(Math.max(consecutiveFailures - 1, 0), MAXIMUM_BACKOFF_DOUBLINGS);
+    long backoff = initialBackoff > (maximumBackoff >> doublings) ? maximumBackoff : initialBackoff << doublings;
+    long randomReduction = (long) (backoff * jitter * ThreadLocalRandom.current().nextDouble());
+    return backoff - randomReduction;
+  }
+
+  /**
+   * How long an error response is remembered
+   */
+  public enum Classification {
+    /**
+     * The error is not expected to resolve without a change of configuration, such as an unknown client or scope
+     */
+    PERMANENT,
+    /**
+     * The error is expected to resolve by itself, such as an unavailable server
+     */
+    TRANSIENT,
+    /**
+     * The error is resolved by the next request and is never remembered
+     */
+    UNCACHED
+  }
+
+  /**
+   * Builder class for NegativeCachePolicy
+   */
+  public static class Builder {
+    private Set<String> permanentErrors = DEFAULT_PERMANENT_ERRORS;
+    private long permanentInitialBackoffInMilliseconds = DEFAULT_PERMANENT_INITIAL_BACKOFF_IN_MILLISECONDS;
+    private long permanentMaximumBackoffInMilliseconds = DEFAULT_PERMANENT_MAXIMUM_BACKOFF_IN_MILLISECONDS;
+    private long transientInitialBackoffInMilliseconds = DEFAULT_TRANSIENT_INITIAL_BACKOFF_IN_MILLISECONDS;
+    private long transientMaximumBackoffInMilliseconds = DEFAULT_TRANSIENT_MAXIMUM_BACKOFF_IN_MILLISECONDS;
+    private double jitter = DEFAULT_JITTER;
+
+    /**
+     * Create a new Builder instance for NegativeCachePolicy
+     */
+    public Builder() {
+    }
+
+    /**
+     * Assign the error codes considered permanent, every other error code except use_dpop_nonce is considered transient
+     *
+     * @param permanentErrors the error codes considered permanent
+     * @return the current builder
+     */
+    public Builder withPermanentErrors(Set<String> permanentErrors) {
+      this.permanentErrors = permanentErrors;
+      return this;
+    }
+
+    /**
+     * Assign the backoff of permanent errors
+     *
+     * @param initialBackoffInMilliseconds the time the error is remembered after the first failure
+     * @param maximumBackoffInMilliseconds the maximum time the error is remembered
+     * @return the current builder
+     */
+    public Builder withPermanentBackoff(long initialBackoffInMilliseconds, long maximumBackoffInMilliseconds) {
+      this.permanentInitialBackoffInMilliseconds = initialBackoffInMilliseconds;
+      this.permanentMaximumBackoffInMilliseconds = maximumBackoffInMilliseconds;
+      return this;
+    }
+
+    /**
+     * Assign the backoff of transient errors
+     *
+     * @param initialBackoffInMilliseconds the time the error is remembered after the first failure
+     * @param maximumBackoffInMilliseconds the maximum time the error is remembered
+     * @return the current builder
+     */
+    public Builder withTransientBackoff(long initialBackoffInMilliseconds, long maximumBackoffInMilliseconds) {
+      this.transientInitialBackoffInMilliseconds = initialBackoffInMilliseconds;
+      this.transientMaximumBackoffInMilliseconds = maximumBackoffInMilliseconds;
+      return this;
+    }
+
+    /**
+     * Assign the fraction of the backoff which is randomly subtracted
+     *
+     * @param jitter the fraction, between 0 and 1
+     * @return the current builder
+     */
+    public Builder withJitter(double jitter) {
+      this.jitter = jitter;
+      return this;
+    }
+
+    /**
+     * Process the provided values into a NegativeCachePolicy object
+     *
+     * @return a negative cache policy
+     * @throws HelseIdException when the builder is misconfigured
+     */
+    public NegativeCachePolicy build() throws HelseIdException {
+      if (permanentErrors == null) {
+        throw new HelseIdException("No permanent errors are provided");
+      }
+      if (permanentInitialBackoffInMilliseconds <= 0 || transientInitialBackoffInMilliseconds <= 0) {
+        throw new HelseIdException("The initial backoff must be positive");
+      }
+      if (permanentMaximumBackoffInMilliseconds < permanentInitialBackoffInMilliseconds
+          || transientMaximumBackoffInMilliseconds < transientInitialBackoffInMilliseconds) {
+        throw new HelseIdException("The maximum backoff can not be less than the initial backoff");
+      }
+      if (jitter < 0 || jitter > 1) {
+        throw new HelseIdException("The jitter must be between 0 and 1");
+      }
+
+      return new NegativeCachePolicy(
+          Set.copyOf(permanentErrors),
+          permanentInitialBackoffInMilliseconds,
+          permanentMaximumBackoffInMilliseconds,
+          transientInitialBackoffInMilliseconds,
+          transientMaximumBackoffInMilliseconds,
+          jitter
+      );
+    }
+  }
+}
@@ -0,0 +1,108 @@
+package no.helseid.grants;
+
+import no.helseid.exceptions.HelseIdException;
+
+/**
+ * Options for prefetching the tokens of many token request details, such as the tenants of a multi-tenant client.
+ * The number of token requests in flight is bounded, and the start of token requests is paced by a rate cap,
+ * so warming a large number of tenants does not flood HelseID.
+ */
+public final class PrefetchOptions {
+  /**
+   * The maximum number of token requests in flight, unless configured otherwise
+   */
+  public static final int DEFAULT_MAXIMUM_CONCURRENCY = 16;
+  /**
+   * The maximum number of token requests started per second, unless configured otherwise
+   */
+  public static final double DEFAULT_MAXIMUM_REQUESTS_PER_SECOND = 100.0;
+  private static final PrefetchOptions DEFAULT_OPTIONS = new PrefetchOptions(DEFAULT_MAXIMUM_CONCURRENCY, DEFAULT_MAXIMUM_REQUESTS_PER_SECOND);
+
+  private final int maximumConcurrency;
+  private final double maximumRequestsPerSecond;
+
+  private PrefetchOptions(int maximumConcurrency, double maximumRequestsPerSecond) {
+    this.maximumConcurrency = maximumConcurrency;
+    this.maximumRequestsPerSecond = maximumRequestsPerSecond;
+  }
+
+  /**
+   * Access the default options
+   *
+   * @return options with the default concurrency and rate cap
+   */
+  public static PrefetchOptions defaultOptions() {
+    return DEFAULT_OPTIONS;
+  }
+
+  /**
+   * Access the maximum number of token requests in flight
+   *
+   * @return the maximum number of token requests in flight
+   */
+  public int maximumConcurrency() {
+    return maximumConcurrency;
+  }
+
+  /**
+   * Access the maximum number of token requests started per second
+   *
+   * @return the maximum number of token requests started per second, 0 if the rate is not capped
+   */
+  public double maximumRequestsPerSecond() {
+    return maximumRequestsPerSecond;
+  }
+
+  /**
+   * Builder class for PrefetchOptions
+   */
+  public static class Builder {
+    private int maximumConcurrency = DEFAULT_MAXIMUM_CONCURRENCY;
+    private double maximumRequestsPerSecond = DEFAULT_MAXIMUM_REQUESTS_PER_SECOND;
+
+    /**
+     * Create a new Builder instance for PrefetchOptions
+     */
+    public Builder() {
+    }
+
+    /**
+     * Assign the maximum number of token requests in flight
+     *
+     * @param maximumConcurrency the maximum number of token requests in flight, at least one
+     * @return the current builder
+     */
+    public Builder withMaximumConcurrency(int maximumConcurrency) {
+      this.maximumConcurrency = maximumConcurrency;
+      return this;
+    }
+
+    /**
+     * Assign the maximum number of token requests started per second
+     *
+     * @param maximumRequestsPerSecond the maximum number of token requests started per second, 0 to not cap the rate
+     * @return the current builder
+     */
+    public Builder withMaximumRequestsPerSecond(double maximumRequestsPerSecond) {
+      this.maximumRequestsPerSecond = maximumRequestsPerSecond;
+      return this;
+    }
+
+    /**
+     * Process the provided values into a PrefetchOptions object
+     *
+     * @return prefetch options
+     * @throws HelseIdException when the builder is misconfigured
+     */
+    public PrefetchOptions build() throws HelseIdException {
+      if (maximumConcurrency <= 0) {
+        throw new HelseIdException("The maximum concurrency must be positive");
+      }
+      if (maximumRequestsPerSecond < 0 || Double.isNaN(maximumRequestsPerSecond)) {
+        throw new HelseIdException("The maximum number of requests per second can not be negative");
+      }
+
+      return new PrefetchOptions(maximumConcurrency, maximumRequestsPerSecond);
+    }
+  }
+}
@@ -0,0 +1,35 @@
+package no.helseid.grants;
+
+import java.util.List;
+
+/**
+ * The outcome of prefetching the tokens of many token request details
+ *
+ * @param results the result per token request details, in the order they were provided
+ * @param elapsedInMilliseconds the time from the start of the first token request until the last completed
+ */
+public record PrefetchReport(List<PrefetchResult> results, long elapsedInMilliseconds) {
+  /**
+   * The number of token request details resulting in an access token
+   * @return the number of successful results
+   */
+  public long successCount() {
+    return results.stream().filter(PrefetchResult::isSuccess).count();
+  }
+
+  /**
+   * The number of token request details resulting in an error response or a failure
+   * @return the number of unsuccessful results
+   */
+  public long failureCount() {
+    return results.size() - successCount();
+  }
+
+  /**
+   * The results of token request details resulting in an error response or a failure
+   * @return the unsuccessful results, in the order they were provided
+   */
+  public List<PrefetchResult> failures() {
+    return results.stream().filter(result -> !result.isSuccess()).toList();
+  }
+}
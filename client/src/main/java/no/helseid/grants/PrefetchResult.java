@@ -0,0 +1,30 @@
+package no.helseid.grants;
+
+import no.helseid.endpoints.token.AccessTokenResponse;
+import no.helseid.endpoints.token.TokenRequestDetails;
+import no.helseid.endpoints.token.TokenResponse;
+import no.helseid.exceptions.HelseIdException;
+
+/**
+ * The outcome of prefetching the token of a single token request details
+ *
+ * @param tokenRequestDetails the details of the token request, null if requested without details
+ * @param tokenResponse the token response from HelseID, might be a AccessTokenResponse or an ErrorResponse, null if the request failed
+ * @param failure the failure of the token request, null if HelseID responded
+ * @param durationInMilliseconds the time from the start of the token request until it completed
+ */
+public record PrefetchResult(
+    TokenRequestDetails tokenRequestDetails,
+    TokenResponse tokenResponse,
+    HelseIdException failure,
+    long durationInMilliseconds
+) {
+  /**
+   * Check if an access token was cached
+   *
+   * @return true if HelseID responded with an access token
+   */
+  public boolean isSuccess() {
+    return tokenResponse instanceof AccessTokenResponse;
+  }
+}
@@ -0,0 +1,165 @@
+package no.helseid.grants;
+
+import com.nimbusds.jwt.JWTParser;
+import no.helseid.endpoints.token.AccessTokenResponse;
+import no.helseid.exceptions.HelseIdException;
+
+import java.text.ParseException;
+import java.time.Instant;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A policy for when a cached token expires locally.
+ * The lifetime of a token is counted from the start of the token request, so the time spent on the network is not added to it.
+ * A safety margin expires the token before it is rejected downstream, and a random jitter spreads the expiry,
+ * and thus the renewal, of a token cached by many replicas at the same time.
+ * With clock skew compensation, the expiration of a JWT access token is converted from the clock of HelseID,
+ * as estimated from the Date header of the response, to the local clock.
+ */
+public final class TokenExpiryPolicy {
+  /**
+   * The time a token is expired before its end of life, unless configured otherwise
+   */
+  public static final long DEFAULT_SAFETY_MARGIN_IN_MILLISECONDS = 0L;
+  /**
+   * The maximum random time a token is expired in addition to the safety margin, unless configured otherwise
+   */
+  public static final long DEFAULT_JITTER_IN_MILLISECONDS = 0L;
+  private static final long DATE_HEADER_RESOLUTION_IN_MILLISECONDS = 1000L;
+  private static final TokenExpiryPolicy DEFAULT = new TokenExpiryPolicy(DEFAULT_SAFETY_MARGIN_IN_MILLISECONDS, DEFAULT_JITTER_IN_MILLISECONDS, false);
+
+  private final long safetyMarginInMilliseconds;
+  private final long jitterInMilliseconds;
+  private final boolean clockSkewCompensation;
+
+  private TokenExpiryPolicy(long safetyMarginInMilliseconds, long jitterInMilliseconds, boolean clockSkewCompensation) {
+    this.safetyMarginInMilliseconds = safetyMarginInMilliseconds;
+    this.jitterInMilliseconds = jitterInMilliseconds;
+    this.clockSkewCompensation = clockSkewCompensation;
+  }
+
+  /**
+   * Access the default policy, expiring a token at the end of its lifetime counted from the start of the token request
+   *
+   * @return the default policy
+   */
+  public static TokenExpiryPolicy defaultPolicy() {
+    return DEFAULT;
+  }
+
+  /**
+   * Calculate when a token expires locally. The safety margin and jitter never shorten the lifetime by more than a half
+   *
+   * @param accessTokenResponse the token response from HelseID
+   * @param requestStartEpochMilliseconds the start of the token request, in milliseconds since epoch
+   * @return the local expiration, in milliseconds since epoch
+   */
+  public long expireAtEpochMilliseconds(AccessTokenResponse accessTokenResponse, long requestStartEpochMilliseconds) {
+    long lifetime = accessTokenResponse.expiresInSeconds() * 1000;
+    long expireAt = requestStartEpochMilliseconds + lifetime;
+
+    if (clockSkewCompensation) {
+      expireAt = Math.min(expireAt, serverExpiryInLocalClock(accessTokenResponse, requestStartEpochMilliseconds));
+    }
+
+    long reduction = safetyMarginInMilliseconds;
+    if (jitterInMilliseconds > 0) {
+      reduction += ThreadLocalRandom.current().nextLong(jitterInMilliseconds + 1);
+    }
+    return expireAt - Math.min(reduction, lifetime / 2);
+  }
+
+  /**
+   * Convert the expiration claim of a JWT access token to the local clock, using the Date header of the response.
+   * The Date header is truncated to seconds and was set at some point after the request started,
+   * thus the skew is overestimated by at most the duration of the request and a second, expiring the token early rather than late
+   *
+   * @param accessTokenResponse the token response from HelseID
+   * @param requestStartEpochMilliseconds the start of the token request, in milliseconds since epoch
+   * @return the expiration in the local clock, Long.MAX_VALUE if the token is opaque or the Date header is missing
+   */
+  private static long serverExpiryInLocalClock(AccessTokenResponse accessTokenResponse, long requestStartEpochMilliseconds) {
+    Instant serverDate = accessTokenResponse.serverDate();
+    if (serverDate == null || accessTokenResponse.accessToken() == null) {
+      return Long.MAX_VALUE;
+    }
+
+    Date expirationTime;
+    try {
+      expirationTime = JWTParser.parse(accessTokenResponse.accessToken()).getJWTClaimsSet().getExpirationTime();
+    } catch (ParseException e) {
+      return Long.MAX_VALUE;
+    }
+    if (expirationTime == null) {
+      return Long.MAX_VALUE;
+    }
+
+    long maximumSkew = serverDate.toEpochMilli() + DATE_HEADER_RESOLUTION_IN_MILLISECONDS - requestStartEpochMilliseconds;
+    return expirationTime.getTime() - maximumSkew;
+  }
+
+  /**
+   * Builder class for TokenExpiryPolicy
+   */
+  public static class Builder {
+    private long safetyMarginInMilliseconds = DEFAULT_SAFETY_MARGIN_IN_MILLISECONDS;
+    private long jitterInMilliseconds = DEFAULT_JITTER_IN_MILLISECONDS;
+    private boolean clockSkewCompensation;
+
+    /**
+     * Create a new Builder instance for TokenExpiryPolicy
+     */
+    public Builder() {
+    }
+
+    /**
+     * Assign the time a token is expired before its end of life
+     *
+     * @param safetyMarginInMilliseconds the safety margin in milliseconds
+     * @return the current builder
+     */
+    public Builder withSafetyMargin(long safetyMarginInMilliseconds) {
+      this.safetyMarginInMilliseconds = safetyMarginInMilliseconds;
+      return this;
+    }
+
+    /**
+     * Assign the maximum random time a token is expired in addition to the safety margin
+     *
+     * @param jitterInMilliseconds the maximum jitter in milliseconds
+     * @return the current builder
+     */
+    public Builder withJitter(long jitterInMilliseconds) {
+      this.jitterInMilliseconds = jitterInMilliseconds;
+      return this;
+    }
+
+    /**
+     * Enable conversion of the expiration claim of JWT access tokens to the local clock, disabled by default
+     *
+     * @return the current builder
+     */
+    public Builder withClockSkewCompensation() {
+      this.clockSkewCompensation = true;
+      return this;
+    }
+
+    /**
+     * Process the provided values into a TokenExpiryPolicy object
+     *
+     * @return a token expiry policy
+     * @throws HelseIdException when the builder is misconfigured
+     */
+    public TokenExpiryPolicy build() throws HelseIdException {
+      if (safetyMarginInMilliseconds < 0) {
+        throw new HelseIdException("The safety margin can not be negative");
+      }
+      if (jitterInMilliseconds < 0) {
+        throw new HelseIdException("The jitter can not be negative");
+      }
+
+      return new TokenExpiryPolicy(safetyMarginInMilliseconds, jitterInMilliseconds, clockSkewCompensation);
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package no.helseid.grants;
+
+import no.helseid.endpoints.token.TokenRequestDetails;
+import no.helseid.endpoints.token.TokenResponse;
+import no.helseid.exceptions.HelseIdException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Requests the tokens of many token request details thru the asynchronous token requests of a client credentials,
+ * with a bounded number of requests in flight and the start of each request paced by the rate cap
+ */
+final class TokenPrefetcher {
+  private TokenPrefetcher() {
+  }
+
+  /**
+   * Request the tokens of the token request details, blocking until every request has completed
+   *
+   * @param clientCredentials the client credentials caching the tokens
+   * @param tokenRequestDetails the details of each token request, null elements request the token without details
+   * @param prefetchOptions the concurrency and rate cap of the token requests
+   * @return the result of every token request
+   * @throws HelseIdException if the calling thread is interrupted while waiting
+   */
+  static PrefetchReport prefetch(
+      ClientCredentials clientCredentials,
+      Collection<TokenRequestDetails> tokenRequestDetails,
+      PrefetchOptions prefetchOptions
+  ) throws HelseIdException {
+    List<TokenRequestDetails> requests = new ArrayList<>(tokenRequestDetails);
+    PrefetchResult[] results = new PrefetchResult[requests.size()];
+    CountDownLatch completed = new CountDownLatch(requests.size());
+    Semaphore inFlight = new Semaphore(prefetchOptions.maximumConcurrency());
+    long intervalNanoseconds = prefetchOptions.maximumRequestsPerSecond() > 0
+        ? (long) (TimeUnit.SECONDS.toNanos(1) / prefetchOptions.maximumRequestsPerSecond())
+        : 0;
+
+    long startNanoseconds = System.nanoTime();
+    long nextStartNanoseconds = startNanoseconds;
+    try {
+      for (int i = 0; i < requests.size(); i++) {
+        inFlight.acquire();
+        if (intervalNanoseconds > 0) {
+          long waitNanoseconds = nextStartNanoseconds - System.nanoTime();
+          if (waitNanoseconds > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanoseconds);
+          }
+          // A request held back by the concurrency limit does not earn a burst of requests afterwards
+          nextStartNanoseconds = Math.max(nextStartNanoseconds, System.nanoTime()) + intervalNanoseconds;
+        }
+
+        int index = i;
+        TokenRequestDetails details = requests.get(i);
+        long requestStartNanoseconds = System.nanoTime();
+        CompletableFuture<TokenResponse> tokenResponse;
+        try {
+          tokenResponse = clientCredentials.getAccessTokenAsync(details);
+        } catch (RuntimeException e) {
+          tokenResponse = CompletableFuture.failedFuture(e);
+        }
+        tokenResponse.whenComplete((response, throwable) -> {
+          long durationInMilliseconds = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - requestStartNanoseconds);
+          results[index] = throwable == null
+              ? new PrefetchResult(details, response, null, durationInMilliseconds)
+              : new PrefetchResult(details, null, toHelseIdException(throwable), durationInMilliseconds);
+          inFlight.release();
+          completed.countDown();
+        });
+      }
+      completed.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new HelseIdException("Interrupted while prefetching tokens", e);
+    }
+
+    return new PrefetchReport(
+        List.of(results),
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanoseconds)
+    );
+  }
+
+  private static HelseIdException toHelseIdException(Throwable throwable) {
+    Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+    return cause instanceof HelseIdException helseIdException
+        ? helseIdException
+        : new HelseIdException("The token request failed", cause);
+  }
+}
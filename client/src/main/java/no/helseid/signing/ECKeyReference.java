@@ -8,7 +8,7 @@ import java.util.UUID;
 /**
  * A Key reference to a elliptic curve key pair
  */
-public final class ECKeyReference implements KeyReference {
+public final class ECKeyReference extends MemoizingKeyReference {
   private static final String ALGORITHM = "EC";
   private final KeyPair keyPair;
   private final Algorithm algorithm;
@@ -13,10 +13,12 @@ import java.util.UUID;
 /**
  * A key reference to a JWK
  */
-public final class JWKKeyReference implements KeyReference {
+public final class JWKKeyReference extends MemoizingKeyReference {
   private final JWK jwk;
   private final Algorithm algorithm;
   private final String keyId;
+  private volatile PrivateKey privateKey;
+  private volatile PublicKey publicKey;
 
   /**
    * Creates a static reference to a json web key with a specified algorithm
@@ -60,6 +62,31 @@ public final class JWKKeyReference implements KeyReference {
 
   @Override
   public PrivateKey getPrivateKey() throws HelseIdException {
+    PrivateKey derivedPrivateKey = privateKey;
+    if (derivedPrivateKey == null) {
+      derivedPrivateKey = derivePrivateKey();
+      privateKey = derivedPrivateKey;
+    }
+    return derivedPrivateKey;
+  }
+
+  @Override
+  public PublicKey getPublicKey() throws HelseIdException {
+    PublicKey derivedPublicKey = publicKey;
+    if (derivedPublicKey == null) {
+      derivedPublicKey = derivePublicKey();
+      publicKey = derivedPublicKey;
+    }
+    return derivedPublicKey;
+  }
+
+  /**
+   * Derive the private key from the JWK
+   *
+   * @return the private part of the JWK
+   * @throws HelseIdException if the key type is unsupported
+   */
+  private PrivateKey derivePrivateKey() throws HelseIdException {
     try {
       if (jwk.getKeyType().equals(KeyType.RSA)) {
         return jwk.toRSAKey().toPrivateKey();
@@ -72,8 +99,13 @@ public final class JWKKeyReference implements KeyReference {
     throw new HelseIdException("Unsupported key type in JWK");
   }
 
-  @Override
-  public PublicKey getPublicKey() throws HelseIdException {
+  /**
+   * Derive the public key from the JWK
+   *
+   * @return the public part of the JWK
+   * @throws HelseIdException if the key type is unsupported
+   */
+  private PublicKey derivePublicKey() throws HelseIdException {
     try {
       if (jwk.getKeyType().equals(KeyType.RSA)) {
         return jwk.toRSAKey().toPublicKey();
@@ -0,0 +1,25 @@
+package no.helseid.signing;
+
+import no.helseid.exceptions.HelseIdException;
+
+/**
+ * A key reference to a fixed key, remembering the signing material prepared for it
+ */
+abstract class MemoizingKeyReference implements KeyReference {
+  private volatile SigningMaterial signingMaterial;
+
+  /**
+   * Access the signing material of the key, prepared on first use
+   *
+   * @return the signing material of the key
+   * @throws HelseIdException if the signing material can not be prepared
+   */
+  final SigningMaterial getSigningMaterial() throws HelseIdException {
+    SigningMaterial preparedSigningMaterial = signingMaterial;
+    if (preparedSigningMaterial == null) {
+      preparedSigningMaterial = SigningMaterial.create(this);
+      signingMaterial = preparedSigningMaterial;
+    }
+    return preparedSigningMaterial;
+  }
+}
@@ -8,7 +8,7 @@ import java.util.UUID;
 /**
  * A Key reference to an RSA key
  */
-public final class RSAKeyReference implements KeyReference {
+public final class RSAKeyReference extends MemoizingKeyReference {
   private static final String ALGORITHM = "RSA";
   private static final int DEFAULT_KEY_SIZE = 4096;
   private final KeyPair keyPair;
@@ -0,0 +1,136 @@
+package no.helseid.signing;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JOSEObjectType;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.JWSSigner;
+import com.nimbusds.jose.jwk.JWK;
+import com.nimbusds.jose.util.Base64URL;
+import no.helseid.exceptions.HelseIdException;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static no.helseid.signing.Util.createJWKFromKeyReference;
+import static no.helseid.signing.Util.createJWSSignerFromKeyReference;
+
+/**
+ * Signing material prepared once per key, leaving only the signature operation to each signing.
+ * The material is remembered by the key references of this package, other references get new material on each access,
+ * so the holder of such a reference should keep the material while it {@link #isPreparedFor(KeyReference) is prepared for} the key
+ */
+public final class SigningMaterial {
+  private final String keyId;
+  private final Algorithm algorithm;
+  private final JWSAlgorithm jwsAlgorithm;
+  private final JWSSigner signer;
+  private final JWK jwk;
+  private final Base64URL thumbprint;
+  private final Map<JOSEObjectType, JWSHeader> headerMap = new ConcurrentHashMap<>();
+
+  private SigningMaterial(String keyId, Algorithm algorithm, JWSSigner signer, JWK jwk, Base64URL thumbprint) {
+    this.keyId = keyId;
+    this.algorithm = algorithm;
+    this.jwsAlgorithm = JWSAlgorithm.parse(algorithm.name());
+    this.signer = signer;
+    this.jwk = jwk;
+    this.thumbprint = thumbprint;
+  }
+
+  /**
+   * Access the signing material of a key reference, prepared once for the key references of this package
+   *
+   * @param keyReference the key reference
+   * @return the signing material of the currently referenced key
+   * @throws HelseIdException if the signing material can not be prepared
+   */
+  public static SigningMaterial of(KeyReference keyReference) throws HelseIdException {
+    if (keyReference instanceof MemoizingKeyReference memoizingKeyReference) {
+      return memoizingKeyReference.getSigningMaterial();
+    }
+    return create(keyReference);
+  }
+
+  /**
+   * Prepare new signing material for a key reference, bypassing the material remembered by the reference
+   *
+   * @param keyReference the key reference
+   * @return new signing material of the currently referenced key
+   * @throws HelseIdException if the signing material can not be prepared
+   */
+  public static SigningMaterial create(KeyReference keyReference) throws HelseIdException {
+    JWK jwk = createJWKFromKeyReference(keyReference);
+    JWSSigner signer = createJWSSignerFromKeyReference(keyReference);
+
+    try {
+      return new SigningMaterial(keyReference.getKeyId(), keyReference.getAlgorithm(), signer, jwk, jwk.computeThumbprint());
+    } catch (JOSEException e) {
+      throw new HelseIdException("Unable to compute the thumbprint of the key", e);
+    }
+  }
+
+  /**
+   * Check if the signing material is prepared for the key currently referenced
+   *
+   * @param keyReference the key reference
+   * @return true if the key id and algorithm of the reference matches the signing material
+   */
+  public boolean isPreparedFor(KeyReference keyReference) {
+    return Objects.equals(keyId, keyReference.getKeyId()) && algorithm == keyReference.getAlgorithm();
+  }
+
+  /**
+   * Access a JWS header with algorithm, type and key id, built once per type
+   *
+   * @param type the type of the JWT to be signed
+   * @return a JWS header for the key
+   */
+  public JWSHeader getHeader(JOSEObjectType type) {
+    return headerMap.computeIfAbsent(type, headerType -> new JWSHeader.Builder(jwsAlgorithm)
+        .type(headerType)
+        .keyID(keyId)
+        .build());
+  }
+
+  /**
+   * Access the id of the key
+   * @return the id of the key
+   */
+  public String getKeyId() {
+    return keyId;
+  }
+
+  /**
+   * Access the algorithm of the key
+   * @return the nimbus representation of the algorithm
+   */
+  public JWSAlgorithm getJWSAlgorithm() {
+    return jwsAlgorithm;
+  }
+
+  /**
+   * Access the prepared signer, safe for concurrent use
+   * @return the prepared signer
+   */
+  public JWSSigner getSigner() {
+    return signer;
+  }
+
+  /**
+   * Access the key as a JWK, including the private part
+   * @return the key as a JWK
+   */
+  public JWK getJWK() {
+    return jwk;
+  }
+
+  /**
+   * Access the SHA-256 JWK thumbprint of the key
+   * @return the thumbprint of the key
+   */
+  public Base64URL getThumbprint() {
+    return thumbprint;
+  }
+}
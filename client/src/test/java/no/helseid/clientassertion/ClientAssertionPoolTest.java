@@ -0,0 +1,115 @@
+package no.helseid.clientassertion;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.crypto.RSASSAVerifier;
+import com.nimbusds.jose.jwk.KeyUse;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.JWKGenerator;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jwt.SignedJWT;
+import no.helseid.configuration.Client;
+import no.helseid.exceptions.HelseIdException;
+import no.helseid.signing.JWKKeyReference;
+import org.junit.jupiter.api.Test;
+
+import java.text.ParseException;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClientAssertionPoolTest {
+  private static final JWKGenerator<RSAKey> rsaKeyGenerator = new RSAKeyGenerator(2048)
+      .keyUse(KeyUse.SIGNATURE)
+      .algorithm(JWSAlgorithm.PS256);
+  private static final String AUTHORITY = "http://localhost:3476";
+  private final RSAKey rsaKey;
+  private final ClientAssertionTemplate template;
+
+  public ClientAssertionPoolTest() throws JOSEException, HelseIdException {
+    rsaKey = rsaKeyGenerator.keyID(UUID.randomUUID().toString()).generate();
+    Client client = new Client("clientId", JWKKeyReference.parse(rsaKey.toJSONString()), Collections.singleton("nhn:helseid/test"));
+    template = ClientAssertionTemplate.compile(AUTHORITY, client, null);
+  }
+
+  @Test
+  void prepared_assertions_should_be_handed_out_once() throws HelseIdException, JOSEException, ParseException {
+    ClientAssertionPool pool = new ClientAssertionPool.Builder()
+        .withSize(2)
+        .setCustomSigningExecutor(Runnable::run)
+        .build();
+
+    pool.prepare(template, System.currentTimeMillis());
+    assertEquals(2, pool.available(template));
+
+    SignedJWT first = pool.take(template);
+    SignedJWT second = pool.take(template);
+    assertEquals(0, pool.available(template));
+
+    assertTrue(first.verify(new RSASSAVerifier(rsaKey)));
+    assertNotEquals(first.getJWTClaimsSet().getJWTID(), second.getJWTClaimsSet().getJWTID());
+  }
+
+  @Test
+  void a_take_without_a_prepared_assertion_should_sign_on_the_calling_thread_only() throws HelseIdException {
+    List<Runnable> queued = new CopyOnWriteArrayList<>();
+    ClientAssertionPool pool = new ClientAssertionPool.Builder()
+        .setCustomSigningExecutor(queued::add)
+        .build();
+
+    assertNotNull(pool.take(template));
+
+    assertEquals(0, pool.available(template));
+    assertTrue(queued.isEmpty());
+  }
+
+  @Test
+  void assertions_should_not_be_signed_before_they_are_needed() throws HelseIdException {
+    List<Runnable> queued = new CopyOnWriteArrayList<>();
+    ClientAssertionPool pool = new ClientAssertionPool.Builder()
+        .setCustomSigningExecutor(queued::add)
+        .build();
+
+    pool.prepare(template, System.currentTimeMillis() + 60_000);
+
+    assertTrue(queued.isEmpty());
+    assertEquals(0, pool.available(template));
+  }
+
+  @Test
+  void assertions_too_close_to_their_expiry_should_not_be_handed_out() throws HelseIdException {
+    AtomicLong clock = new AtomicLong(System.currentTimeMillis());
+    List<Runnable> queued = new CopyOnWriteArrayList<>();
+    ClientAssertionPool pool = new ClientAssertionPool.Builder()
+        .withMinimumRemainingLifetime(3_000)
+        .setCustomSigningExecutor(queued::add)
+        .setCustomClock(clock::get)
+        .build();
+
+    pool.prepare(template, clock.get());
+    queued.remove(0).run();
+    assertEquals(1, pool.available(template));
+
+    // The pooled assertion is usable for at most two of its five seconds
+    clock.addAndGet(2_100);
+    assertNotNull(pool.take(template));
+
+    assertEquals(0, pool.available(template));
+    assertTrue(queued.isEmpty());
+  }
+
+  @Test
+  void build_should_fail_if_misconfigured() {
+    HelseIdException emptyPool = assertThrows(HelseIdException.class, () -> new ClientAssertionPool.Builder().withSize(0).build());
+    assertEquals("The pool size must be positive", emptyPool.getMessage());
+
+    HelseIdException unusable = assertThrows(HelseIdException.class, () -> new ClientAssertionPool.Builder()
+        .withMinimumRemainingLifetime(ClientAssertion.TOKEN_LIFETIME_IN_MILLISECONDS)
+        .build());
+    assertEquals("The minimum remaining lifetime must leave at least a second to use an assertion", unusable.getMessage());
+  }
+}
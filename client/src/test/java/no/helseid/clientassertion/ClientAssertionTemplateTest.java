@@ -0,0 +1,87 @@
+package no.helseid.clientassertion;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSVerifier;
+import com.nimbusds.jose.crypto.RSASSAVerifier;
+import com.nimbusds.jose.jwk.KeyUse;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.jwk.gen.JWKGenerator;
+import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import no.helseid.configuration.Client;
+import no.helseid.exceptions.HelseIdException;
+import no.helseid.signing.JWKKeyReference;
+import org.junit.jupiter.api.Test;
+
+import java.text.ParseException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClientAssertionTemplateTest {
+  private static final JWKGenerator<RSAKey> rsaKeyGenerator = new RSAKeyGenerator(2048)
+      .keyUse(KeyUse.SIGNATURE)
+      .algorithm(JWSAlgorithm.PS256);
+  private static final String AUTHORITY = "http://localhost:3476";
+  private final RSAKey rsaKey;
+  private final Client client;
+
+  public ClientAssertionTemplateTest() throws JOSEException, HelseIdException {
+    rsaKey = rsaKeyGenerator.keyID(UUID.randomUUID().toString()).generate();
+    client = new Client("clientId", JWKKeyReference.parse(rsaKey.toJSONString()), Collections.singleton("nhn:helseid/test"));
+  }
+
+  @Test
+  void assertions_should_be_signed_and_carry_the_claims_of_the_template() throws JOSEException, HelseIdException, ParseException {
+    Map<String, Object> assertionDetails = HelseIdAuthorizationClaimUtil.createClaimHelseidAuthorizationForSingleTenant("123456789");
+    ClientAssertionTemplate template = ClientAssertionTemplate.compile(AUTHORITY, client, assertionDetails);
+
+    SignedJWT signedJWT = template.createSignedJWT();
+    JWSVerifier verifier = new RSASSAVerifier(rsaKey);
+    assertTrue(signedJWT.verify(verifier));
+
+    assertEquals(ClientAssertion.CLIENT_AUTHENTICATION_JWT, signedJWT.getHeader().getType());
+    assertEquals(rsaKey.getKeyID(), signedJWT.getHeader().getKeyID());
+
+    JWTClaimsSet claims = signedJWT.getJWTClaimsSet();
+    assertEquals(List.of(AUTHORITY), claims.getAudience());
+    assertEquals("clientId", claims.getIssuer());
+    assertEquals("clientId", claims.getSubject());
+    assertEquals(claims.getIssueTime(), claims.getNotBeforeTime());
+    assertEquals(ClientAssertion.TOKEN_LIFETIME_IN_MILLISECONDS, claims.getExpirationTime().getTime() - claims.getIssueTime().getTime());
+    assertEquals(assertionDetails, claims.getJSONObjectClaim(ClientAssertion.CLAIM_ASSERTION_DETAILS));
+  }
+
+  @Test
+  void each_assertion_should_have_a_unique_id() throws HelseIdException, ParseException {
+    ClientAssertionTemplate template = ClientAssertionTemplate.compile(AUTHORITY, client, null);
+
+    JWTClaimsSet first = template.createSignedJWT().getJWTClaimsSet();
+    JWTClaimsSet second = template.createSignedJWT().getJWTClaimsSet();
+
+    assertNotNull(first.getJWTID());
+    assertNotEquals(first.getJWTID(), second.getJWTID());
+    assertNull(first.getClaim(ClientAssertion.CLAIM_ASSERTION_DETAILS));
+  }
+
+  @Test
+  void template_should_only_be_compiled_for_its_audience() throws HelseIdException {
+    ClientAssertionTemplate template = ClientAssertionTemplate.compile(AUTHORITY, client, null);
+
+    assertTrue(template.isCompiledFor(AUTHORITY));
+    assertFalse(template.isCompiledFor("http://localhost:3477"));
+  }
+
+  @Test
+  void compile_should_fail_if_client_is_missing_key_reference() {
+    Client clientWithoutKey = new Client("clientId", null, Collections.singleton("nhn:helseid/test"));
+
+    HelseIdException e = assertThrows(HelseIdException.class, () -> ClientAssertionTemplate.compile(AUTHORITY, clientWithoutKey, null));
+    assertEquals("Missing key reference for client assertion", e.getMessage());
+  }
+}
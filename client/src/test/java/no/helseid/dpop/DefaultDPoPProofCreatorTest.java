@@ -104,6 +104,52 @@ public class DefaultDPoPProofCreatorTest {
     }
   }
 
+  @Test
+  public void should_remember_the_binding_of_a_known_access_token() throws HelseIdException, ParseException {
+    var keyReference = RSAKeyReference.generate(Algorithm.PS256);
+    var proofCreator = new DefaultDPoPProofCreator(keyReference);
+    var dpopAccessToken = createMockDPoPAccessToken(keyReference);
+
+    JWTClaimsSet first = SignedJWT.parse(proofCreator.createDPoPProof(HTU, HttpMethod.GET, dpopAccessToken)).getJWTClaimsSet();
+    JWTClaimsSet second = SignedJWT.parse(proofCreator.createDPoPProof(HTU, HttpMethod.GET, dpopAccessToken)).getJWTClaimsSet();
+
+    assertEquals(1, proofCreator.rememberedTokenBindings());
+    assertEquals(first.getStringClaim("ath"), second.getStringClaim("ath"));
+    assertNotEquals(first.getJWTID(), second.getJWTID());
+  }
+
+  @Test
+  public void should_remember_a_limited_number_of_access_tokens() throws HelseIdException {
+    var keyReference = RSAKeyReference.generate(Algorithm.PS256);
+    var proofCreator = new DefaultDPoPProofCreator(keyReference);
+
+    for (int i = 0; i <= TokenBindings.MAXIMUM_TOKEN_BINDINGS; i++) {
+      proofCreator.createDPoPProof(HTU, HttpMethod.GET, createMockDPoPAccessToken(keyReference));
+    }
+
+    assertEquals(TokenBindings.MAXIMUM_TOKEN_BINDINGS, proofCreator.rememberedTokenBindings());
+  }
+
+  @Test
+  public void should_reject_a_known_access_token_bound_to_another_key() throws HelseIdException {
+    DPoPProofCreator proofCreator = new DefaultDPoPProofCreator(RSAKeyReference.generate(Algorithm.PS256));
+    var dpopAccessToken = createMockDPoPAccessToken(RSAKeyReference.generate(Algorithm.PS256));
+
+    for (int i = 0; i < 2; i++) {
+      HelseIdException e = assertThrows(HelseIdException.class, () -> proofCreator.createDPoPProof(HTU, HttpMethod.GET, dpopAccessToken));
+      assertEquals("The JWK thumbprint in the access token does not match the thumbprint of the private key JWK", e.getMessage());
+    }
+  }
+
+  @Test
+  public void should_leave_out_query_and_fragment_of_the_request_url() throws HelseIdException, ParseException {
+    DPoPProofCreator proofCreator = new DefaultDPoPProofCreator(RSAKeyReference.generate(Algorithm.PS256));
+
+    String dPoPProof = proofCreator.createDPoPProofWithNonce(URI.create("https://api.nhn.no/resource?query=value#fragment"), HttpMethod.GET, null);
+
+    assertEquals("https://api.nhn.no/resource", SignedJWT.parse(dPoPProof).getJWTClaimsSet().getStringClaim("htu"));
+  }
+
   /**
    * Method creating mock DPoP Access tokens bound to a dpop key reference
    */
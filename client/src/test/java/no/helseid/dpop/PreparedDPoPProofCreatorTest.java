@@ -0,0 +1,127 @@
+package no.helseid.dpop;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JOSEObjectType;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.crypto.RSASSAVerifier;
+import com.nimbusds.jose.jwk.RSAKey;
+import com.nimbusds.jose.util.Base64URL;
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.SignedJWT;
+import com.nimbusds.oauth2.sdk.id.JWTID;
+import no.helseid.exceptions.HelseIdException;
+import no.helseid.signing.Algorithm;
+import no.helseid.signing.KeyReference;
+import no.helseid.signing.RSAKeyReference;
+import no.helseid.signing.Util;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.util.Date;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PreparedDPoPProofCreatorTest {
+  private static final URI HTU = URI.create("https://api.nhn.no/resource?query=value#fragment");
+
+  @Test
+  void proofs_should_be_signed_with_the_public_key_embedded_in_the_header() throws HelseIdException, ParseException, JOSEException {
+    var keyReference = RSAKeyReference.generate(Algorithm.PS256);
+    DPoPProofCreator proofCreator = new PreparedDPoPProofCreator(keyReference);
+
+    SignedJWT proof = SignedJWT.parse(proofCreator.createDPoPProofWithNonce(HTU, HttpMethod.POST, "nonce"));
+
+    assertEquals(new JOSEObjectType("dpop+jwt"), proof.getHeader().getType());
+    assertEquals(JWSAlgorithm.PS256, proof.getHeader().getAlgorithm());
+    assertFalse(proof.getHeader().getJWK().isPrivate());
+    assertTrue(proof.verify(new RSASSAVerifier((RSAKey) proof.getHeader().getJWK())));
+    assertEquals(keyReference.getKeyId(), proofCreator.getKeyId());
+  }
+
+  @Test
+  void proofs_should_have_the_claims_of_the_default_proofs() throws HelseIdException, ParseException, NoSuchAlgorithmException {
+    var keyReference = RSAKeyReference.generate(Algorithm.PS256);
+    var dpopAccessToken = createMockDPoPAccessToken(keyReference);
+    Base64URL ath = Base64URL.encode(MessageDigest.getInstance("SHA-256").digest(dpopAccessToken.getBytes(StandardCharsets.UTF_8)));
+
+    JWTClaimsSet prepared = SignedJWT.parse(new PreparedDPoPProofCreator(keyReference).createDPoPProof(HTU, HttpMethod.GET, dpopAccessToken)).getJWTClaimsSet();
+    JWTClaimsSet reference = SignedJWT.parse(new DefaultDPoPProofCreator(keyReference).createDPoPProof(HTU, HttpMethod.GET, dpopAccessToken)).getJWTClaimsSet();
+
+    assertEquals(reference.getClaims().keySet(), prepared.getClaims().keySet());
+    assertEquals("GET", prepared.getStringClaim("htm"));
+    assertEquals("https://api.nhn.no/resource", prepared.getStringClaim("htu"));
+    assertEquals(ath.toString(), prepared.getStringClaim("ath"));
+    assertNotNull(prepared.getJWTID());
+    assertTrue(Math.abs(prepared.getIssueTime().getTime() - System.currentTimeMillis()) < 5_000);
+  }
+
+  @Test
+  void nonces_should_be_escaped_in_the_payload() throws HelseIdException, ParseException {
+    DPoPProofCreator proofCreator = new PreparedDPoPProofCreator(RSAKeyReference.generate(Algorithm.PS256));
+    String nonce = "quote\" backslash\\ newline\n";
+
+    SignedJWT proof = SignedJWT.parse(proofCreator.createDPoPProofWithNonce(HTU, HttpMethod.POST, nonce));
+
+    assertEquals(nonce, proof.getJWTClaimsSet().getStringClaim("nonce"));
+    assertNull(proof.getJWTClaimsSet().getClaim("ath"));
+  }
+
+  @Test
+  void each_proof_should_have_a_unique_id() throws HelseIdException, ParseException {
+    DPoPProofCreator proofCreator = new PreparedDPoPProofCreator(RSAKeyReference.generate(Algorithm.PS256));
+
+    String first = SignedJWT.parse(proofCreator.createDPoPProofWithNonce(HTU, HttpMethod.POST, null)).getJWTClaimsSet().getJWTID();
+    String second = SignedJWT.parse(proofCreator.createDPoPProofWithNonce(HTU, HttpMethod.POST, null)).getJWTClaimsSet().getJWTID();
+
+    assertNotEquals(first, second);
+  }
+
+  @Test
+  void proofs_should_not_be_created_for_a_token_bound_to_another_key() throws HelseIdException {
+    DPoPProofCreator proofCreator = new PreparedDPoPProofCreator(RSAKeyReference.generate(Algorithm.PS256));
+    var dpopAccessToken = createMockDPoPAccessToken(RSAKeyReference.generate(Algorithm.PS256));
+
+    HelseIdException e = assertThrows(HelseIdException.class, () -> proofCreator.createDPoPProof(HTU, HttpMethod.GET, dpopAccessToken));
+    assertEquals("The JWK thumbprint in the access token does not match the thumbprint of the private key JWK", e.getMessage());
+  }
+
+  /**
+   * Method creating mock DPoP Access tokens bound to a dpop key reference
+   */
+  private String createMockDPoPAccessToken(KeyReference dpopKeyReference) throws HelseIdException {
+    try {
+      var issuerKeyReference = RSAKeyReference.generate(Algorithm.PS256);
+      String thumbprint = Util.createJWKFromKeyReference(dpopKeyReference).computeThumbprint().toString();
+
+      long currentTimeEpocMilliseconds = System.currentTimeMillis();
+      JWTClaimsSet payload = new JWTClaimsSet.Builder()
+          .audience("nhn:helseid")
+          .jwtID(new JWTID().getValue())
+          .subject(UUID.randomUUID().toString())
+          .issuer("https://test.helseid.no")
+          .issueTime(new Date(currentTimeEpocMilliseconds))
+          .notBeforeTime(new Date(currentTimeEpocMilliseconds))
+          .expirationTime(new Date(currentTimeEpocMilliseconds + 1000))
+          .claim("cnf", Map.of("jkt", thumbprint))
+          .build();
+
+      SignedJWT signedJWT = new SignedJWT(
+          new JWSHeader.Builder(JWSAlgorithm.parse(issuerKeyReference.getAlgorithm().name()))
+              .keyID(issuerKeyReference.getKeyId())
+              .build(),
+          payload);
+      signedJWT.sign(Util.createJWSSignerFromKeyReference(issuerKeyReference));
+
+      return signedJWT.serialize();
+    } catch (JOSEException e) {
+      throw new HelseIdException("Unable to create token", e);
+    }
+  }
+}
@@ -0,0 +1,69 @@
+package no.helseid.endpoints.token;
+
+import no.helseid.configuration.Client;
+import no.helseid.configuration.Tenancy;
+import no.helseid.exceptions.HelseIdException;
+import no.helseid.signing.Algorithm;
+import no.helseid.signing.ECKeyReference;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenCacheKeyTest {
+
+  @Test
+  void keys_should_be_equal_regardless_of_scope_order() throws HelseIdException {
+    var client = new Client("client-id", ECKeyReference.generate(Algorithm.ES256), Set.of("scope:a"));
+
+    var first = TokenCacheKey.of(client, new TokenRequestDetails.Builder()
+        .withChildOrganizationNumber("999999999")
+        .addScope("scope:b")
+        .addScope("scope:a")
+        .build());
+    var second = TokenCacheKey.of(client, new TokenRequestDetails.Builder()
+        .withChildOrganizationNumber("999999999")
+        .addScope("scope:a")
+        .addScope("scope:b")
+        .build());
+
+    assertEquals(first, second);
+    assertEquals(first.hashCode(), second.hashCode());
+    assertEquals(first.value(), second.value());
+    assertEquals(List.of("scope:a", "scope:b"), first.scope());
+  }
+
+  @Test
+  void keys_should_differ_for_different_requests() throws HelseIdException {
+    var keyReference = ECKeyReference.generate(Algorithm.ES256);
+    var client = new Client("client-id", keyReference, Set.of("scope:a"));
+
+    var singleTenant = TokenCacheKey.of(client, new TokenRequestDetails.Builder()
+        .withParentOrganizationNumber("888888888")
+        .build());
+    var multiTenant = TokenCacheKey.of(client, new TokenRequestDetails.Builder()
+        .withTenancy(Tenancy.MULTI_TENANT)
+        .withParentOrganizationNumber("888888888")
+        .build());
+    var otherClient = TokenCacheKey.of(new Client("other-client-id", keyReference, Set.of("scope:a")), null);
+    var otherKey = TokenCacheKey.of(new Client("client-id", ECKeyReference.generate(Algorithm.ES256), Set.of("scope:a")), null);
+
+    assertNotEquals(singleTenant, multiTenant);
+    assertNotEquals(singleTenant.value(), multiTenant.value());
+    assertNotEquals(TokenCacheKey.of(client, null), otherClient);
+    assertNotEquals(TokenCacheKey.of(client, null), otherKey);
+  }
+
+  @Test
+  void string_representation_should_not_be_ambiguous() throws HelseIdException {
+    var keyReference = ECKeyReference.generate(Algorithm.ES256);
+
+    var first = TokenCacheKey.of(new Client("client", keyReference, Set.of("a;b")), null);
+    var second = TokenCacheKey.of(new Client("client", keyReference, Set.of("a", "b")), null);
+
+    assertNotEquals(first.value(), second.value());
+    assertTrue(first.value().startsWith("v1;6:client;"));
+  }
+}
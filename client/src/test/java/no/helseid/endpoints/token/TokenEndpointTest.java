@@ -7,6 +7,7 @@ import com.nimbusds.oauth2.sdk.Scope;
 import com.nimbusds.openid.connect.sdk.Nonce;
 import no.helseid.clientassertion.ClientAssertion;
 import no.helseid.configuration.Client;
+import no.helseid.dpop.DPoPNonceStore;
 import no.helseid.dpop.DPoPProofCreator;
 import no.helseid.dpop.DefaultDPoPProofCreator;
 import no.helseid.exceptions.HelseIdException;
@@ -21,6 +22,8 @@ import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
 
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
 import static no.helseid.testutil.WireMockUtils.TOKEN_ENDPOINT_PATH;
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -141,4 +144,65 @@ class TokenEndpointTest {
     ErrorResponse errorResponse = (ErrorResponse) tokenResponse;
     assertEquals(418, errorResponse.statusCode());
   }
+
+  @Test
+  public void should_include_remembered_dpop_nonce_in_the_first_attempt() throws HelseIdException {
+    var keyReference = RSAKeyReference.generate(Algorithm.PS512);
+    var client = new Client("client-id", keyReference, SCOPE);
+    var dPoPNonce = new Nonce().getValue();
+    var tokenEndpoint = URI.create(wms.baseUrl() + TOKEN_ENDPOINT_PATH);
+    var dPoPNonceStore = new DPoPNonceStore();
+
+    DPoPProofCreator dpopProofCreator = new DefaultDPoPProofCreator(client.keyReference());
+    WireMockUtils.stub_token_with_use_dpop_nonce_response(wms, dPoPNonce);
+    WireMockUtils.stub_token_matching_dpop_nonce_returning_mock_access_token(wms, dPoPNonce, MOCK_ACCESS_TOKEN, null);
+
+    for (int i = 0; i < 2; i++) {
+      TokenResponse tokenResponse = TokenEndpoint.sendRequest(
+          tokenEndpoint,
+          dpopProofCreator,
+          ClientAssertion.createClientAssertionSignedJWT("helseid", client),
+          new ClientCredentialsGrant(),
+          Scope.parse(SCOPE),
+          null,
+          null,
+          dPoPNonceStore
+      );
+      assertInstanceOf(AccessTokenResponse.class, tokenResponse);
+    }
+
+    // Two requests for the first token, the second token is requested with the remembered nonce
+    wms.verify(3, postRequestedFor(urlEqualTo(TOKEN_ENDPOINT_PATH)));
+    assertEquals(dPoPNonce, dPoPNonceStore.get(tokenEndpoint));
+  }
+
+  @Test
+  public void should_retry_with_new_dpop_nonce_if_remembered_nonce_is_rejected() throws HelseIdException {
+    var keyReference = RSAKeyReference.generate(Algorithm.PS512);
+    var client = new Client("client-id", keyReference, SCOPE);
+    var staleDPoPNonce = new Nonce().getValue();
+    var dPoPNonce = new Nonce().getValue();
+    var tokenEndpoint = URI.create(wms.baseUrl() + TOKEN_ENDPOINT_PATH);
+    var dPoPNonceStore = new DPoPNonceStore();
+    dPoPNonceStore.put(tokenEndpoint, staleDPoPNonce);
+
+    DPoPProofCreator dpopProofCreator = new DefaultDPoPProofCreator(client.keyReference());
+    WireMockUtils.stub_token_matching_dpop_nonce_with_use_dpop_nonce_response(wms, staleDPoPNonce, dPoPNonce);
+    WireMockUtils.stub_token_matching_dpop_nonce_returning_mock_access_token(wms, dPoPNonce, MOCK_ACCESS_TOKEN, null);
+
+    TokenResponse tokenResponse = TokenEndpoint.sendRequest(
+        tokenEndpoint,
+        dpopProofCreator,
+        ClientAssertion.createClientAssertionSignedJWT("helseid", client),
+        new ClientCredentialsGrant(),
+        Scope.parse(SCOPE),
+        null,
+        null,
+        dPoPNonceStore
+    );
+
+    assertInstanceOf(AccessTokenResponse.class, tokenResponse);
+    wms.verify(2, postRequestedFor(urlEqualTo(TOKEN_ENDPOINT_PATH)));
+    assertEquals(dPoPNonce, dPoPNonceStore.get(tokenEndpoint));
+  }
 }
\ No newline at end of file
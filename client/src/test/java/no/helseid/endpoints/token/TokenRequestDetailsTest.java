@@ -0,0 +1,39 @@
+package no.helseid.endpoints.token;
+
+import no.helseid.configuration.Tenancy;
+import no.helseid.exceptions.HelseIdException;
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenRequestDetailsTest {
+
+  @Test
+  void details_with_the_same_values_should_be_equal() throws HelseIdException {
+    var first = new TokenRequestDetails.Builder()
+        .withTenancy(Tenancy.MULTI_TENANT)
+        .withParentOrganizationNumber("999999999")
+        .addScope("scope:b")
+        .addScope("scope:a")
+        .build();
+    var second = new TokenRequestDetails.Builder()
+        .withTenancy(Tenancy.MULTI_TENANT)
+        .withParentOrganizationNumber("999999999")
+        .addMultipleScope(Set.of("scope:a", "scope:b"))
+        .build();
+
+    assertEquals(first, second);
+    assertEquals(first.hashCode(), second.hashCode());
+  }
+
+  @Test
+  void details_with_different_values_should_differ() throws HelseIdException {
+    var details = new TokenRequestDetails.Builder().withChildOrganizationNumber("999999999").build();
+
+    assertNotEquals(details, new TokenRequestDetails.Builder().withChildOrganizationNumber("888888888").build());
+    assertNotEquals(details, new TokenRequestDetails.Builder().withSfmJournalId("999999999").build());
+    assertNotEquals(details, new TokenRequestDetails.Builder().withChildOrganizationNumber("999999999").addScope("scope:a").build());
+  }
+}
@@ -7,7 +7,10 @@ import com.nimbusds.jose.JWSAlgorithm;
 import com.nimbusds.jose.jwk.JWK;
 import com.nimbusds.jose.jwk.KeyUse;
 import com.nimbusds.jose.jwk.gen.RSAKeyGenerator;
+import no.helseid.cache.CacheStats;
+import no.helseid.cache.ExpiringCache;
 import no.helseid.cache.InMemoryExpiringCache;
+import no.helseid.concurrent.CacheLeaseManager;
 import no.helseid.configuration.Client;
 import no.helseid.dpop.DefaultDPoPProofCreator;
 import no.helseid.endpoints.token.AccessTokenResponse;
@@ -25,6 +28,7 @@ import org.junit.jupiter.api.Test;
 import java.net.URI;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
 import static org.junit.jupiter.api.Assertions.*;
@@ -102,6 +106,52 @@ class DefaultClientCredentialsTest {
   }
 
 
+  @Test
+  void ClientCredentials_should_create_token_asynchronously_and_serve_cache_hits_immediately() throws Exception {
+    WireMockUtils.stub_metadata_with_base_url(wms);
+    WireMockUtils.stub_token_with_use_dpop_nonce_response(wms, DPOP_NONCE);
+    WireMockUtils.stub_token_matching_dpop_nonce_returning_mock_access_token(wms, DPOP_NONCE, MOCK_ACCESS_TOKEN, SCOPE);
+
+    Client client = new Client("client-id", KEY_REFERENCE, SCOPE);
+    ClientCredentials clientCredentials = new ClientCredentials.Builder(URI.create(wms.baseUrl()))
+        .withClient(client)
+        .build();
+    TokenRequestDetails tokenRequestDetails = new TokenRequestDetails.Builder()
+        .withChildOrganizationNumber("994598759")
+        .build();
+
+    List<CompletableFuture<TokenResponse>> futures = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      futures.add(clientCredentials.getAccessTokenAsync(tokenRequestDetails));
+    }
+    for (CompletableFuture<TokenResponse> future : futures) {
+      TokenResponse tokenResponse = future.get(5, TimeUnit.SECONDS);
+      assertInstanceOf(AccessTokenResponse.class, tokenResponse);
+      assertEquals(MOCK_ACCESS_TOKEN, ((AccessTokenResponse) tokenResponse).accessToken());
+    }
+
+    CompletableFuture<TokenResponse> cacheHit = clientCredentials.getAccessTokenAsync(tokenRequestDetails);
+    assertTrue(cacheHit.isDone());
+    assertEquals(MOCK_ACCESS_TOKEN, ((AccessTokenResponse) cacheHit.get()).accessToken());
+
+    // One request returning a DPoP nonce and one successful with a token, shared by every caller
+    wms.verify(2, postRequestedFor(urlEqualTo("/connect/token")));
+  }
+
+  @Test
+  void ClientCredentials_should_fail_asynchronously_if_metadata_is_unavailable() {
+    wms.stubFor(get(urlEqualTo("/.well-known/openid-configuration")).willReturn(aResponse().withStatus(500)));
+
+    Client client = new Client("client-id", KEY_REFERENCE, SCOPE);
+
+    ExecutionException e = assertThrows(ExecutionException.class, () -> new ClientCredentials.Builder(URI.create(wms.baseUrl()))
+        .withClient(client)
+        .build()
+        .getAccessTokenAsync()
+        .get(5, TimeUnit.SECONDS));
+    assertInstanceOf(HelseIdException.class, e.getCause());
+  }
+
   @Test
   void ClientCredentials_should_cache_token_for_a_given_assertion_detail() throws HelseIdException {
     // Providing metadata for the test
@@ -140,6 +190,29 @@ class DefaultClientCredentialsTest {
     }
   }
 
+  @Test
+  void ClientCredentials_should_record_cache_statistics_and_load_time() throws HelseIdException {
+    WireMockUtils.stub_metadata_with_base_url(wms);
+    WireMockUtils.stub_token_with_use_dpop_nonce_response(wms, DPOP_NONCE);
+    WireMockUtils.stub_token_matching_dpop_nonce_returning_mock_access_token(wms, DPOP_NONCE, MOCK_ACCESS_TOKEN, SCOPE);
+
+    Client client = new Client("client-id", KEY_REFERENCE, SCOPE);
+    ClientCredentials clientCredentials = new ClientCredentials.Builder(URI.create(wms.baseUrl()))
+        .withClient(client)
+        .setCustomTokenCache(new InMemoryExpiringCache<>())
+        .build();
+
+    clientCredentials.getAccessToken();
+    clientCredentials.getAccessToken();
+    clientCredentials.getAccessToken();
+
+    CacheStats stats = clientCredentials.getTokenCacheStats();
+    assertEquals(2, stats.hitCount());
+    assertEquals(1, stats.loadSuccessCount());
+    assertEquals(0, stats.loadFailureCount());
+    assertTrue(stats.totalLoadTimeNanoseconds() > 0);
+  }
+
   @Test
   public void should_forward_error_response() throws HelseIdException {
     // Providing metadata for the test
@@ -160,6 +233,56 @@ class DefaultClientCredentialsTest {
     assertEquals(500, errorResponse.statusCode());
   }
 
+  @Test
+  void ClientCredentials_should_remember_error_responses_with_negative_caching() throws HelseIdException {
+    // Providing metadata for the test
+    WireMockUtils.stub_metadata_with_base_url(wms);
+
+    wms.stubFor(post(urlPathEqualTo(WireMockUtils.TOKEN_ENDPOINT_PATH))
+        .willReturn(badRequest()
+            .withHeader("Content-Type", "application/json")
+            .withBody("{\"error\":\"invalid_client\"}")));
+
+    Client client = new Client("client-id", KEY_REFERENCE, SCOPE);
+    ClientCredentials clientCredentials = new ClientCredentials.Builder(URI.create(wms.baseUrl()))
+        .withClient(client)
+        .withNegativeCaching(new NegativeCachePolicy.Builder().build())
+        .build();
+
+    TokenResponse tokenResponseFirst = clientCredentials.getAccessToken();
+    TokenResponse tokenResponseSecond = clientCredentials.getAccessToken();
+
+    assertInstanceOf(ErrorResponse.class, tokenResponseFirst);
+    assertSame(tokenResponseFirst, tokenResponseSecond);
+    assertEquals("invalid_client", ((ErrorResponse) tokenResponseSecond).error());
+
+    // The second call is served the remembered error response
+    wms.verify(1, postRequestedFor(urlEqualTo("/connect/token")));
+  }
+
+  @Test
+  void ClientCredentials_should_request_again_when_the_backoff_has_passed() throws HelseIdException, InterruptedException {
+    // Providing metadata for the test
+    WireMockUtils.stub_metadata_with_base_url(wms);
+
+    WireMockUtils.stub_token_with_status_code(wms, 503);
+
+    Client client = new Client("client-id", KEY_REFERENCE, SCOPE);
+    ClientCredentials clientCredentials = new ClientCredentials.Builder(URI.create(wms.baseUrl()))
+        .withClient(client)
+        .withNegativeCaching(new NegativeCachePolicy.Builder().withTransientBackoff(50, 50).build())
+        .build();
+
+    assertInstanceOf(ErrorResponse.class, clientCredentials.getAccessToken());
+    assertInstanceOf(ErrorResponse.class, clientCredentials.getAccessToken());
+    wms.verify(1, postRequestedFor(urlEqualTo("/connect/token")));
+
+    Thread.sleep(100);
+
+    assertInstanceOf(ErrorResponse.class, clientCredentials.getAccessToken());
+    wms.verify(2, postRequestedFor(urlEqualTo("/connect/token")));
+  }
+
   @Test
   void ClientCredentials_should_handle_simultaneous_requests() throws HelseIdException, InterruptedException, ExecutionException, TimeoutException {
     // Providing metadata for the test
@@ -179,6 +302,9 @@ class DefaultClientCredentialsTest {
     var metadata = RemoteMetadataProvider.getInstance(authority);
     metadata.getMetadata();
 
+    // Initializing the DPoP nonce, ensuring it is requested only once
+    clientCredentials.getAccessToken();
+
     List<String> orgNrList = Arrays.asList(
         "994598700",
         "994598701",
@@ -225,7 +351,283 @@ class DefaultClientCredentialsTest {
     // Once, since the metadata is initialized prior to the requests
     wms.verify(1, getRequestedFor(urlEqualTo("/.well-known/openid-configuration")));
 
-    // Two per unique token requests
-    wms.verify(orgNrList.size() * 2, postRequestedFor(urlEqualTo("/connect/token")));
+    // Two for the initializing token request, then one per unique token request since the DPoP nonce is remembered
+    wms.verify(2 + orgNrList.size(), postRequestedFor(urlEqualTo("/connect/token")));
+  }
+
+  @Test
+  void ClientCredentials_should_share_one_token_request_between_simultaneous_requests_for_the_same_token() throws HelseIdException, InterruptedException, ExecutionException, TimeoutException {
+    // Providing metadata for the test
+    WireMockUtils.stub_metadata_with_base_url(wms);
+
+    // Expected failure with a DPoP proof without nonce
+    WireMockUtils.stub_token_with_use_dpop_nonce_response(wms, DPOP_NONCE);
+
+    // Expected result with a DPoP proof containing expected nonce
+    WireMockUtils.stub_token_matching_dpop_nonce_returning_mock_access_token(wms, DPOP_NONCE, MOCK_ACCESS_TOKEN, SCOPE);
+
+    URI authority = URI.create(wms.baseUrl());
+    Client client = new Client("client-id", KEY_REFERENCE, SCOPE);
+    ClientCredentials clientCredentials = new ClientCredentials.Builder(authority).withClient(client).build();
+
+    int numberOfCallers = 20;
+    CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(numberOfCallers);
+    List<Future<TokenResponse>> futures = new ArrayList<>();
+    for (int i = 0; i < numberOfCallers; i++) {
+      futures.add(executor.submit(() -> {
+        start.await();
+        var tokenRequestDetails = new TokenRequestDetails.Builder().withChildOrganizationNumber("994598700").build();
+        return clientCredentials.getAccessToken(tokenRequestDetails);
+      }));
+    }
+    start.countDown();
+
+    for (Future<TokenResponse> future : futures) {
+      var tokenResponse = future.get(10, TimeUnit.SECONDS);
+      assertInstanceOf(AccessTokenResponse.class, tokenResponse);
+      assertEquals(MOCK_ACCESS_TOKEN, ((AccessTokenResponse) tokenResponse).accessToken());
+    }
+    executor.shutdown();
+
+    // Two requests in total, one returning DPoP nonce and one successful with a token
+    wms.verify(2, postRequestedFor(urlEqualTo("/connect/token")));
+  }
+
+  @Test
+  void ClientCredentials_should_share_one_token_request_with_a_cache_not_coordinating_its_loads() throws HelseIdException, InterruptedException, ExecutionException, TimeoutException {
+    // Providing metadata for the test
+    WireMockUtils.stub_metadata_with_base_url(wms);
+
+    // Expected failure with a DPoP proof without nonce
+    WireMockUtils.stub_token_with_use_dpop_nonce_response(wms, DPOP_NONCE);
+
+    // Expected result with a DPoP proof containing expected nonce
+    WireMockUtils.stub_token_matching_dpop_nonce_returning_mock_access_token(wms, DPOP_NONCE, MOCK_ACCESS_TOKEN, SCOPE);
+
+    Client client = new Client("client-id", KEY_REFERENCE, SCOPE);
+    ClientCredentials clientCredentials = new ClientCredentials.Builder(URI.create(wms.baseUrl()))
+        .withClient(client)
+        .setCustomTokenCache(new MapExpiringCache<>())
+        .build();
+
+    int numberOfCallers = 20;
+    CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(numberOfCallers);
+    List<Future<TokenResponse>> futures = new ArrayList<>();
+    for (int i = 0; i < numberOfCallers; i++) {
+      int caller = i;
+      futures.add(executor.submit(() -> {
+        start.await();
+        // Half of the callers request the token asynchronously, sharing the request of the blocking callers
+        return caller % 2 == 0
+            ? clientCredentials.getAccessToken()
+            : clientCredentials.getAccessTokenAsync().get(10, TimeUnit.SECONDS);
+      }));
+    }
+    start.countDown();
+
+    for (Future<TokenResponse> future : futures) {
+      var tokenResponse = future.get(10, TimeUnit.SECONDS);
+      assertInstanceOf(AccessTokenResponse.class, tokenResponse);
+      assertEquals(MOCK_ACCESS_TOKEN, ((AccessTokenResponse) tokenResponse).accessToken());
+    }
+    executor.shutdown();
+
+    // Two requests in total, one returning DPoP nonce and one successful with a token
+    wms.verify(2, postRequestedFor(urlEqualTo("/connect/token")));
+  }
+
+  @Test
+  void ClientCredentials_should_let_one_instance_request_a_shared_token_under_a_lease() throws HelseIdException, InterruptedException, ExecutionException, TimeoutException {
+    // Providing metadata for the test
+    WireMockUtils.stub_metadata_with_base_url(wms);
+
+    // Expected failure with a DPoP proof without nonce
+    WireMockUtils.stub_token_with_use_dpop_nonce_response(wms, DPOP_NONCE);
+
+    // Expected result with a DPoP proof containing expected nonce
+    WireMockUtils.stub_token_matching_dpop_nonce_returning_mock_access_token(wms, DPOP_NONCE, MOCK_ACCESS_TOKEN, SCOPE);
+
+    // Two replicas sharing a token cache and a lease manager
+    var sharedTokenCache = new InMemoryExpiringCache<AccessTokenResponse>();
+    var sharedLeaseManager = new CacheLeaseManager(new InMemoryExpiringCache<>());
+    List<ClientCredentials> replicas = new ArrayList<>();
+    for (int i = 0; i < 2; i++) {
+      replicas.add(new ClientCredentials.Builder(URI.create(wms.baseUrl()))
+          .withClient(new Client("client-id", KEY_REFERENCE, SCOPE))
+          .setCustomTokenCache(sharedTokenCache)
+          .setCustomLeaseManager(sharedLeaseManager)
+          .build());
+    }
+
+    CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(replicas.size());
+    List<Future<TokenResponse>> futures = new ArrayList<>();
+    for (ClientCredentials replica : replicas) {
+      futures.add(executor.submit(() -> {
+        start.await();
+        return replica.getAccessToken();
+      }));
+    }
+    start.countDown();
+
+    for (Future<TokenResponse> future : futures) {
+      var tokenResponse = future.get(10, TimeUnit.SECONDS);
+      assertInstanceOf(AccessTokenResponse.class, tokenResponse);
+      assertEquals(MOCK_ACCESS_TOKEN, ((AccessTokenResponse) tokenResponse).accessToken());
+    }
+    executor.shutdown();
+
+    // Two requests in total by the replica holding the lease, the other replica is served from the shared cache
+    wms.verify(2, postRequestedFor(urlEqualTo("/connect/token")));
+  }
+
+  @Test
+  void builder_should_fail_if_lease_time_is_not_positive() {
+    Client client = new Client("client-id", KEY_REFERENCE, SCOPE);
+    try {
+      new ClientCredentials.Builder(URI.create(wms.baseUrl()))
+          .withClient(client)
+          .withLeaseTime(0)
+          .build();
+      fail();
+    } catch (HelseIdException e) {
+      assertEquals("The lease time must be positive", e.getMessage());
+    }
+  }
+
+  @Test
+  void ClientCredentials_should_renew_a_token_in_use_ahead_of_expiry() throws HelseIdException, InterruptedException {
+    // Providing metadata for the test
+    WireMockUtils.stub_metadata_with_base_url(wms);
+
+    // Expected failure with a DPoP proof without nonce
+    WireMockUtils.stub_token_with_use_dpop_nonce_response(wms, DPOP_NONCE);
+
+    // Expected result with a DPoP proof containing expected nonce
+    WireMockUtils.stub_token_matching_dpop_nonce_returning_mock_access_token(wms, DPOP_NONCE, MOCK_ACCESS_TOKEN, SCOPE);
+
+    Client client = new Client("client-id", KEY_REFERENCE, SCOPE);
+    ClientCredentials clientCredentials = new ClientCredentials.Builder(URI.create(wms.baseUrl()))
+        .withClient(client)
+        .withRefreshAhead(0.01)
+        .build();
+
+    TokenResponse tokenResponseFirst = clientCredentials.getAccessToken();
+    wms.verify(2, postRequestedFor(urlEqualTo("/connect/token")));
+
+    // The mock token lives for 10 seconds, thus it is due for renewal after 100 milliseconds
+    Thread.sleep(200);
+
+    TokenResponse tokenResponseSecond = clientCredentials.getAccessToken();
+    assertInstanceOf(AccessTokenResponse.class, tokenResponseFirst);
+    assertInstanceOf(AccessTokenResponse.class, tokenResponseSecond);
+
+    // The cached token is served while a renewal is performed with the remembered DPoP nonce
+    awaitTokenRequests(3);
+  }
+
+  @Test
+  void ClientCredentials_should_renew_a_token_in_use_without_waiting_for_an_access() throws HelseIdException {
+    // Providing metadata for the test
+    WireMockUtils.stub_metadata_with_base_url(wms);
+
+    // Expected failure with a DPoP proof without nonce
+    WireMockUtils.stub_token_with_use_dpop_nonce_response(wms, DPOP_NONCE);
+
+    // Expected result with a DPoP proof containing expected nonce
+    WireMockUtils.stub_token_matching_dpop_nonce_returning_mock_access_token(wms, DPOP_NONCE, MOCK_ACCESS_TOKEN, SCOPE);
+
+    Client client = new Client("client-id", KEY_REFERENCE, SCOPE);
+    ClientCredentials clientCredentials = new ClientCredentials.Builder(URI.create(wms.baseUrl()))
+        .withClient(client)
+        .withRefreshAhead(0.01)
+        .build();
+
+    // The second request is served from the cache, marking the token as in use
+    clientCredentials.getAccessToken();
+    clientCredentials.getAccessToken();
+    wms.verify(2, postRequestedFor(urlEqualTo("/connect/token")));
+
+    // The renewal is triggered by the timing wheel once the refresh-ahead point passes
+    awaitTokenRequests(3);
+  }
+
+  @Test
+  void ClientCredentials_should_renew_a_token_in_use_before_its_safety_margin_expires_it() throws HelseIdException {
+    // Providing metadata for the test
+    WireMockUtils.stub_metadata_with_base_url(wms);
+
+    // Expected failure with a DPoP proof without nonce
+    WireMockUtils.stub_token_with_use_dpop_nonce_response(wms, DPOP_NONCE);
+
+    // Expected result with a DPoP proof containing expected nonce
+    WireMockUtils.stub_token_matching_dpop_nonce_returning_mock_access_token(wms, DPOP_NONCE, MOCK_ACCESS_TOKEN, SCOPE);
+
+    Client client = new Client("client-id", KEY_REFERENCE, SCOPE);
+    ClientCredentials clientCredentials = new ClientCredentials.Builder(URI.create(wms.baseUrl()))
+        .withClient(client)
+        .withRefreshAhead(0.5)
+        .setCustomTokenExpiryPolicy(new TokenExpiryPolicy.Builder().withSafetyMargin(5_000).build())
+        .build();
+
+    // The mock token lives for 10 seconds and expires locally after 5, thus it is due for renewal after 2.5 seconds
+    long requestedAtEpochMillisecond = System.currentTimeMillis();
+    clientCredentials.getAccessToken();
+    clientCredentials.getAccessToken();
+
+    awaitTokenRequests(3);
+    assertTrue(System.currentTimeMillis() - requestedAtEpochMillisecond < 4_000);
+  }
+
+  @Test
+  void builder_should_fail_if_refresh_ahead_fraction_is_out_of_range() {
+    Client client = new Client("client-id", KEY_REFERENCE, SCOPE);
+    try {
+      new ClientCredentials.Builder(URI.create(wms.baseUrl()))
+          .withClient(client)
+          .withRefreshAhead(1.5)
+          .build();
+      fail();
+    } catch (HelseIdException e) {
+      assertEquals("The refresh-ahead fraction must be between 0 and 1", e.getMessage());
+    }
+  }
+
+  /**
+   * Wait for the background renewals to reach HelseID, failing if the token requests do not arrive within five seconds
+   *
+   * @param expectedCount the expected number of token requests
+   */
+  private void awaitTokenRequests(int expectedCount) {
+    long deadline = System.currentTimeMillis() + 5_000;
+    while (wms.findAll(postRequestedFor(urlEqualTo("/connect/token"))).size() < expectedCount
+        && System.currentTimeMillis() < deadline) {
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+    }
+    wms.verify(expectedCount, postRequestedFor(urlEqualTo("/connect/token")));
+  }
+
+  /**
+   * A minimal custom cache relying on the default, uncoordinated getOrLoad of ExpiringCache
+   */
+  private static final class MapExpiringCache<T> implements ExpiringCache<T> {
+    private final Map<String, T> values = new ConcurrentHashMap<>();
+
+    @Override
+    public T get(String key) {
+      return values.get(key);
+    }
+
+    @Override
+    public void put(String key, T value, long expireAtEpochMillisecond) {
+      values.put(key, value);
+    }
+
+    @Override
+    public void remove(String key) {
+      values.remove(key);
+    }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,59 @@
+package no.helseid.grants;
+
+import no.helseid.endpoints.token.ErrorResponse;
+import no.helseid.exceptions.HelseIdException;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NegativeCachePolicyTest {
+
+  @Test
+  void errors_should_be_classified_by_error_code() throws HelseIdException {
+    var policy = new NegativeCachePolicy.Builder().build();
+
+    assertEquals(NegativeCachePolicy.Classification.PERMANENT, policy.classify(new ErrorResponse("invalid_client", null, 400, null)));
+    assertEquals(NegativeCachePolicy.Classification.PERMANENT, policy.classify(new ErrorResponse("invalid_scope", null, 400, null)));
+    assertEquals(NegativeCachePolicy.Classification.TRANSIENT, policy.classify(new ErrorResponse("server_error", null, 500, null)));
+    assertEquals(NegativeCachePolicy.Classification.TRANSIENT, policy.classify(new ErrorResponse(null, null, 503, null)));
+    assertEquals(NegativeCachePolicy.Classification.UNCACHED, policy.classify(new ErrorResponse("use_dpop_nonce", null, 400, null)));
+  }
+
+  @Test
+  void backoff_should_double_per_failure_up_to_the_maximum() throws HelseIdException {
+    var policy = new NegativeCachePolicy.Builder()
+        .withTransientBackoff(1_000, 5_000)
+        .withJitter(0)
+        .build();
+
+    assertEquals(1_000, policy.backoffInMilliseconds(NegativeCachePolicy.Classification.TRANSIENT, 1));
+    assertEquals(2_000, policy.backoffInMilliseconds(NegativeCachePolicy.Classification.TRANSIENT, 2));
+    assertEquals(4_000, policy.backoffInMilliseconds(NegativeCachePolicy.Classification.TRANSIENT, 3));
+    assertEquals(5_000, policy.backoffInMilliseconds(NegativeCachePolicy.Classification.TRANSIENT, 4));
+    assertEquals(5_000, policy.backoffInMilliseconds(NegativeCachePolicy.Classification.TRANSIENT, Integer.MAX_VALUE));
+    assertEquals(0, policy.backoffInMilliseconds(NegativeCachePolicy.Classification.UNCACHED, 1));
+  }
+
+  @Test
+  void jitter_should_only_shorten_the_backoff() throws HelseIdException {
+    var policy = new NegativeCachePolicy.Builder()
+        .withPermanentBackoff(10_000, 10_000)
+        .withJitter(0.5)
+        .build();
+
+    for (int i = 0; i < 100; i++) {
+      long backoff = policy.backoffInMilliseconds(NegativeCachePolicy.Classification.PERMANENT, 1);
+      assertTrue(backoff > 5_000 && backoff <= 10_000);
+    }
+  }
+
+  @Test
+  void builder_should_fail_if_jitter_is_out_of_range() {
+    try {
+      new NegativeCachePolicy.Builder().withJitter(1.5).build();
+      fail();
+    } catch (HelseIdException e) {
+      assertEquals("The jitter must be between 0 and 1", e.getMessage());
+    }
+  }
+}
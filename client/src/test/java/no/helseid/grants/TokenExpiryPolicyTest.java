@@ -0,0 +1,80 @@
+package no.helseid.grants;
+
+import com.nimbusds.jwt.JWTClaimsSet;
+import com.nimbusds.jwt.PlainJWT;
+import no.helseid.endpoints.token.AccessTokenResponse;
+import no.helseid.exceptions.HelseIdException;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.Date;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenExpiryPolicyTest {
+  private static final long REQUEST_START = 1_700_000_000_000L;
+
+  @Test
+  void default_policy_should_count_the_lifetime_from_the_start_of_the_request() {
+    var accessTokenResponse = new AccessTokenResponse("header.payload.signature", "DPoP", 300, Set.of(), null, 200);
+
+    long expireAt = TokenExpiryPolicy.defaultPolicy().expireAtEpochMilliseconds(accessTokenResponse, REQUEST_START);
+
+    assertEquals(REQUEST_START + 300_000, expireAt);
+  }
+
+  @Test
+  void safety_margin_and_jitter_should_expire_the_token_early() throws HelseIdException {
+    var policy = new TokenExpiryPolicy.Builder().withSafetyMargin(10_000).withJitter(5_000).build();
+    var accessTokenResponse = new AccessTokenResponse("header.payload.signature", "DPoP", 300, Set.of(), null, 200);
+
+    for (int i = 0; i < 100; i++) {
+      long expireAt = policy.expireAtEpochMilliseconds(accessTokenResponse, REQUEST_START);
+      assertTrue(expireAt <= REQUEST_START + 290_000);
+      assertTrue(expireAt >= REQUEST_START + 285_000);
+    }
+  }
+
+  @Test
+  void safety_margin_should_not_shorten_the_lifetime_by_more_than_a_half() throws HelseIdException {
+    var policy = new TokenExpiryPolicy.Builder().withSafetyMargin(60_000).build();
+    var accessTokenResponse = new AccessTokenResponse("header.payload.signature", "DPoP", 10, Set.of(), null, 200);
+
+    assertEquals(REQUEST_START + 5_000, policy.expireAtEpochMilliseconds(accessTokenResponse, REQUEST_START));
+  }
+
+  @Test
+  void clock_skew_should_be_compensated_for_jwt_access_tokens() throws HelseIdException {
+    var policy = new TokenExpiryPolicy.Builder().withClockSkewCompensation().build();
+    // The clock of HelseID is 30 seconds ahead, and the expiration claim leaves 200 of the 300 seconds in expires_in
+    Instant serverDate = Instant.ofEpochMilli(REQUEST_START + 30_000);
+    String accessToken = new PlainJWT(new JWTClaimsSet.Builder()
+        .expirationTime(Date.from(serverDate.plusSeconds(200)))
+        .build()).serialize();
+    var accessTokenResponse = new AccessTokenResponse(accessToken, "DPoP", 300, Set.of(), null, 200, serverDate);
+
+    long expireAt = policy.expireAtEpochMilliseconds(accessTokenResponse, REQUEST_START);
+
+    // The skew is overestimated by at most a second due to the resolution of the Date header
+    assertEquals(REQUEST_START + 199_000, expireAt);
+  }
+
+  @Test
+  void clock_skew_compensation_should_ignore_opaque_tokens() throws HelseIdException {
+    var policy = new TokenExpiryPolicy.Builder().withClockSkewCompensation().build();
+    var accessTokenResponse = new AccessTokenResponse("opaque", "DPoP", 300, Set.of(), null, 200, Instant.ofEpochMilli(REQUEST_START));
+
+    assertEquals(REQUEST_START + 300_000, policy.expireAtEpochMilliseconds(accessTokenResponse, REQUEST_START));
+  }
+
+  @Test
+  void builder_should_fail_if_safety_margin_is_negative() {
+    try {
+      new TokenExpiryPolicy.Builder().withSafetyMargin(-1).build();
+      fail();
+    } catch (HelseIdException e) {
+      assertEquals("The safety margin can not be negative", e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package no.helseid.grants;
+
+import no.helseid.dpop.DPoPProofCreator;
+import no.helseid.endpoints.token.AccessTokenResponse;
+import no.helseid.endpoints.token.ErrorResponse;
+import no.helseid.endpoints.token.TokenRequestDetails;
+import no.helseid.endpoints.token.TokenResponse;
+import no.helseid.exceptions.HelseIdException;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenPrefetcherTest {
+
+  @Test
+  void prefetch_should_bound_the_number_of_token_requests_in_flight() throws HelseIdException {
+    AtomicInteger inFlight = new AtomicInteger();
+    AtomicInteger maximumInFlight = new AtomicInteger();
+    ClientCredentials clientCredentials = new FakeClientCredentials(details -> {
+      maximumInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+      return CompletableFuture.supplyAsync(() -> {
+        inFlight.decrementAndGet();
+        return accessTokenResponse();
+      }, CompletableFuture.delayedExecutor(20, TimeUnit.MILLISECONDS));
+    });
+
+    PrefetchReport report = clientCredentials.prefetch(tenants(20), new PrefetchOptions.Builder()
+        .withMaximumConcurrency(3)
+        .withMaximumRequestsPerSecond(0)
+        .build());
+
+    assertEquals(20, report.successCount());
+    assertEquals(0, report.failureCount());
+    assertTrue(maximumInFlight.get() <= 3);
+    assertTrue(maximumInFlight.get() > 1);
+  }
+
+  @Test
+  void prefetch_should_pace_token_requests_by_the_rate_cap() throws HelseIdException {
+    ClientCredentials clientCredentials = new FakeClientCredentials(details -> CompletableFuture.completedFuture(accessTokenResponse()));
+
+    PrefetchReport report = clientCredentials.prefetch(tenants(11), new PrefetchOptions.Builder()
+        .withMaximumRequestsPerSecond(50)
+        .build());
+
+    assertEquals(11, report.successCount());
+    assertTrue(report.elapsedInMilliseconds() >= 190);
+  }
+
+  @Test
+  void prefetch_should_report_the_result_of_each_token_request_details() throws HelseIdException {
+    List<TokenRequestDetails> tenants = tenants(3);
+    ClientCredentials clientCredentials = new FakeClientCredentials(details -> {
+      if (details == tenants.get(1)) {
+        return CompletableFuture.completedFuture(new ErrorResponse("invalid_request", "Unknown child organization", 400, ""));
+      }
+      if (details == tenants.get(2)) {
+        return CompletableFuture.failedFuture(new HelseIdException("Connection refused"));
+      }
+      return CompletableFuture.completedFuture(accessTokenResponse());
+    });
+
+    PrefetchReport report = clientCredentials.prefetch(tenants);
+
+    assertEquals(1, report.successCount());
+    assertEquals(2, report.failureCount());
+    assertSame(tenants.get(0), report.results().get(0).tokenRequestDetails());
+    assertTrue(report.results().get(0).isSuccess());
+    assertInstanceOf(ErrorResponse.class, report.results().get(1).tokenResponse());
+    assertNull(report.results().get(1).failure());
+    assertEquals("Connection refused", report.results().get(2).failure().getMessage());
+    assertEquals(List.of(report.results().get(1), report.results().get(2)), report.failures());
+  }
+
+  @Test
+  void options_should_fail_if_misconfigured() {
+    HelseIdException concurrency = assertThrows(HelseIdException.class, () -> new PrefetchOptions.Builder().withMaximumConcurrency(0).build());
+    assertEquals("The maximum concurrency must be positive", concurrency.getMessage());
+
+    HelseIdException rate = assertThrows(HelseIdException.class, () -> new PrefetchOptions.Builder().withMaximumRequestsPerSecond(-1).build());
+    assertEquals("The maximum number of requests per second can not be negative", rate.getMessage());
+  }
+
+  private static List<TokenRequestDetails> tenants(int count) throws HelseIdException {
+    List<TokenRequestDetails> tenants = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      tenants.add(new TokenRequestDetails.Builder()
+          .withChildOrganizationNumber(String.valueOf(900_000_000 + i))
+          .build());
+    }
+    return tenants;
+  }
+
+  private static AccessTokenResponse accessTokenResponse() {
+    return new AccessTokenResponse("accessToken", "DPoP", 60, Set.of("nhn:helseid/test"), "", 200);
+  }
+
+  private record FakeClientCredentials(Function<TokenRequestDetails, CompletableFuture<TokenResponse>> tokenRequest) implements ClientCredentials {
+    @Override
+    public TokenResponse getAccessToken() {
+      return getAccessToken(null);
+    }
+
+    @Override
+    public TokenResponse getAccessToken(TokenRequestDetails tokenRequestDetails) {
+      return tokenRequest.apply(tokenRequestDetails).join();
+    }
+
+    @Override
+    public CompletableFuture<TokenResponse> getAccessTokenAsync(TokenRequestDetails tokenRequestDetails) {
+      return tokenRequest.apply(tokenRequestDetails);
+    }
+
+    @Override
+    public DPoPProofCreator getCurrentDPoPProofCreator() {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package no.helseid.signing;
+
+import com.nimbusds.jose.JOSEObjectType;
+import com.nimbusds.jose.JWSAlgorithm;
+import no.helseid.exceptions.HelseIdException;
+import org.junit.jupiter.api.Test;
+
+import java.security.PrivateKey;
+import java.security.PublicKey;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SigningMaterialTest {
+
+  @Test
+  void signing_material_should_be_reused_for_the_same_key_reference() throws HelseIdException {
+    var reference = RSAKeyReference.generate(Algorithm.PS256);
+
+    SigningMaterial first = SigningMaterial.of(reference);
+    SigningMaterial second = SigningMaterial.of(reference);
+
+    assertSame(first, second);
+    assertEquals(reference.getKeyId(), first.getKeyId());
+    assertEquals(JWSAlgorithm.PS256, first.getJWSAlgorithm());
+    assertTrue(first.getSigner().supportedJWSAlgorithms().contains(JWSAlgorithm.PS256));
+  }
+
+  @Test
+  void headers_should_be_reused_per_type() throws HelseIdException {
+    var reference = ECKeyReference.generate(Algorithm.ES256);
+    var type = new JOSEObjectType("client-authentication+jwt");
+
+    SigningMaterial signingMaterial = SigningMaterial.of(reference);
+
+    assertSame(signingMaterial.getHeader(type), signingMaterial.getHeader(type));
+    assertEquals(type, signingMaterial.getHeader(type).getType());
+    assertEquals(reference.getKeyId(), signingMaterial.getHeader(type).getKeyID());
+    assertEquals(JWSAlgorithm.ES256, signingMaterial.getHeader(type).getAlgorithm());
+  }
+
+  @Test
+  void signing_material_should_be_prepared_again_when_the_key_changes() throws HelseIdException {
+    var firstKey = ECKeyReference.generate(Algorithm.ES256);
+    var secondKey = ECKeyReference.generate(Algorithm.ES256);
+    var rotatingReference = new RotatingKeyReference(firstKey);
+
+    SigningMaterial first = SigningMaterial.of(rotatingReference);
+    rotatingReference.current = secondKey;
+    SigningMaterial second = SigningMaterial.of(rotatingReference);
+
+    assertNotSame(first, second);
+    assertEquals(firstKey.getKeyId(), first.getKeyId());
+    assertEquals(secondKey.getKeyId(), second.getKeyId());
+    assertNotEquals(first.getThumbprint(), second.getThumbprint());
+  }
+
+  @Test
+  void signing_material_should_not_be_remembered_for_a_custom_key_reference() throws HelseIdException {
+    var rotatingReference = new RotatingKeyReference(ECKeyReference.generate(Algorithm.ES256));
+
+    SigningMaterial first = SigningMaterial.of(rotatingReference);
+    SigningMaterial second = SigningMaterial.of(rotatingReference);
+
+    assertNotSame(first, second);
+    assertTrue(first.isPreparedFor(rotatingReference));
+    assertEquals(first.getThumbprint(), second.getThumbprint());
+  }
+
+  private static final class RotatingKeyReference implements KeyReference {
+    private volatile KeyReference current;
+
+    private RotatingKeyReference(KeyReference current) {
+      this.current = current;
+    }
+
+    @Override
+    public PrivateKey getPrivateKey() throws HelseIdException {
+      return current.getPrivateKey();
+    }
+
+    @Override
+    public PublicKey getPublicKey() throws HelseIdException {
+      return current.getPublicKey();
+    }
+
+    @Override
+    public Algorithm getAlgorithm() {
+      return current.getAlgorithm();
+    }
+
+    @Override
+    public String getKeyId() {
+      return current.getKeyId();
+    }
+  }
+}
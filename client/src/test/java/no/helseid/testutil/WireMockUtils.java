@@ -40,6 +40,21 @@ public class WireMockUtils {
         .willReturn(response));
   }
 
+  public static void stub_token_matching_dpop_nonce_with_use_dpop_nonce_response(WireMockServer wms, String expectedDPoPNonce, String useDPoPNonce) {
+    var response = badRequest()
+        .withHeader("Content-Type", "application/json")
+        .withHeader("DPoP-Nonce", useDPoPNonce)
+        .withBody(new JSONObject()
+            .appendField("error", "use_dpop_nonce")
+            .appendField("error_description", "Authorization server requires nonce in DPoP proof")
+            .toJSONString()
+        );
+
+    wms.stubFor(post(urlPathEqualTo(TOKEN_ENDPOINT_PATH))
+        .andMatching(request -> HelseIdRequestMatcher.hasDPoPProofContainingNonce(request, expectedDPoPNonce))
+        .willReturn(response));
+  }
+
   public static void stub_token_matching_dpop_nonce_returning_mock_access_token(WireMockServer wms, String expectedDPoPNonce, String mockAccessToken, Set<String> scopes) {
     // Expected result with a DPoP proof containing expected nonce
     var response = new JSONObject()
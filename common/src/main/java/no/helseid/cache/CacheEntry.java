@@ -0,0 +1,24 @@
+package no.helseid.cache;
+
+/**
+ * A cached value and the point in time where it expires
+ *
+ * @param value the cached value
+ * @param expireAtEpochMilliseconds the timestamp where the value is expiring, represented in milliseconds since epoch,
+ *                                  UNKNOWN_EXPIRY if the cache does not reveal the expiration
+ * @param <T> the class of the cached value
+ */
+public record CacheEntry<T>(T value, long expireAtEpochMilliseconds) {
+  /**
+   * The expiration of an entry from a cache not revealing when its values expire
+   */
+  public static final long UNKNOWN_EXPIRY = Long.MAX_VALUE;
+
+  /**
+   * Check if the cache revealed when the value expires
+   * @return true if the expiration is known
+   */
+  public boolean hasKnownExpiry() {
+    return expireAtEpochMilliseconds != UNKNOWN_EXPIRY;
+  }
+}
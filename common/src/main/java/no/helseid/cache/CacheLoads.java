@@ -0,0 +1,92 @@
+package no.helseid.cache;
+
+import no.helseid.exceptions.HelseIdException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Internal helpers running the loaders of expiring caches, recording the time spent as loads
+ */
+final class CacheLoads {
+  private CacheLoads() {
+  }
+
+  /**
+   * Run a loader, recording the time spent as a successful or failed load
+   *
+   * @param key the key the value is cached on
+   * @param loader the loader producing the value
+   * @param statsCounter the counter recording the load
+   * @return the loaded value and its expiration
+   * @param <T> the class of the loaded value
+   * @throws HelseIdException if the load fails or the loader returns nothing
+   */
+  static <T> CacheEntry<T> load(String key, ExpiringCache.Loader<T> loader, StatsCounter statsCounter) throws HelseIdException {
+    long startNanoseconds = System.nanoTime();
+    CacheEntry<T> loadedEntry;
+    try {
+      loadedEntry = loader.load(key);
+    } catch (HelseIdException | RuntimeException e) {
+      statsCounter.recordLoadFailure(System.nanoTime() - startNanoseconds);
+      throw e;
+    }
+
+    if (loadedEntry == null) {
+      statsCounter.recordLoadFailure(System.nanoTime() - startNanoseconds);
+      throw new HelseIdException("The loader returned no value");
+    }
+    statsCounter.recordLoadSuccess(System.nanoTime() - startNanoseconds);
+    return loadedEntry;
+  }
+
+  /**
+   * Start an asynchronous loader, recording the time spent until completion as a successful or failed load
+   *
+   * @param key the key the value is cached on
+   * @param loader the loader starting the load
+   * @param statsCounter the counter recording the load
+   * @return a future completed with the loaded value and its expiration, or failed if the load fails or the loader returns nothing
+   * @param <T> the class of the loaded value
+   */
+  static <T> CompletableFuture<CacheEntry<T>> loadAsync(String key, ExpiringCache.AsyncLoader<T> loader, StatsCounter statsCounter) {
+    long startNanoseconds = System.nanoTime();
+    CompletableFuture<CacheEntry<T>> load;
+    try {
+      load = loader.load(key);
+    } catch (HelseIdException | RuntimeException e) {
+      statsCounter.recordLoadFailure(System.nanoTime() - startNanoseconds);
+      return CompletableFuture.failedFuture(e);
+    }
+
+    return load.thenApply(loadedEntry -> {
+      if (loadedEntry == null) {
+        throw new CompletionException(new HelseIdException("The loader returned no value"));
+      }
+      return loadedEntry;
+    }).whenComplete((loadedEntry, throwable) -> {
+      if (throwable == null) {
+        statsCounter.recordLoadSuccess(System.nanoTime() - startNanoseconds);
+      } else {
+        statsCounter.recordLoadFailure(System.nanoTime() - startNanoseconds);
+      }
+    });
+  }
+
+  /**
+   * Cache a loaded value unless another caller cached a value first, in which case that value is returned instead
+   *
+   * @param cache the cache the value is loaded into
+   * @param key the key the value is cached on
+   * @param loadedEntry the loaded value and its expiration
+   * @return the value cached on the key
+   * @param <T> the class of the loaded value
+   */
+  static <T> CacheEntry<T> insert(ExpiringCache<T> cache, String key, CacheEntry<T> loadedEntry) {
+    if (cache.putIfAbsent(key, loadedEntry.value(), loadedEntry.expireAtEpochMilliseconds())) {
+      return loadedEntry;
+    }
+    CacheEntry<T> winningEntry = cache.getEntry(key);
+    return winningEntry != null ? winningEntry : loadedEntry;
+  }
+}
@@ -0,0 +1,83 @@
+package no.helseid.cache;
+
+/**
+ * An immutable snapshot of the statistics of a cache
+ *
+ * @param hitCount the number of lookups returning a cached value
+ * @param missCount the number of lookups returning no value, including expired values
+ * @param expirationCount the number of values removed because they expired
+ * @param evictionCount the number of values removed to keep the cache within its maximum size
+ * @param loadSuccessCount the number of loads on a miss resulting in a cached value
+ * @param loadFailureCount the number of loads on a miss failing or resulting in a value that is not cached
+ * @param totalLoadTimeNanoseconds the total time spent loading, in nanoseconds
+ */
+public record CacheStats(
+    long hitCount,
+    long missCount,
+    long expirationCount,
+    long evictionCount,
+    long loadSuccessCount,
+    long loadFailureCount,
+    long totalLoadTimeNanoseconds
+) {
+  private static final CacheStats EMPTY = new CacheStats(0, 0, 0, 0, 0, 0, 0);
+
+  /**
+   * Access statistics where nothing is recorded
+   * @return statistics where every count is zero
+   */
+  public static CacheStats empty() {
+    return EMPTY;
+  }
+
+  /**
+   * The number of lookups, either hits or misses
+   * @return the number of lookups
+   */
+  public long requestCount() {
+    return hitCount + missCount;
+  }
+
+  /**
+   * The ratio of lookups returning a cached value
+   * @return the hit rate, 1.0 if there has been no lookups
+   */
+  public double hitRate() {
+    long requestCount = requestCount();
+    return requestCount == 0 ? 1.0 : (double) hitCount / requestCount;
+  }
+
+  /**
+   * The number of loads, either successful or failed
+   * @return the number of loads
+   */
+  public long loadCount() {
+    return loadSuccessCount + loadFailureCount;
+  }
+
+  /**
+   * The average time spent on a load
+   * @return the average load time in nanoseconds, 0.0 if there has been no loads
+   */
+  public double averageLoadPenaltyNanoseconds() {
+    long loadCount = loadCount();
+    return loadCount == 0 ? 0.0 : (double) totalLoadTimeNanoseconds / loadCount;
+  }
+
+  /**
+   * The difference between this and earlier statistics, useful when exporting statistics periodically
+   * @param other earlier statistics of the same cache
+   * @return the statistics recorded since the earlier statistics, never negative
+   */
+  public CacheStats minus(CacheStats other) {
+    return new CacheStats(
+        Math.max(0, hitCount - other.hitCount),
+        Math.max(0, missCount - other.missCount),
+        Math.max(0, expirationCount - other.expirationCount),
+        Math.max(0, evictionCount - other.evictionCount),
+        Math.max(0, loadSuccessCount - other.loadSuccessCount),
+        Math.max(0, loadFailureCount - other.loadFailureCount),
+        Math.max(0, totalLoadTimeNanoseconds - other.totalLoadTimeNanoseconds)
+    );
+  }
+}
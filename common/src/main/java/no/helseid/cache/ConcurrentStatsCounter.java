@@ -0,0 +1,68 @@
+package no.helseid.cache;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread safe counter of cache statistics.
+ * Each statistic is a striped counter, so concurrent lookups do not contend on a shared counter
+ */
+public final class ConcurrentStatsCounter implements StatsCounter {
+  private final LongAdder hitCount = new LongAdder();
+  private final LongAdder missCount = new LongAdder();
+  private final LongAdder expirationCount = new LongAdder();
+  private final LongAdder evictionCount = new LongAdder();
+  private final LongAdder loadSuccessCount = new LongAdder();
+  private final LongAdder loadFailureCount = new LongAdder();
+  private final LongAdder totalLoadTimeNanoseconds = new LongAdder();
+
+  /**
+   * Create a new instance of ConcurrentStatsCounter where nothing is recorded
+   */
+  public ConcurrentStatsCounter() {
+  }
+
+  @Override
+  public void recordHits(int count) {
+    hitCount.add(count);
+  }
+
+  @Override
+  public void recordMisses(int count) {
+    missCount.add(count);
+  }
+
+  @Override
+  public void recordExpiration() {
+    expirationCount.increment();
+  }
+
+  @Override
+  public void recordEviction() {
+    evictionCount.increment();
+  }
+
+  @Override
+  public void recordLoadSuccess(long loadTimeNanoseconds) {
+    loadSuccessCount.increment();
+    totalLoadTimeNanoseconds.add(loadTimeNanoseconds);
+  }
+
+  @Override
+  public void recordLoadFailure(long loadTimeNanoseconds) {
+    loadFailureCount.increment();
+    totalLoadTimeNanoseconds.add(loadTimeNanoseconds);
+  }
+
+  @Override
+  public CacheStats snapshot() {
+    return new CacheStats(
+        hitCount.sum(),
+        missCount.sum(),
+        expirationCount.sum(),
+        evictionCount.sum(),
+        loadSuccessCount.sum(),
+        loadFailureCount.sum(),
+        totalLoadTimeNanoseconds.sum()
+    );
+  }
+}
@@ -1,5 +1,9 @@
 package no.helseid.cache;
 
+import no.helseid.exceptions.HelseIdException;
+
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Caching interface used by HelseID internals
  * May be implemended to provide distributed caching or interactions with a custom cache
@@ -16,6 +20,18 @@ public interface ExpiringCache<T> {
   T get(String key);
 
 
+  /**
+   * Get the cached value on a key together with its expiration, an expired value is interpreted as missing.
+   * The default implementation does not reveal the expiration, caches knowing it should override this method
+   *
+   * @param key the key a value is cached on
+   * @return the cached value and its expiration, null if missing or expired
+   */
+  default CacheEntry<T> getEntry(String key) {
+    T value = get(key);
+    return value == null ? null : new CacheEntry<>(value, CacheEntry.UNKNOWN_EXPIRY);
+  }
+
   /**
    * Add a value to the cache
    * @param key the key a value is cached on
@@ -29,4 +45,129 @@ public interface ExpiringCache<T> {
    * @param key the key a value is cached on
    */
   void remove(String key);
+
+  /**
+   * Add a value to the cache unless a value is already cached on the key.
+   * The default implementation is not atomic, caches shared between processes must override it with an atomic operation
+   * before being used for leases
+   *
+   * @param key the key a value is cached on
+   * @param value the value that will be cached
+   * @param expireAtEpochMillisecond the timestamp where the value is expiring, represented in milliseconds since epoch
+   * @return true if the value was added, false if a value was already cached
+   */
+  default boolean putIfAbsent(String key, T value, long expireAtEpochMillisecond) {
+    if (get(key) != null) {
+      return false;
+    }
+    put(key, value, expireAtEpochMillisecond);
+    return true;
+  }
+
+  /**
+   * Remove the cached value on the given key only if it equals the given value.
+   * The default implementation is not atomic, caches shared between processes must override it with an atomic operation
+   * before being used for leases
+   *
+   * @param key the key a value is cached on
+   * @param value the value expected to be cached
+   * @return true if the value was removed
+   */
+  default boolean remove(String key, T value) {
+    T current = get(key);
+    if (current == null || !current.equals(value)) {
+      return false;
+    }
+    remove(key);
+    return true;
+  }
+
+  /**
+   * Get the cached value on a key, or load and cache it if missing or expired.
+   * The time spent loading is recorded as a load by the statistics of the cache.
+   * The default implementation caches the loaded value with putIfAbsent and returns the value of another caller
+   * winning the race, thus callers agree on the value but may load it more than once.
+   * Caches able to coordinate loads should override this method, loading at most once per key and expiration
+   *
+   * @param key the key a value is cached on
+   * @param loader the loader producing the value and its expiration on a miss
+   * @return the cached or loaded value and its expiration
+   * @throws HelseIdException if the load fails, nothing is cached
+   */
+  default CacheEntry<T> getOrLoad(String key, Loader<T> loader) throws HelseIdException {
+    CacheEntry<T> cachedEntry = getEntry(key);
+    if (cachedEntry != null) {
+      return cachedEntry;
+    }
+    return CacheLoads.insert(this, key, CacheLoads.load(key, loader, statsCounter()));
+  }
+
+  /**
+   * Get the cached value on a key, or load and cache it without blocking if missing or expired.
+   * The default implementation has the semantics of {@link #getOrLoad(String, Loader)}
+   *
+   * @param key the key a value is cached on
+   * @param loader the loader starting the load of the value and its expiration on a miss
+   * @return a future completed with the cached or loaded value and its expiration, or failed if the load fails
+   */
+  default CompletableFuture<CacheEntry<T>> getOrLoadAsync(String key, AsyncLoader<T> loader) {
+    CacheEntry<T> cachedEntry = getEntry(key);
+    if (cachedEntry != null) {
+      return CompletableFuture.completedFuture(cachedEntry);
+    }
+    return CacheLoads.loadAsync(key, loader, statsCounter()).thenApply(loadedEntry -> CacheLoads.insert(this, key, loadedEntry));
+  }
+
+  /**
+   * Access the counter recording the statistics of the cache.
+   * Loads thru getOrLoad are recorded by the cache, users loading values otherwise record the time spent into the counter
+   *
+   * @return the counter of the cache, a counter recording nothing if the cache does not keep statistics
+   */
+  default StatsCounter statsCounter() {
+    return StatsCounter.disabled();
+  }
+
+  /**
+   * Take a snapshot of the statistics of the cache
+   *
+   * @return the statistics recorded so far
+   */
+  default CacheStats stats() {
+    return statsCounter().snapshot();
+  }
+
+  /**
+   * A load of a missing value which may fail with a HelseIdException
+   *
+   * @param <T> the class of the loaded value
+   */
+  @FunctionalInterface
+  interface Loader<T> {
+    /**
+     * Load the value on a key
+     *
+     * @param key the key the value is cached on
+     * @return the loaded value and when it expires, never null
+     * @throws HelseIdException if the load fails
+     */
+    CacheEntry<T> load(String key) throws HelseIdException;
+  }
+
+  /**
+   * A load of a missing value performed asynchronously, which may fail before it is started with a HelseIdException
+   *
+   * @param <T> the class of the loaded value
+   */
+  @FunctionalInterface
+  interface AsyncLoader<T> {
+    /**
+     * Start the load of the value on a key
+     *
+     * @param key the key the value is cached on
+     * @return a future completed with the loaded value and when it expires, never null
+     * @throws HelseIdException if the load can not be started
+     */
+    CompletableFuture<CacheEntry<T>> load(String key) throws HelseIdException;
+  }
 }
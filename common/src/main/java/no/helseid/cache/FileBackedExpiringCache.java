@@ -0,0 +1,648 @@
+package no.helseid.cache;
+
+import no.helseid.concurrent.SingleFlight;
+import no.helseid.exceptions.HelseIdException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * An expiring cache kept in memory and persisted to an append-only file, letting a restarted process serve still valid values.
+ * Every change is appended to the file as a record protected by a checksum. A record torn by a crash is detected and discarded
+ * when the file is loaded, together with everything written after it.
+ * The file is compacted on load and when it mostly consists of outdated records, by writing the live entries to a new file
+ * replacing the old one atomically.
+ * Lookups are served from memory and never touch the file. A file must only be used by one cache at a time.
+ * The file holds the cached values unencrypted, for a token cache these are bearer tokens and the token responses of HelseID.
+ * It is created readable and writable by the owner of the process only, and should be kept in a directory only the process can access.
+ *
+ * @param <T> the class of the cached values
+ */
+public final class FileBackedExpiringCache<T> implements ExpiringCache<T>, Closeable {
+  /**
+   * The number of records appended before the file is considered for compaction, unless configured otherwise
+   */
+  public static final int DEFAULT_COMPACTION_THRESHOLD = 1_000;
+  private static final int MAGIC = 0x48494443;
+  private static final int FORMAT_VERSION = 1;
+  private static final int FILE_HEADER_SIZE = 8;
+  private static final int RECORD_HEADER_SIZE = 8;
+  private static final int MINIMUM_PAYLOAD_SIZE = 1 + 8 + 4;
+  private static final int MAXIMUM_RECORD_SIZE = 16 * 1024 * 1024;
+  private static final byte PUT = 1;
+  private static final byte REMOVE = 2;
+  private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+
+  private final Path path;
+  private final ValueCodec<T> codec;
+  private final int maximumSize;
+  private final int compactionThreshold;
+  private final boolean forceOnWrite;
+  private final StatsCounter statsCounter = new ConcurrentStatsCounter();
+  private final ConcurrentHashMap<String, Entry<T>> entries = new ConcurrentHashMap<>();
+  private final SingleFlight<CacheEntry<T>> loads = new SingleFlight<>();
+  private final ReentrantLock writeLock = new ReentrantLock();
+  private FileChannel channel;
+  private int recordCount;
+  private boolean compactionRequired;
+  private boolean closed;
+
+  private FileBackedExpiringCache(Path path, ValueCodec<T> codec, int maximumSize, int compactionThreshold, boolean forceOnWrite) {
+    this.path = path;
+    this.codec = codec;
+    this.maximumSize = maximumSize;
+    this.compactionThreshold = compactionThreshold;
+    this.forceOnWrite = forceOnWrite;
+  }
+
+  /**
+   * @param key the key a value is cached on
+   * @return the cached value if present, otherwise null
+   */
+  @Override
+  public T get(String key) {
+    Entry<T> entry = lookup(key);
+    return entry == null ? null : entry.value;
+  }
+
+  /**
+   * @param key the key a value is cached on
+   * @return the cached value and its expiration if present, otherwise null
+   */
+  @Override
+  public CacheEntry<T> getEntry(String key) {
+    Entry<T> entry = lookup(key);
+    return entry == null ? null : new CacheEntry<>(entry.value, entry.expireAtEpochMilliseconds);
+  }
+
+  /**
+   * Look up a value without recording the use
+   *
+   * @param key the key a value is cached on
+   * @return the value and its expiration if present and not expired, otherwise null
+   */
+  private CacheEntry<T> peek(String key) {
+    Entry<T> entry = entries.get(key);
+    if (entry == null || entry.expireAtEpochMilliseconds < System.currentTimeMillis()) {
+      return null;
+    }
+    return new CacheEntry<>(entry.value, entry.expireAtEpochMilliseconds);
+  }
+
+  private Entry<T> lookup(String key) {
+    Entry<T> entry = entries.get(key);
+
+    if (entry == null) {
+      statsCounter.recordMisses(1);
+      return null;
+    }
+
+    if (entry.expireAtEpochMilliseconds < System.currentTimeMillis()) {
+      // The record is left in the file, expired entries are dropped by the next compaction
+      if (entries.remove(key, entry)) {
+        statsCounter.recordExpiration();
+      }
+      statsCounter.recordMisses(1);
+      return null;
+    }
+
+    statsCounter.recordHits(1);
+    return entry;
+  }
+
+  /**
+   * The value is cached in memory even if it can not be persisted, a failed write is repaired by compacting the file
+   *
+   * @param key the key the value should be cached on
+   * @param value the value to be cached
+   * @param expireAtEpochMilliseconds when the value expires
+   */
+  @Override
+  public void put(String key, T value, long expireAtEpochMilliseconds) {
+    writeLock.lock();
+    try {
+      entries.put(key, new Entry<>(value, expireAtEpochMilliseconds));
+
+      byte[] encodedValue;
+      try {
+        encodedValue = codec.encode(value);
+      } catch (HelseIdException e) {
+        // An earlier value on the key must not be restored on load
+        append(REMOVE, key, 0L, new byte[0]);
+        return;
+      }
+      append(PUT, key, expireAtEpochMilliseconds, encodedValue);
+
+      if (entries.size() > maximumSize) {
+        evict(key);
+      }
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * @param key the key a value is cached on
+   */
+  @Override
+  public void remove(String key) {
+    writeLock.lock();
+    try {
+      if (entries.remove(key) != null) {
+        append(REMOVE, key, 0L, new byte[0]);
+      }
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Add a value unless a value that has not expired is cached on the key, atomic within the process
+   *
+   * @param key the key the value should be cached on
+   * @param value the value to be cached
+   * @param expireAtEpochMilliseconds when the value expires
+   * @return true if the value was added
+   */
+  @Override
+  public boolean putIfAbsent(String key, T value, long expireAtEpochMilliseconds) {
+    writeLock.lock();
+    try {
+      Entry<T> entry = entries.get(key);
+      if (entry != null && entry.expireAtEpochMilliseconds >= System.currentTimeMillis()) {
+        return false;
+      }
+      put(key, value, expireAtEpochMilliseconds);
+      return true;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Remove the value on a key if it equals the given value, atomic within the process
+   *
+   * @param key the key a value is cached on
+   * @param value the value expected to be cached
+   * @return true if the value was removed
+   */
+  @Override
+  public boolean remove(String key, T value) {
+    writeLock.lock();
+    try {
+      Entry<T> entry = entries.get(key);
+      if (entry == null || !Objects.equals(entry.value, value)) {
+        return false;
+      }
+      remove(key);
+      return true;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Concurrent callers missing the same key share a single load, loading at most once per key and expiration within the process
+   *
+   * @param key the key a value is cached on
+   * @param loader the loader producing the value and its expiration on a miss
+   * @return the cached or loaded value and its expiration
+   * @throws HelseIdException if the load fails, the failure is shared by every caller waiting on the load
+   */
+  @Override
+  public CacheEntry<T> getOrLoad(String key, Loader<T> loader) throws HelseIdException {
+    CacheEntry<T> cachedEntry = getEntry(key);
+    if (cachedEntry != null) {
+      return cachedEntry;
+    }
+
+    return loads.execute(key, () -> {
+      // A load completed just before this one started
+      CacheEntry<T> loadedByOthers = peek(key);
+      if (loadedByOthers != null) {
+        return loadedByOthers;
+      }
+      CacheEntry<T> loadedEntry = CacheLoads.load(key, loader, statsCounter);
+      put(key, loadedEntry.value(), loadedEntry.expireAtEpochMilliseconds());
+      return loadedEntry;
+    });
+  }
+
+  /**
+   * Concurrent callers missing the same key share a single load, including loads started by getOrLoad
+   *
+   * @param key the key a value is cached on
+   * @param loader the loader starting the load of the value and its expiration on a miss
+   * @return a future completed with the cached or loaded value and its expiration, or failed if the load fails
+   */
+  @Override
+  public CompletableFuture<CacheEntry<T>> getOrLoadAsync(String key, AsyncLoader<T> loader) {
+    CacheEntry<T> cachedEntry = getEntry(key);
+    if (cachedEntry != null) {
+      return CompletableFuture.completedFuture(cachedEntry);
+    }
+
+    return loads.executeAsync(key, () -> {
+      CacheEntry<T> loadedByOthers = peek(key);
+      if (loadedByOthers != null) {
+        return CompletableFuture.completedFuture(loadedByOthers);
+      }
+      return CacheLoads.loadAsync(key, loader, statsCounter).thenApply(loadedEntry -> {
+        put(key, loadedEntry.value(), loadedEntry.expireAtEpochMilliseconds());
+        return loadedEntry;
+      });
+    });
+  }
+
+  @Override
+  public StatsCounter statsCounter() {
+    return statsCounter;
+  }
+
+  /**
+   * Access the number of entries currently held, including expired entries not yet removed
+   * @return the number of entries currently held
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Access the file the cache is persisted to
+   * @return the path of the file
+   */
+  public Path getPath() {
+    return path;
+  }
+
+  /**
+   * Close the file, values put after closing are only cached in memory
+   * @throws IOException if the file can not be closed
+   */
+  @Override
+  public void close() throws IOException {
+    writeLock.lock();
+    try {
+      closed = true;
+      if (channel != null) {
+        channel.close();
+        channel = null;
+      }
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * Remove expired entries, then the entries expiring first until the cache is within its maximum size.
+   * Must be called holding the write lock
+   *
+   * @param insertedKey the key just inserted, which is never evicted by the same insertion
+   */
+  private void evict(String insertedKey) {
+    long now = System.currentTimeMillis();
+    for (Map.Entry<String, Entry<T>> entry : entries.entrySet()) {
+      if (entry.getValue().expireAtEpochMilliseconds < now && entries.remove(entry.getKey(), entry.getValue())) {
+        statsCounter.recordExpiration();
+      }
+    }
+
+    while (entries.size() > maximumSize) {
+      String earliestExpiringKey = null;
+      long earliestExpiry = Long.MAX_VALUE;
+      for (Map.Entry<String, Entry<T>> entry : entries.entrySet()) {
+        if (!entry.getKey().equals(insertedKey) && entry.getValue().expireAtEpochMilliseconds < earliestExpiry) {
+          earliestExpiringKey = entry.getKey();
+          earliestExpiry = entry.getValue().expireAtEpochMilliseconds;
+        }
+      }
+      if (earliestExpiringKey == null) {
+        return;
+      }
+      entries.remove(earliestExpiringKey);
+      statsCounter.recordEviction();
+      append(REMOVE, earliestExpiringKey, 0L, new byte[0]);
+    }
+  }
+
+  /**
+   * Append a record to the file, compacting the file when it mostly consists of outdated records.
+   * Must be called holding the write lock
+   *
+   * @param type the type of the record
+   * @param key the key of the entry
+   * @param expireAtEpochMilliseconds when the value expires, ignored for removals
+   * @param encodedValue the encoded value, empty for removals
+   */
+  private void append(byte type, String key, long expireAtEpochMilliseconds, byte[] encodedValue) {
+    if (closed) {
+      return;
+    }
+
+    if (compactionRequired || (recordCount >= compactionThreshold && recordCount > 2 * entries.size())) {
+      compact();
+      // The compacted file already contains the change
+      return;
+    }
+
+    try {
+      ByteBuffer record = encodeRecord(type, key, expireAtEpochMilliseconds, encodedValue);
+      while (record.hasRemaining()) {
+        channel.write(record);
+      }
+      if (forceOnWrite) {
+        channel.force(false);
+      }
+      recordCount++;
+    } catch (IOException e) {
+      // The file might end in a partial record, rewrite the file from memory on the next change
+      compactionRequired = true;
+    }
+  }
+
+  /**
+   * Replace the file with a file containing only the live entries.
+   * Must be called holding the write lock
+   */
+  private void compact() {
+    Path compactedPath = path.resolveSibling(path.getFileName() + ".compacting");
+    long now = System.currentTimeMillis();
+
+    try {
+      int compactedRecordCount = 0;
+      try (FileChannel compactedChannel = createOwnerOnly(compactedPath)) {
+        writeFully(compactedChannel, encodeFileHeader());
+        for (Map.Entry<String, Entry<T>> entry : entries.entrySet()) {
+          Entry<T> value = entry.getValue();
+          if (value.expireAtEpochMilliseconds < now) {
+            continue;
+          }
+          byte[] encodedValue;
+          try {
+            encodedValue = codec.encode(value.value);
+          } catch (HelseIdException e) {
+            continue;
+          }
+          writeFully(compactedChannel, encodeRecord(PUT, entry.getKey(), value.expireAtEpochMilliseconds, encodedValue));
+          compactedRecordCount++;
+        }
+        compactedChannel.force(true);
+      }
+
+      if (channel != null) {
+        channel.close();
+        channel = null;
+      }
+      try {
+        Files.move(compactedPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(compactedPath, path, StandardCopyOption.REPLACE_EXISTING);
+      }
+
+      channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+      recordCount = compactedRecordCount;
+      compactionRequired = false;
+    } catch (IOException e) {
+      compactionRequired = true;
+    }
+  }
+
+  /**
+   * Create a new file readable and writable by the owner only, replacing a leftover file which might have other permissions.
+   * The file replaces the cache file when compacted, so the cache file gets the same permissions
+   *
+   * @param newPath the path of the new file
+   * @return a channel writing to the new file
+   * @throws IOException if the file can not be created
+   */
+  private static FileChannel createOwnerOnly(Path newPath) throws IOException {
+    Files.deleteIfExists(newPath);
+    Set<StandardOpenOption> options = Set.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+
+    if (newPath.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+      FileAttribute<Set<PosixFilePermission>> ownerOnly = PosixFilePermissions.asFileAttribute(OWNER_ONLY);
+      return FileChannel.open(newPath, options, ownerOnly);
+    }
+
+    FileChannel newChannel = FileChannel.open(newPath, options);
+    File file = newPath.toFile();
+    boolean restricted = file.setReadable(false, false) && file.setReadable(true, true)
+        && file.setWritable(false, false) && file.setWritable(true, true);
+    if (!restricted) {
+      newChannel.close();
+      Files.deleteIfExists(newPath);
+      throw new IOException("Unable to restrict the access to " + newPath + " to its owner");
+    }
+    return newChannel;
+  }
+
+  /**
+   * Load the live entries of the file into memory and compact the file.
+   * Records after a torn or corrupt record are discarded, as is a file of an unknown format
+   *
+   * @throws IOException if the file can not be read or written
+   */
+  private void load() throws IOException {
+    if (Files.exists(path)) {
+      ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+      if (buffer.remaining() >= FILE_HEADER_SIZE && buffer.getInt() == MAGIC && buffer.getInt() == FORMAT_VERSION) {
+        readRecords(buffer);
+      }
+    }
+
+    writeLock.lock();
+    try {
+      compact();
+      if (compactionRequired) {
+        throw new IOException("Unable to write the cache file " + path);
+      }
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  private void readRecords(ByteBuffer buffer) {
+    long now = System.currentTimeMillis();
+    CRC32 crc = new CRC32();
+
+    while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+      int length = buffer.getInt();
+      int checksum = buffer.getInt();
+      if (length < MINIMUM_PAYLOAD_SIZE || length > MAXIMUM_RECORD_SIZE || length > buffer.remaining()) {
+        return;
+      }
+
+      ByteBuffer payload = buffer.slice(buffer.position(), length);
+      crc.reset();
+      crc.update(payload.duplicate());
+      if ((int) crc.getValue() != checksum) {
+        return;
+      }
+      buffer.position(buffer.position() + length);
+
+      byte type = payload.get();
+      long expireAtEpochMilliseconds = payload.getLong();
+      int keyLength = payload.getInt();
+      if (keyLength < 0 || keyLength > payload.remaining()) {
+        return;
+      }
+      byte[] keyBytes = new byte[keyLength];
+      payload.get(keyBytes);
+      String key = new String(keyBytes, StandardCharsets.UTF_8);
+      byte[] encodedValue = new byte[payload.remaining()];
+      payload.get(encodedValue);
+
+      entries.remove(key);
+      if (type == PUT && expireAtEpochMilliseconds >= now) {
+        try {
+          entries.put(key, new Entry<>(codec.decode(encodedValue), expireAtEpochMilliseconds));
+        } catch (HelseIdException e) {
+          // A value written by an incompatible codec is treated as missing
+        }
+      }
+    }
+  }
+
+  private static ByteBuffer encodeFileHeader() {
+    return ByteBuffer.allocate(FILE_HEADER_SIZE).putInt(MAGIC).putInt(FORMAT_VERSION).flip();
+  }
+
+  /**
+   * Encode a record as length, checksum and payload. The payload is type, expiry, key length, key and value
+   */
+  private static ByteBuffer encodeRecord(byte type, String key, long expireAtEpochMilliseconds, byte[] encodedValue) {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    int length = MINIMUM_PAYLOAD_SIZE + keyBytes.length + encodedValue.length;
+
+    ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+    record.position(RECORD_HEADER_SIZE);
+    record.put(type).putLong(expireAtEpochMilliseconds).putInt(keyBytes.length).put(keyBytes).put(encodedValue);
+
+    CRC32 crc = new CRC32();
+    crc.update(record.array(), RECORD_HEADER_SIZE, length);
+    record.putInt(0, length).putInt(4, (int) crc.getValue());
+    return record.flip();
+  }
+
+  private static void writeFully(FileChannel fileChannel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      fileChannel.write(buffer);
+    }
+  }
+
+  /**
+   * A cached value and its expiration
+   * @param value the cached value
+   * @param expireAtEpochMilliseconds when the value expires
+   * @param <T> the class of the cached value
+   */
+  private record Entry<T>(T value, long expireAtEpochMilliseconds) {
+  }
+
+  /**
+   * Builder class for FileBackedExpiringCache
+   *
+   * @param <T> the class of the cached values
+   */
+  public static class Builder<T> {
+    private final Path path;
+    private final ValueCodec<T> codec;
+    private int maximumSize = InMemoryExpiringCache.DEFAULT_MAXIMUM_SIZE;
+    private int compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+    private boolean forceOnWrite = true;
+
+    /**
+     * Create a new Builder instance for FileBackedExpiringCache
+     *
+     * @param path the file the cache is persisted to, created if missing
+     * @param codec the codec converting values to and from bytes
+     */
+    public Builder(Path path, ValueCodec<T> codec) {
+      this.path = path;
+      this.codec = codec;
+    }
+
+    /**
+     * Assign the maximum number of entries, the entries expiring first are evicted when exceeded
+     *
+     * @param maximumSize the maximum number of entries
+     * @return the current builder
+     */
+    public Builder<T> withMaximumSize(int maximumSize) {
+      this.maximumSize = maximumSize;
+      return this;
+    }
+
+    /**
+     * Assign the number of records appended before the file is considered for compaction
+     *
+     * @param compactionThreshold the number of records
+     * @return the current builder
+     */
+    public Builder<T> withCompactionThreshold(int compactionThreshold) {
+      this.compactionThreshold = compactionThreshold;
+      return this;
+    }
+
+    /**
+     * Assign whether every change is forced to the storage device before put or remove returns, the default is true.
+     * Without forcing, changes since the last compaction might be lost if the operating system crashes
+     *
+     * @param forceOnWrite true if changes should be forced to the storage device
+     * @return the current builder
+     */
+    public Builder<T> withForceOnWrite(boolean forceOnWrite) {
+      this.forceOnWrite = forceOnWrite;
+      return this;
+    }
+
+    /**
+     * Open the file and load the entries still valid
+     *
+     * @return a cache persisted to the file
+     * @throws HelseIdException when the builder is misconfigured or the file can not be opened
+     */
+    public FileBackedExpiringCache<T> build() throws HelseIdException {
+      if (path == null) {
+        throw new HelseIdException("No path is provided");
+      }
+      if (codec == null) {
+        throw new HelseIdException("No codec is provided");
+      }
+      if (maximumSize < 1) {
+        throw new HelseIdException("The maximum size must be positive");
+      }
+      if (compactionThreshold < 1) {
+        throw new HelseIdException("The compaction threshold must be positive");
+      }
+
+      FileBackedExpiringCache<T> fileBackedExpiringCache = new FileBackedExpiringCache<>(
+          path, codec, maximumSize, compactionThreshold, forceOnWrite);
+      try {
+        fileBackedExpiringCache.load();
+      } catch (IOException e) {
+        throw new HelseIdException("Unable to open the cache file", e);
+      }
+      return fileBackedExpiringCache;
+    }
+  }
+}
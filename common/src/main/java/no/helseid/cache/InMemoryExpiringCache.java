@@ -1,19 +1,78 @@
 package no.helseid.cache;
 
+import no.helseid.concurrent.SingleFlight;
+import no.helseid.concurrent.TimingWheel;
+import no.helseid.exceptions.HelseIdException;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * An in-memory implementation of an expiring cache
+ * A bounded in-memory implementation of an expiring cache.
+ * When the maximum size is exceeded, the inserting thread evicts the least frequently used of a small sample of entries,
+ * ties are broken by the least recent use. Entries are sampled in turn, so every entry is considered as the cache turns over,
+ * and each eviction costs the same regardless of the size of the cache.
+ * Expired entries are removed on access, and by a timer on the shared timing wheel when their expiration passes.
+ * Hits, misses, expirations and evictions are recorded by a striped counter.
+ * Concurrent loads on the same key thru getOrLoad are coalesced into a single load.
  * @param <T> the class of the cached values
  */
 public class InMemoryExpiringCache<T> implements ExpiringCache<T> {
+  /**
+   * The maximum number of entries in a cache created without an explicit maximum size
+   */
+  public static final int DEFAULT_MAXIMUM_SIZE = 10_000;
+  private static final int MAXIMUM_FREQUENCY = 15;
+  private static final int EVICTION_SAMPLE_SIZE = 8;
+
+  // The expiry timers only reference the cache weakly, letting an unused cache be garbage collected
+  private final WeakReference<InMemoryExpiringCache<T>> reference = new WeakReference<>(this);
   private final ConcurrentHashMap<String, ExpiringValue<T>> cache = new ConcurrentHashMap<>();
+  private final SingleFlight<CacheEntry<T>> loads = new SingleFlight<>();
+  private final ReentrantLock evictionLock = new ReentrantLock();
+  private final int maximumSize;
+  private final StatsCounter statsCounter;
+  // Guarded by the eviction lock
+  private Iterator<Map.Entry<String, ExpiringValue<T>>> evictionCursor;
+  private int evictedSinceAging;
+  // Frequencies are halved once per epoch, applied to each value the next time it is used or sampled
+  private volatile int agingEpoch;
 
 
   /**
-   * Create a new instance of InMemoryExpiringCache
+   * Create a new instance of InMemoryExpiringCache bounded by the default maximum size
    */
   public InMemoryExpiringCache() {
+    this(DEFAULT_MAXIMUM_SIZE);
+  }
+
+  /**
+   * Create a new instance of InMemoryExpiringCache
+   * @param maximumSize the maximum number of entries kept in the cache
+   */
+  public InMemoryExpiringCache(int maximumSize) {
+    this(maximumSize, new ConcurrentStatsCounter());
+  }
+
+  /**
+   * Create a new instance of InMemoryExpiringCache recording its statistics into the given counter
+   * @param maximumSize the maximum number of entries kept in the cache
+   * @param statsCounter the counter recording the statistics, StatsCounter.disabled() records nothing
+   */
+  public InMemoryExpiringCache(int maximumSize, StatsCounter statsCounter) {
+    if (maximumSize < 1) {
+      throw new IllegalArgumentException("The maximum size must be positive");
+    }
+    if (statsCounter == null) {
+      throw new IllegalArgumentException("No stats counter is provided");
+    }
+    this.maximumSize = maximumSize;
+    this.statsCounter = statsCounter;
   }
 
   /**
@@ -22,14 +81,18 @@ public class InMemoryExpiringCache<T> implements ExpiringCache<T> {
    */
   @Override
   public T get(String key) {
-    var expiringValue = cache.get(key);
-
-    if (expiringValue == null ||expiringValue.expireAtEpochMilliseconds < System.currentTimeMillis()) {
-      remove(key);
-      return null;
-    }
+    var expiringValue = lookup(key);
+    return expiringValue == null ? null : expiringValue.entry.value();
+  }
 
-    return expiringValue.value;
+  /**
+   * @param key the key a value is cached on
+   * @return the cached value and its expiration if present, otherwise null
+   */
+  @Override
+  public CacheEntry<T> getEntry(String key) {
+    var expiringValue = lookup(key);
+    return expiringValue == null ? null : expiringValue.entry;
   }
 
   /**
@@ -39,7 +102,7 @@ public class InMemoryExpiringCache<T> implements ExpiringCache<T> {
    */
   @Override
   public void put(String key, T value, long expireAtEpochMilliseconds) {
-    cache.put(key, new ExpiringValue<>(value, expireAtEpochMilliseconds));
+    insert(key, new CacheEntry<>(value, expireAtEpochMilliseconds));
   }
 
   /**
@@ -47,15 +110,334 @@ public class InMemoryExpiringCache<T> implements ExpiringCache<T> {
    */
   @Override
   public void remove(String key) {
-    cache.remove(key);
+    cancelExpiry(cache.remove(key));
+  }
+
+  /**
+   * Atomically add a value unless a value that has not expired is cached on the key
+   * @param key the key the value should be cached on
+   * @param value the value to be cached
+   * @param expireAtEpochMilliseconds when the value expires
+   * @return true if the value was added
+   */
+  @Override
+  public boolean putIfAbsent(String key, T value, long expireAtEpochMilliseconds) {
+    long now = System.currentTimeMillis();
+    var inserted = new ExpiringValue<>(new CacheEntry<>(value, expireAtEpochMilliseconds), now, agingEpoch);
+    var current = cache.compute(key, (cachedKey, existing) ->
+        existing != null && existing.expireAtEpochMilliseconds >= now ? existing : inserted);
+
+    if (current != inserted) {
+      return false;
+    }
+    scheduleExpiry(key, inserted);
+    if (cache.size() > maximumSize) {
+      evict(key);
+    }
+    return true;
+  }
+
+  /**
+   * Atomically remove the value on a key if it equals the given value
+   * @param key the key a value is cached on
+   * @param value the value expected to be cached
+   * @return true if the value was removed
+   */
+  @Override
+  public boolean remove(String key, T value) {
+    var expiringValue = cache.get(key);
+    if (expiringValue != null && Objects.equals(expiringValue.entry.value(), value) && cache.remove(key, expiringValue)) {
+      cancelExpiry(expiringValue);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Concurrent callers missing the same key share a single load, loading at most once per key and expiration
+   * @param key the key a value is cached on
+   * @param loader the loader producing the value and its expiration on a miss
+   * @return the cached or loaded value and its expiration
+   * @throws HelseIdException if the load fails, the failure is shared by every caller waiting on the load
+   */
+  @Override
+  public CacheEntry<T> getOrLoad(String key, Loader<T> loader) throws HelseIdException {
+    var expiringValue = lookup(key);
+    if (expiringValue != null) {
+      return expiringValue.entry;
+    }
+
+    return loads.execute(key, () -> {
+      // A load completed just before this one started
+      var loadedValue = peek(key);
+      if (loadedValue != null) {
+        return loadedValue.entry;
+      }
+      CacheEntry<T> loadedEntry = CacheLoads.load(key, loader, statsCounter);
+      insert(key, loadedEntry);
+      return loadedEntry;
+    });
+  }
+
+  /**
+   * Concurrent callers missing the same key share a single load, including loads started by getOrLoad
+   * @param key the key a value is cached on
+   * @param loader the loader starting the load of the value and its expiration on a miss
+   * @return a future completed with the cached or loaded value and its expiration, or failed if the load fails
+   */
+  @Override
+  public CompletableFuture<CacheEntry<T>> getOrLoadAsync(String key, AsyncLoader<T> loader) {
+    var expiringValue = lookup(key);
+    if (expiringValue != null) {
+      return CompletableFuture.completedFuture(expiringValue.entry);
+    }
+
+    return loads.executeAsync(key, () -> {
+      var loadedValue = peek(key);
+      if (loadedValue != null) {
+        return CompletableFuture.completedFuture(loadedValue.entry);
+      }
+      return CacheLoads.loadAsync(key, loader, statsCounter).thenApply(loadedEntry -> {
+        insert(key, loadedEntry);
+        return loadedEntry;
+      });
+    });
+  }
+
+  @Override
+  public StatsCounter statsCounter() {
+    return statsCounter;
+  }
+
+  /**
+   * Access the number of entries currently held, including expired entries not yet removed
+   * @return the number of entries currently held
+   */
+  public int size() {
+    return cache.size();
   }
 
   /**
-   * Internal class representing the expiration of a value
-   * @param value
-   * @param expireAtEpochMilliseconds
-   * @param <T>
+   * Cache an entry, evicting if the maximum size is exceeded
+   * @param key the key the entry should be cached on
+   * @param entry the value and its expiration
+   */
+  private void insert(String key, CacheEntry<T> entry) {
+    var expiringValue = new ExpiringValue<>(entry, System.currentTimeMillis(), agingEpoch);
+    cancelExpiry(cache.put(key, expiringValue));
+    scheduleExpiry(key, expiringValue);
+
+    if (cache.size() > maximumSize) {
+      evict(key);
+    }
+  }
+
+  /**
+   * Look up a value without recording the use
+   * @param key the key a value is cached on
+   * @return the value if present and not expired, otherwise null
    */
-  private record ExpiringValue<T>(T value, long expireAtEpochMilliseconds) {
+  private ExpiringValue<T> peek(String key) {
+    var expiringValue = cache.get(key);
+    return expiringValue == null || expiringValue.expireAtEpochMilliseconds < System.currentTimeMillis() ? null : expiringValue;
+  }
+
+  /**
+   * Look up a value, removing it if expired and recording the use
+   * @param key the key a value is cached on
+   * @return the value if present and not expired, otherwise null
+   */
+  private ExpiringValue<T> lookup(String key) {
+    var expiringValue = cache.get(key);
+
+    if (expiringValue == null) {
+      statsCounter.recordMisses(1);
+      return null;
+    }
+
+    long now = System.currentTimeMillis();
+    if (expiringValue.expireAtEpochMilliseconds < now) {
+      if (cache.remove(key, expiringValue)) {
+        cancelExpiry(expiringValue);
+        statsCounter.recordExpiration();
+      }
+      statsCounter.recordMisses(1);
+      return null;
+    }
+
+    expiringValue.recordAccess(now, agingEpoch);
+    statsCounter.recordHits(1);
+    return expiringValue;
+  }
+
+  /**
+   * Evict entries until the cache is within its maximum size, one sampled entry at a time.
+   * Writers exceeding the maximum size take turns, so the bound holds under contention
+   * @param insertedKey the key just inserted, which is never evicted by the same insertion
+   */
+  private void evict(String insertedKey) {
+    evictionLock.lock();
+    try {
+      boolean evicted = true;
+      while (evicted && cache.size() > maximumSize) {
+        evicted = evictSampled(insertedKey);
+      }
+    } finally {
+      evictionLock.unlock();
+    }
+  }
+
+  /**
+   * Evict the least valuable entry among the next few entries of the eviction cursor, or an expired entry met on the way.
+   * Must be called holding the eviction lock
+   * @param insertedKey the key just inserted, which is never evicted by the same insertion
+   * @return false if no entry could be evicted
+   */
+  private boolean evictSampled(String insertedKey) {
+    long now = System.currentTimeMillis();
+    int currentEpoch = agingEpoch;
+    String victimKey = null;
+    ExpiringValue<T> victim = null;
+
+    int sampled = 0;
+    for (int visited = 0; sampled < EVICTION_SAMPLE_SIZE && visited <= maximumSize; visited++) {
+      if (evictionCursor == null || !evictionCursor.hasNext()) {
+        evictionCursor = cache.entrySet().iterator();
+        if (!evictionCursor.hasNext()) {
+          break;
+        }
+      }
+
+      Map.Entry<String, ExpiringValue<T>> entry = evictionCursor.next();
+      ExpiringValue<T> expiringValue = entry.getValue();
+      if (expiringValue.expireAtEpochMilliseconds < now) {
+        if (cache.remove(entry.getKey(), expiringValue)) {
+          cancelExpiry(expiringValue);
+          statsCounter.recordExpiration();
+          return true;
+        }
+      } else if (!entry.getKey().equals(insertedKey)) {
+        sampled++;
+        if (victim == null || expiringValue.isLessValuableThan(victim, currentEpoch)) {
+          victimKey = entry.getKey();
+          victim = expiringValue;
+        }
+      }
+    }
+
+    if (victim == null) {
+      return false;
+    }
+    if (cache.remove(victimKey, victim)) {
+      cancelExpiry(victim);
+      statsCounter.recordEviction();
+      // Halve every frequency once the cache has turned over, letting formerly popular entries age out
+      if (++evictedSinceAging >= maximumSize) {
+        evictedSinceAging = 0;
+        agingEpoch = currentEpoch + 1;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Schedule the removal of a value when its expiration passes, values without a known expiration are removed on access only
+   * @param key the key the value is cached on
+   * @param expiringValue the cached value
+   */
+  private void scheduleExpiry(String key, ExpiringValue<T> expiringValue) {
+    if (expiringValue.expireAtEpochMilliseconds == CacheEntry.UNKNOWN_EXPIRY) {
+      return;
+    }
+    // Expired values are those strictly before their expiration, as on access
+    expiringValue.expiryTimer = TimingWheel.shared().schedule(
+        () -> expire(reference, key, expiringValue), expiringValue.expireAtEpochMilliseconds + 1);
+  }
+
+  /**
+   * Cancel the expiry timer of a value no longer cached
+   * @param expiringValue the value removed from the cache, ignored if null
+   */
+  private static void cancelExpiry(ExpiringValue<?> expiringValue) {
+    if (expiringValue != null && expiringValue.expiryTimer != null) {
+      expiringValue.expiryTimer.cancel();
+    }
+  }
+
+  /**
+   * Remove an expired value, unless it was replaced or the cache is garbage collected
+   * @param reference the cache holding the value
+   * @param key the key the value is cached on
+   * @param expiringValue the expired value
+   * @param <T> the class of the cached value
+   */
+  private static <T> void expire(WeakReference<InMemoryExpiringCache<T>> reference, String key, ExpiringValue<T> expiringValue) {
+    InMemoryExpiringCache<T> referencedCache = reference.get();
+    if (referencedCache != null && referencedCache.cache.remove(key, expiringValue)) {
+      referencedCache.statsCounter.recordExpiration();
+    }
+  }
+
+  /**
+   * Internal class representing the expiration and usage of a value, the entry is shared by every read
+   * @param <T> the class of the cached value
+   */
+  private static final class ExpiringValue<T> {
+    private final CacheEntry<T> entry;
+    private final long expireAtEpochMilliseconds;
+    private volatile int frequency;
+    private volatile int epoch;
+    private volatile long lastAccessEpochMilliseconds;
+    private volatile TimingWheel.Timeout expiryTimer;
+
+    private ExpiringValue(CacheEntry<T> entry, long now, int epoch) {
+      this.entry = entry;
+      this.expireAtEpochMilliseconds = entry.expireAtEpochMilliseconds();
+      this.frequency = 1;
+      this.epoch = epoch;
+      this.lastAccessEpochMilliseconds = now;
+    }
+
+    /**
+     * Record a use of the value, lost updates under contention are acceptable
+     * @param now the current time in milliseconds since epoch
+     * @param currentEpoch the current aging epoch of the cache
+     */
+    private void recordAccess(long now, int currentEpoch) {
+      int currentFrequency = frequency(currentEpoch);
+      if (currentFrequency < MAXIMUM_FREQUENCY) {
+        frequency = currentFrequency + 1;
+      }
+      if (lastAccessEpochMilliseconds != now) {
+        lastAccessEpochMilliseconds = now;
+      }
+    }
+
+    /**
+     * Compare the value to another for eviction, by frequency and then by recency of use
+     * @param other the value compared to
+     * @param currentEpoch the current aging epoch of the cache
+     * @return true if the value should be evicted before the other value
+     */
+    private boolean isLessValuableThan(ExpiringValue<?> other, int currentEpoch) {
+      int currentFrequency = frequency(currentEpoch);
+      int otherFrequency = other.frequency(currentEpoch);
+      return currentFrequency < otherFrequency
+          || currentFrequency == otherFrequency && lastAccessEpochMilliseconds < other.lastAccessEpochMilliseconds;
+    }
+
+    /**
+     * Access the frequency of use, halved once for every aging epoch passed since the value was last aged
+     * @param currentEpoch the current aging epoch of the cache
+     * @return the aged frequency
+     */
+    private int frequency(int currentEpoch) {
+      int passedEpochs = currentEpoch - epoch;
+      if (passedEpochs > 0) {
+        frequency = frequency >>> Math.min(passedEpochs, 31);
+        epoch = currentEpoch;
+      }
+      return frequency;
+    }
   }
 }
@@ -0,0 +1,32 @@
+package no.helseid.cache;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * An invalidation channel within a single process, delivering keys synchronously to every subscriber.
+ * Useful for tests and for several tiered caches sharing a remote cache within the same process
+ */
+public final class InMemoryInvalidationChannel implements InvalidationChannel {
+  private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+
+  /**
+   * Create a new instance of InMemoryInvalidationChannel without subscribers
+   */
+  public InMemoryInvalidationChannel() {
+  }
+
+  @Override
+  public void publish(String key) {
+    for (Consumer<String> listener : listeners) {
+      listener.accept(key);
+    }
+  }
+
+  @Override
+  public Subscription subscribe(Consumer<String> listener) {
+    listeners.add(listener);
+    return () -> listeners.remove(listener);
+  }
+}
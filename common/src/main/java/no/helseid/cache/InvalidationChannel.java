@@ -0,0 +1,35 @@
+package no.helseid.cache;
+
+import java.util.function.Consumer;
+
+/**
+ * A channel propagating removals of cached values between processes sharing a cache.
+ * May be implemented on top of a message broker or the notifications of a distributed cache
+ */
+public interface InvalidationChannel {
+  /**
+   * Notify every subscriber that the value on a key is removed
+   *
+   * @param key the key of the removed value
+   */
+  void publish(String key);
+
+  /**
+   * Subscribe to removals published by any process, including the current
+   *
+   * @param listener the listener receiving the key of every removed value
+   * @return a subscription ending when closed
+   */
+  Subscription subscribe(Consumer<String> listener);
+
+  /**
+   * A subscription to an invalidation channel
+   */
+  interface Subscription extends AutoCloseable {
+    /**
+     * End the subscription, the listener receives no further keys
+     */
+    @Override
+    void close();
+  }
+}
@@ -0,0 +1,94 @@
+package no.helseid.cache;
+
+/**
+ * Records the statistics of a cache.
+ * Implementations are called on every lookup and must be thread safe and cheap
+ */
+public interface StatsCounter {
+  /**
+   * Record lookups returning a cached value
+   * @param count the number of hits
+   */
+  void recordHits(int count);
+
+  /**
+   * Record lookups returning no value
+   * @param count the number of misses
+   */
+  void recordMisses(int count);
+
+  /**
+   * Record a value removed because it expired
+   */
+  void recordExpiration();
+
+  /**
+   * Record a value removed to keep the cache within its maximum size
+   */
+  void recordEviction();
+
+  /**
+   * Record a load on a miss resulting in a cached value
+   * @param loadTimeNanoseconds the time spent loading, in nanoseconds
+   */
+  void recordLoadSuccess(long loadTimeNanoseconds);
+
+  /**
+   * Record a load on a miss failing or resulting in a value that is not cached
+   * @param loadTimeNanoseconds the time spent loading, in nanoseconds
+   */
+  void recordLoadFailure(long loadTimeNanoseconds);
+
+  /**
+   * Take a snapshot of the recorded statistics
+   * @return the statistics recorded so far
+   */
+  CacheStats snapshot();
+
+  /**
+   * Access a counter discarding everything recorded
+   * @return a counter recording nothing
+   */
+  static StatsCounter disabled() {
+    return DisabledStatsCounter.INSTANCE;
+  }
+
+  /**
+   * A counter discarding everything recorded
+   */
+  enum DisabledStatsCounter implements StatsCounter {
+    /**
+     * The single instance of the counter
+     */
+    INSTANCE;
+
+    @Override
+    public void recordHits(int count) {
+    }
+
+    @Override
+    public void recordMisses(int count) {
+    }
+
+    @Override
+    public void recordExpiration() {
+    }
+
+    @Override
+    public void recordEviction() {
+    }
+
+    @Override
+    public void recordLoadSuccess(long loadTimeNanoseconds) {
+    }
+
+    @Override
+    public void recordLoadFailure(long loadTimeNanoseconds) {
+    }
+
+    @Override
+    public CacheStats snapshot() {
+      return CacheStats.empty();
+    }
+  }
+}
@@ -0,0 +1,311 @@
+package no.helseid.cache;
+
+import no.helseid.exceptions.HelseIdException;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A two-tiered cache placing a small in-memory cache in front of a remote cache shared between processes.
+ * Values read from the remote cache are kept locally, never beyond their remote expiration
+ * nor the maximum local lifetime, so hot values are served by a local map read.
+ * Removals are propagated to the local caches of other processes thru an invalidation channel
+ *
+ * @param <T> the class of the cached values
+ */
+public final class TieredExpiringCache<T> implements ExpiringCache<T>, Closeable {
+  /**
+   * The maximum number of entries in the local cache, unless configured otherwise
+   */
+  public static final int DEFAULT_LOCAL_MAXIMUM_SIZE = 1_000;
+  /**
+   * The maximum time a value is kept locally, unless configured otherwise
+   */
+  public static final long DEFAULT_LOCAL_MAXIMUM_LIFETIME_IN_MILLISECONDS = 60_000L;
+
+  private final InMemoryExpiringCache<T> localCache;
+  private final ExpiringCache<T> remoteCache;
+  private final long localMaximumLifetimeInMilliseconds;
+  private final InvalidationChannel invalidationChannel;
+  private final InvalidationChannel.Subscription subscription;
+  private final StatsCounter statsCounter = new ConcurrentStatsCounter();
+
+  private TieredExpiringCache(
+      ExpiringCache<T> remoteCache,
+      int localMaximumSize,
+      long localMaximumLifetimeInMilliseconds,
+      InvalidationChannel invalidationChannel
+  ) {
+    this.localCache = new InMemoryExpiringCache<>(localMaximumSize, StatsCounter.disabled());
+    this.remoteCache = remoteCache;
+    this.localMaximumLifetimeInMilliseconds = localMaximumLifetimeInMilliseconds;
+    this.invalidationChannel = invalidationChannel;
+    this.subscription = invalidationChannel == null ? null : invalidationChannel.subscribe(localCache::remove);
+  }
+
+  /**
+   * @param key the key a value is cached on
+   * @return the cached value if present in either tier, otherwise null
+   */
+  @Override
+  public T get(String key) {
+    CacheEntry<T> entry = getEntry(key);
+    return entry == null ? null : entry.value();
+  }
+
+  /**
+   * @param key the key a value is cached on
+   * @return the cached value if present in either tier, with its local expiration if served locally, otherwise null
+   */
+  @Override
+  public CacheEntry<T> getEntry(String key) {
+    CacheEntry<T> localEntry = localCache.getEntry(key);
+    if (localEntry != null) {
+      statsCounter.recordHits(1);
+      return localEntry;
+    }
+
+    CacheEntry<T> remoteEntry = remoteCache.getEntry(key);
+    if (remoteEntry == null) {
+      statsCounter.recordMisses(1);
+      return null;
+    }
+
+    statsCounter.recordHits(1);
+    localCache.put(key, remoteEntry.value(), localExpiry(remoteEntry.expireAtEpochMilliseconds()));
+    return remoteEntry;
+  }
+
+  /**
+   * The value is written to the remote cache before it is kept locally
+   *
+   * @param key the key the value should be cached on
+   * @param value the value to be cached
+   * @param expireAtEpochMilliseconds when the value expires
+   */
+  @Override
+  public void put(String key, T value, long expireAtEpochMilliseconds) {
+    remoteCache.put(key, value, expireAtEpochMilliseconds);
+    localCache.put(key, value, localExpiry(expireAtEpochMilliseconds));
+  }
+
+  /**
+   * The value is removed from both tiers, and from the local caches of every process subscribing to the invalidation channel
+   *
+   * @param key the key a value is cached on
+   */
+  @Override
+  public void remove(String key) {
+    remoteCache.remove(key);
+    localCache.remove(key);
+    if (invalidationChannel != null) {
+      invalidationChannel.publish(key);
+    }
+  }
+
+  /**
+   * Add a value to the remote cache unless a value is already cached remotely, the local tier is bypassed
+   *
+   * @param key the key the value should be cached on
+   * @param value the value to be cached
+   * @param expireAtEpochMilliseconds when the value expires
+   * @return true if the value was added
+   */
+  @Override
+  public boolean putIfAbsent(String key, T value, long expireAtEpochMilliseconds) {
+    if (!remoteCache.putIfAbsent(key, value, expireAtEpochMilliseconds)) {
+      return false;
+    }
+    localCache.put(key, value, localExpiry(expireAtEpochMilliseconds));
+    return true;
+  }
+
+  /**
+   * Remove the value on a key from the remote cache if it equals the given value, propagating the removal on success
+   *
+   * @param key the key a value is cached on
+   * @param value the value expected to be cached
+   * @return true if the value was removed
+   */
+  @Override
+  public boolean remove(String key, T value) {
+    if (!remoteCache.remove(key, value)) {
+      return false;
+    }
+    localCache.remove(key);
+    if (invalidationChannel != null) {
+      invalidationChannel.publish(key);
+    }
+    return true;
+  }
+
+  /**
+   * A value served by the local tier is returned without involving the remote cache.
+   * Otherwise the remote cache coordinates the load, loading at most once per key and expiration if the remote cache does
+   *
+   * @param key the key a value is cached on
+   * @param loader the loader producing the value and its expiration on a miss in both tiers
+   * @return the cached or loaded value and its expiration
+   * @throws HelseIdException if the load fails
+   */
+  @Override
+  public CacheEntry<T> getOrLoad(String key, Loader<T> loader) throws HelseIdException {
+    CacheEntry<T> localEntry = localCache.getEntry(key);
+    if (localEntry != null) {
+      statsCounter.recordHits(1);
+      return localEntry;
+    }
+
+    AtomicBoolean loaded = new AtomicBoolean();
+    CacheEntry<T> remoteEntry = remoteCache.getOrLoad(key, missingKey -> {
+      loaded.set(true);
+      return CacheLoads.load(missingKey, loader, statsCounter);
+    });
+    return keepLocally(key, remoteEntry, loaded.get());
+  }
+
+  /**
+   * A value served by the local tier completes the future immediately, otherwise the remote cache coordinates the load
+   *
+   * @param key the key a value is cached on
+   * @param loader the loader starting the load of the value and its expiration on a miss in both tiers
+   * @return a future completed with the cached or loaded value and its expiration, or failed if the load fails
+   */
+  @Override
+  public CompletableFuture<CacheEntry<T>> getOrLoadAsync(String key, AsyncLoader<T> loader) {
+    CacheEntry<T> localEntry = localCache.getEntry(key);
+    if (localEntry != null) {
+      statsCounter.recordHits(1);
+      return CompletableFuture.completedFuture(localEntry);
+    }
+
+    AtomicBoolean loaded = new AtomicBoolean();
+    return remoteCache
+        .getOrLoadAsync(key, missingKey -> {
+          loaded.set(true);
+          return CacheLoads.loadAsync(missingKey, loader, statsCounter);
+        })
+        .thenApply(remoteEntry -> keepLocally(key, remoteEntry, loaded.get()));
+  }
+
+  @Override
+  public StatsCounter statsCounter() {
+    return statsCounter;
+  }
+
+  /**
+   * Access the remote cache
+   * @return the remote cache
+   */
+  public ExpiringCache<T> getRemoteCache() {
+    return remoteCache;
+  }
+
+  /**
+   * End the subscription to the invalidation channel, the remote cache is not closed
+   */
+  @Override
+  public void close() {
+    if (subscription != null) {
+      subscription.close();
+    }
+  }
+
+  /**
+   * Record the outcome of a remote lookup and keep the value locally
+   *
+   * @param key the key the value is cached on
+   * @param remoteEntry the value and its expiration in the remote cache
+   * @param loaded true if the value was loaded by this caller, false if it was served by the remote cache
+   * @return the remote entry
+   */
+  private CacheEntry<T> keepLocally(String key, CacheEntry<T> remoteEntry, boolean loaded) {
+    if (loaded) {
+      statsCounter.recordMisses(1);
+    } else {
+      statsCounter.recordHits(1);
+    }
+    localCache.put(key, remoteEntry.value(), localExpiry(remoteEntry.expireAtEpochMilliseconds()));
+    return remoteEntry;
+  }
+
+  private long localExpiry(long remoteExpireAtEpochMilliseconds) {
+    long maximumLocalExpiry = System.currentTimeMillis() + localMaximumLifetimeInMilliseconds;
+    return Math.min(remoteExpireAtEpochMilliseconds, maximumLocalExpiry);
+  }
+
+  /**
+   * Builder class for TieredExpiringCache
+   *
+   * @param <T> the class of the cached values
+   */
+  public static class Builder<T> {
+    private final ExpiringCache<T> remoteCache;
+    private int localMaximumSize = DEFAULT_LOCAL_MAXIMUM_SIZE;
+    private long localMaximumLifetimeInMilliseconds = DEFAULT_LOCAL_MAXIMUM_LIFETIME_IN_MILLISECONDS;
+    private InvalidationChannel invalidationChannel;
+
+    /**
+     * Create a new Builder instance for TieredExpiringCache
+     *
+     * @param remoteCache the remote cache shared between processes
+     */
+    public Builder(ExpiringCache<T> remoteCache) {
+      this.remoteCache = remoteCache;
+    }
+
+    /**
+     * Assign the maximum number of entries kept locally
+     *
+     * @param localMaximumSize the maximum number of entries
+     * @return the current builder
+     */
+    public Builder<T> withLocalMaximumSize(int localMaximumSize) {
+      this.localMaximumSize = localMaximumSize;
+      return this;
+    }
+
+    /**
+     * Assign the maximum time a value is kept locally, limiting how long a value replaced remotely by another process is served
+     *
+     * @param localMaximumLifetimeInMilliseconds the maximum time in milliseconds
+     * @return the current builder
+     */
+    public Builder<T> withLocalMaximumLifetime(long localMaximumLifetimeInMilliseconds) {
+      this.localMaximumLifetimeInMilliseconds = localMaximumLifetimeInMilliseconds;
+      return this;
+    }
+
+    /**
+     * Assign a channel propagating removals between processes, the default propagates no removals
+     *
+     * @param invalidationChannel a custom invalidation channel
+     * @return the current builder
+     */
+    public Builder<T> setCustomInvalidationChannel(InvalidationChannel invalidationChannel) {
+      this.invalidationChannel = invalidationChannel;
+      return this;
+    }
+
+    /**
+     * Process the provided values into a TieredExpiringCache object
+     *
+     * @return a two-tiered cache
+     * @throws HelseIdException when the builder is misconfigured
+     */
+    public TieredExpiringCache<T> build() throws HelseIdException {
+      if (remoteCache == null) {
+        throw new HelseIdException("No remote cache is provided");
+      }
+      if (localMaximumSize < 1) {
+        throw new HelseIdException("The maximum size must be positive");
+      }
+      if (localMaximumLifetimeInMilliseconds < 0) {
+        throw new HelseIdException("The maximum local lifetime can not be negative");
+      }
+
+      return new TieredExpiringCache<>(remoteCache, localMaximumSize, localMaximumLifetimeInMilliseconds, invalidationChannel);
+    }
+  }
+}
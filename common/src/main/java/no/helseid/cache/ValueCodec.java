@@ -0,0 +1,28 @@
+package no.helseid.cache;
+
+import no.helseid.exceptions.HelseIdException;
+
+/**
+ * Converts cached values to and from bytes, used by caches storing values outside the heap
+ *
+ * @param <T> the class of the cached values
+ */
+public interface ValueCodec<T> {
+  /**
+   * Convert a value to bytes
+   *
+   * @param value the value to be converted
+   * @return the value represented as bytes
+   * @throws HelseIdException if the value can not be converted
+   */
+  byte[] encode(T value) throws HelseIdException;
+
+  /**
+   * Convert bytes produced by encode back to a value
+   *
+   * @param bytes the value represented as bytes
+   * @return the value
+   * @throws HelseIdException if the bytes does not represent a value
+   */
+  T decode(byte[] bytes) throws HelseIdException;
+}
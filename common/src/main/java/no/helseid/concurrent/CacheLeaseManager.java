@@ -0,0 +1,36 @@
+package no.helseid.concurrent;
+
+import no.helseid.cache.ExpiringCache;
+
+import java.util.UUID;
+
+/**
+ * Leases stored in an expiring cache shared between processes.
+ * A lease is acquired by adding a unique owner token unless a token is already cached on the key,
+ * and released by removing the token only if it is still the cached token.
+ * The cache must implement putIfAbsent and remove(key, value) as atomic operations
+ */
+public final class CacheLeaseManager implements LeaseManager {
+  private static final String KEY_PREFIX = "lease:";
+  private final ExpiringCache<String> leaseCache;
+
+  /**
+   * Create a new instance of CacheLeaseManager
+   *
+   * @param leaseCache the cache shared between processes, holding the owner token of every lease
+   */
+  public CacheLeaseManager(ExpiringCache<String> leaseCache) {
+    this.leaseCache = leaseCache;
+  }
+
+  @Override
+  public Lease tryAcquire(String key, long leaseTimeInMilliseconds) {
+    String leaseKey = KEY_PREFIX + key;
+    String ownerToken = UUID.randomUUID().toString();
+
+    if (!leaseCache.putIfAbsent(leaseKey, ownerToken, System.currentTimeMillis() + leaseTimeInMilliseconds)) {
+      return null;
+    }
+    return () -> leaseCache.remove(leaseKey, ownerToken);
+  }
+}
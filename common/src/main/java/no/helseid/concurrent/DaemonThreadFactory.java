@@ -0,0 +1,32 @@
+package no.helseid.concurrent;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread factory creating named daemon threads, used for background work in HelseID internals
+ */
+public final class DaemonThreadFactory implements ThreadFactory {
+  private final String namePrefix;
+  private final AtomicInteger threadNumber = new AtomicInteger();
+
+  /**
+   * Create a new instance of DaemonThreadFactory
+   *
+   * @param namePrefix the prefix of the thread names, followed by a sequence number
+   */
+  public DaemonThreadFactory(String namePrefix) {
+    this.namePrefix = namePrefix;
+  }
+
+  /**
+   * @param runnable the work to be executed by the thread
+   * @return a new daemon thread
+   */
+  @Override
+  public Thread newThread(Runnable runnable) {
+    Thread thread = new Thread(runnable, namePrefix + "-" + threadNumber.incrementAndGet());
+    thread.setDaemon(true);
+    return thread;
+  }
+}
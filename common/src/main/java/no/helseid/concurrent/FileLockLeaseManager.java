@@ -0,0 +1,105 @@
+package no.helseid.concurrent;
+
+import no.helseid.exceptions.HelseIdException;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Leases backed by file locks in a directory, for processes sharing a host or a file system supporting locks.
+ * A lease is held until released or until the holding process ends, the lease time is not enforced.
+ * Intended for local testing of leased loads, and for replicas running on the same host
+ */
+public final class FileLockLeaseManager implements LeaseManager {
+  private final Path directory;
+
+  /**
+   * Create a new instance of FileLockLeaseManager
+   *
+   * @param directory the directory holding a lock file per key, created if missing
+   * @throws HelseIdException if the directory can not be created
+   */
+  public FileLockLeaseManager(Path directory) throws HelseIdException {
+    try {
+      Files.createDirectories(directory);
+    } catch (IOException e) {
+      throw new HelseIdException("Unable to create the lease directory", e);
+    }
+    this.directory = directory;
+  }
+
+  @Override
+  public Lease tryAcquire(String key, long leaseTimeInMilliseconds) throws HelseIdException {
+    FileChannel channel = null;
+    try {
+      channel = FileChannel.open(directory.resolve(fileName(key)), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      FileLock lock = channel.tryLock();
+      if (lock == null) {
+        channel.close();
+        return null;
+      }
+      return new FileLockLease(channel, lock);
+    } catch (OverlappingFileLockException e) {
+      // The lock is held within this process
+      closeQuietly(channel);
+      return null;
+    } catch (IOException e) {
+      closeQuietly(channel);
+      throw new HelseIdException("Unable to acquire the lease", e);
+    }
+  }
+
+  /**
+   * The name of the lock file of a key, the key is hashed since it might contain characters not allowed in file names
+   */
+  private static String fileName(String key) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+      return HexFormat.of().formatHex(digest) + ".lock";
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void closeQuietly(FileChannel channel) {
+    if (channel == null) {
+      return;
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // The lock is released when the channel is closed, a failing close leaves nothing to clean up
+    }
+  }
+
+  private static final class FileLockLease implements Lease {
+    private final FileChannel channel;
+    private final FileLock lock;
+
+    private FileLockLease(FileChannel channel, FileLock lock) {
+      this.channel = channel;
+      this.lock = lock;
+    }
+
+    @Override
+    public void release() {
+      try {
+        if (lock.isValid()) {
+          lock.release();
+        }
+      } catch (IOException e) {
+        // Closing the channel below releases the lock as well
+      }
+      closeQuietly(channel);
+    }
+  }
+}
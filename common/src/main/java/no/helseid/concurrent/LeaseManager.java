@@ -0,0 +1,37 @@
+package no.helseid.concurrent;
+
+import no.helseid.exceptions.HelseIdException;
+
+/**
+ * Grants short-lived, exclusive leases on keys, letting a single process among many perform a load on behalf of every process.
+ * A lease expires by itself if its holder fails to release it
+ */
+public interface LeaseManager {
+  /**
+   * Try to acquire the lease on a key without waiting
+   *
+   * @param key the key identifying the load
+   * @param leaseTimeInMilliseconds the time after which the lease expires unless released
+   * @return the acquired lease, null if the lease is held by another
+   * @throws HelseIdException if the lease can not be requested
+   */
+  Lease tryAcquire(String key, long leaseTimeInMilliseconds) throws HelseIdException;
+
+  /**
+   * An acquired lease
+   */
+  interface Lease extends AutoCloseable {
+    /**
+     * Release the lease, letting others acquire it. Releasing an expired or released lease has no effect
+     */
+    void release();
+
+    /**
+     * Release the lease
+     */
+    @Override
+    default void close() {
+      release();
+    }
+  }
+}
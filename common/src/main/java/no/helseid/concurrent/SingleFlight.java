@@ -0,0 +1,149 @@
+package no.helseid.concurrent;
+
+import no.helseid.exceptions.HelseIdException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Coalesces concurrent loads on the same key, at most one load is in flight per key.
+ * Callers arriving while a load is in flight wait for it and share its result or failure.
+ *
+ * @param <T> the class of the loaded values
+ */
+public final class SingleFlight<T> {
+  private final ConcurrentHashMap<String, CompletableFuture<T>> inFlight = new ConcurrentHashMap<>();
+
+  /**
+   * Create a new instance of SingleFlight
+   */
+  public SingleFlight() {
+  }
+
+  /**
+   * Run the loader for the key, unless a load on the same key is already in flight.
+   * In that case the ongoing load is awaited and its result is returned instead.
+   *
+   * @param key the key identifying the load
+   * @param loader the loader performing the actual work
+   * @return the value produced by the loader
+   * @throws HelseIdException if the load fails, the same failure is shared by every caller waiting on the load
+   */
+  public T execute(String key, Loader<T> loader) throws HelseIdException {
+    CompletableFuture<T> flight = new CompletableFuture<>();
+    CompletableFuture<T> ongoing = inFlight.putIfAbsent(key, flight);
+
+    if (ongoing != null) {
+      return await(ongoing);
+    }
+
+    try {
+      T value = loader.load();
+      flight.complete(value);
+      return value;
+    } catch (HelseIdException | RuntimeException | Error e) {
+      flight.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, flight);
+    }
+  }
+
+  /**
+   * Start the asynchronous loader for the key, unless a load on the same key is already in flight.
+   * In that case the ongoing load is shared instead, including loads started by {@link #execute(String, Loader)}.
+   *
+   * @param key the key identifying the load
+   * @param loader the loader starting the actual work
+   * @return a future completed with the value produced by the loader, or the failure shared by every caller
+   */
+  public CompletableFuture<T> executeAsync(String key, AsyncLoader<T> loader) {
+    CompletableFuture<T> flight = new CompletableFuture<>();
+    CompletableFuture<T> ongoing = inFlight.putIfAbsent(key, flight);
+
+    if (ongoing != null) {
+      return ongoing.copy();
+    }
+
+    CompletableFuture<T> load;
+    try {
+      load = loader.load();
+    } catch (HelseIdException | RuntimeException | Error e) {
+      load = CompletableFuture.failedFuture(e);
+    }
+
+    load.whenComplete((value, failure) -> {
+      inFlight.remove(key, flight);
+      if (failure == null) {
+        flight.complete(value);
+      } else {
+        flight.completeExceptionally(failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure);
+      }
+    });
+
+    return flight.copy();
+  }
+
+  /**
+   * Wait for an ongoing load and unwrap its failure
+   *
+   * @param flight the ongoing load
+   * @return the value produced by the ongoing load
+   * @param <T> the class of the loaded value
+   * @throws HelseIdException if the ongoing load failed or the wait is interrupted
+   */
+  private static <T> T await(CompletableFuture<T> flight) throws HelseIdException {
+    try {
+      return flight.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new HelseIdException("Interrupted while waiting for an ongoing request", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof HelseIdException helseIdException) {
+        throw helseIdException;
+      }
+      if (cause instanceof RuntimeException runtimeException) {
+        throw runtimeException;
+      }
+      if (cause instanceof Error error) {
+        throw error;
+      }
+      throw new HelseIdException("The ongoing request failed", cause);
+    }
+  }
+
+  /**
+   * A load which may fail with a HelseIdException
+   *
+   * @param <T> the class of the loaded value
+   */
+  @FunctionalInterface
+  public interface Loader<T> {
+    /**
+     * Perform the load
+     *
+     * @return the loaded value
+     * @throws HelseIdException if the load fails
+     */
+    T load() throws HelseIdException;
+  }
+
+  /**
+   * A load performed asynchronously, which may fail before it is started with a HelseIdException
+   *
+   * @param <T> the class of the loaded value
+   */
+  @FunctionalInterface
+  public interface AsyncLoader<T> {
+    /**
+     * Start the load
+     *
+     * @return a future completed with the loaded value
+     * @throws HelseIdException if the load can not be started
+     */
+    CompletableFuture<T> load() throws HelseIdException;
+  }
+}
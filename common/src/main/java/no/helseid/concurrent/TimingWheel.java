@@ -0,0 +1,423 @@
+package no.helseid.concurrent;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A hierarchical timing wheel running tasks at a point in time, used for expiry and refresh in HelseID internals.
+ * Tasks are kept in buckets of wheels with increasingly coarse ticks, scheduling and cancelling a task takes constant time.
+ * A single low priority daemon thread sleeps until the next bucket is due, cascading its tasks to the finer wheels
+ * until they are due. Tasks never run before their deadline, and at most a tick after it.
+ * Tasks run on the timer thread, they must be short and hand longer work over to an executor.
+ */
+public final class TimingWheel {
+  /**
+   * The resolution of the shared timing wheel
+   */
+  public static final long DEFAULT_TICK_IN_MILLISECONDS = 10L;
+  private static final int DEFAULT_WHEEL_SIZE = 64;
+  // Six wheels of 64 buckets cover about 21 years, deadlines beyond are cascaded from the coarsest wheel
+  private static final int DEFAULT_LEVELS = 6;
+  private static final TimingWheel SHARED = new TimingWheel(
+      DEFAULT_TICK_IN_MILLISECONDS, DEFAULT_WHEEL_SIZE, DEFAULT_LEVELS, System.currentTimeMillis(), new DaemonThreadFactory("helseid-timing-wheel"));
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition wakeup = lock.newCondition();
+  private final Level[] levels;
+  private final PriorityQueue<Bucket> activeBuckets = new PriorityQueue<>(Comparator.comparingLong(bucket -> bucket.expireAtEpochMilliseconds));
+  private final List<Timeout> dueTimeouts = new ArrayList<>();
+  private final ThreadFactory threadFactory;
+  private Thread timerThread;
+  private int pending;
+
+  /**
+   * Create a new instance of TimingWheel
+   *
+   * @param tickInMilliseconds the resolution of the finest wheel
+   * @param wheelSize the number of buckets in each wheel
+   * @param levels the number of wheels
+   * @param startEpochMilliseconds the current time, in milliseconds since epoch
+   * @param threadFactory the factory of the timer thread, null if the wheel is advanced by the caller
+   */
+  TimingWheel(long tickInMilliseconds, int wheelSize, int levels, long startEpochMilliseconds, ThreadFactory threadFactory) {
+    if (tickInMilliseconds < 1 || wheelSize < 2 || levels < 1) {
+      throw new IllegalArgumentException("The tick, wheel size and levels must be positive");
+    }
+    this.levels = new Level[levels];
+    long tick = tickInMilliseconds;
+    for (int i = 0; i < levels; i++) {
+      this.levels[i] = new Level(tick, wheelSize, startEpochMilliseconds);
+      tick = Math.multiplyExact(tick, wheelSize);
+    }
+    this.threadFactory = threadFactory;
+  }
+
+  /**
+   * Access the timing wheel shared by every cache and client in the process
+   *
+   * @return the shared timing wheel
+   */
+  public static TimingWheel shared() {
+    return SHARED;
+  }
+
+  /**
+   * Schedule a task to be run at a point in time, a deadline that has passed runs the task at the next tick
+   *
+   * @param task the task to be run on the timer thread
+   * @param deadlineEpochMilliseconds when the task is run, in milliseconds since epoch
+   * @return a handle cancelling the task
+   */
+  public Timeout schedule(Runnable task, long deadlineEpochMilliseconds) {
+    if (task == null) {
+      throw new IllegalArgumentException("No task is provided");
+    }
+    Timeout timeout = new Timeout(this, task, deadlineEpochMilliseconds);
+
+    lock.lock();
+    try {
+      if (activeBuckets.isEmpty() && threadFactory != null) {
+        // No bucket is in flight, the idle wheels can be moved to the current time
+        advanceClocks(System.currentTimeMillis());
+      }
+      pending++;
+      Bucket bucket = add(timeout);
+      if (bucket == null) {
+        dueTimeouts.add(timeout);
+        wakeup.signal();
+      } else if (activeBuckets.peek() == bucket) {
+        wakeup.signal();
+      }
+      startTimerThread();
+    } finally {
+      lock.unlock();
+    }
+    return timeout;
+  }
+
+  /**
+   * Access the number of scheduled tasks which are neither run nor cancelled
+   *
+   * @return the number of pending tasks
+   */
+  public int pending() {
+    lock.lock();
+    try {
+      return pending;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Run every task due at the given time on the calling thread, used when the wheel has no timer thread
+   *
+   * @param nowEpochMilliseconds the current time, in milliseconds since epoch
+   */
+  void advance(long nowEpochMilliseconds) {
+    List<Timeout> due;
+    lock.lock();
+    try {
+      collectDue(nowEpochMilliseconds);
+      due = takeDue();
+    } finally {
+      lock.unlock();
+    }
+    due.forEach(Timeout::run);
+  }
+
+  /**
+   * Place a task in the finest wheel covering its deadline, the caller holds the lock
+   *
+   * @param timeout the task to be placed
+   * @return the bucket holding the task, null if the task is due
+   */
+  private Bucket add(Timeout timeout) {
+    // Rounded up to the finest tick, so a task is never run before its deadline
+    long runAt = ceilToTick(timeout.deadlineEpochMilliseconds, levels[0].tickInMilliseconds);
+    if (runAt <= levels[0].currentEpochMilliseconds) {
+      return null;
+    }
+
+    // The coarser wheels round down, their buckets are cascaded into the finer wheels when due
+    for (Level level : levels) {
+      if (runAt < level.currentEpochMilliseconds + level.intervalInMilliseconds) {
+        return level.add(timeout, runAt - Math.floorMod(runAt, level.tickInMilliseconds), activeBuckets);
+      }
+    }
+    Level coarsest = levels[levels.length - 1];
+    return coarsest.add(timeout, coarsest.currentEpochMilliseconds + coarsest.intervalInMilliseconds - coarsest.tickInMilliseconds, activeBuckets);
+  }
+
+  /**
+   * Flush every bucket due at the given time, cascading its tasks or collecting them as due. The caller holds the lock
+   *
+   * @param nowEpochMilliseconds the current time, in milliseconds since epoch
+   */
+  private void collectDue(long nowEpochMilliseconds) {
+    Bucket bucket;
+    while ((bucket = activeBuckets.peek()) != null && bucket.expireAtEpochMilliseconds <= nowEpochMilliseconds) {
+      activeBuckets.poll();
+      advanceClocks(bucket.expireAtEpochMilliseconds);
+      for (Timeout timeout : bucket.flush()) {
+        if (add(timeout) == null) {
+          dueTimeouts.add(timeout);
+        }
+      }
+    }
+  }
+
+  /**
+   * Take the due tasks, marking them as run. The caller holds the lock
+   *
+   * @return the due tasks which were not cancelled
+   */
+  private List<Timeout> takeDue() {
+    if (dueTimeouts.isEmpty()) {
+      return List.of();
+    }
+    List<Timeout> due = new ArrayList<>(dueTimeouts.size());
+    for (Timeout timeout : dueTimeouts) {
+      if (timeout.state == Timeout.PENDING) {
+        timeout.state = Timeout.EXPIRED;
+        pending--;
+        due.add(timeout);
+      }
+    }
+    dueTimeouts.clear();
+    return due;
+  }
+
+  /**
+   * Move the current time of every wheel forward to the start of the tick containing the given time. The caller holds the lock
+   *
+   * @param nowEpochMilliseconds the current time, in milliseconds since epoch
+   */
+  private void advanceClocks(long nowEpochMilliseconds) {
+    for (Level level : levels) {
+      if (nowEpochMilliseconds >= level.currentEpochMilliseconds + level.tickInMilliseconds) {
+        level.currentEpochMilliseconds = nowEpochMilliseconds - Math.floorMod(nowEpochMilliseconds, level.tickInMilliseconds);
+      }
+    }
+  }
+
+  /**
+   * Start the timer thread on the first scheduled task. The caller holds the lock
+   */
+  private void startTimerThread() {
+    if (timerThread != null || threadFactory == null) {
+      return;
+    }
+    timerThread = threadFactory.newThread(this::runTimer);
+    timerThread.setPriority(Thread.MIN_PRIORITY);
+    timerThread.start();
+  }
+
+  /**
+   * The loop of the timer thread, sleeping until the next bucket is due
+   */
+  private void runTimer() {
+    while (true) {
+      List<Timeout> due;
+      lock.lock();
+      try {
+        due = awaitDue();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } finally {
+        lock.unlock();
+      }
+      due.forEach(Timeout::run);
+    }
+  }
+
+  /**
+   * Wait until at least one task is due. The caller holds the lock
+   *
+   * @return the due tasks
+   * @throws InterruptedException if the timer thread is interrupted
+   */
+  private List<Timeout> awaitDue() throws InterruptedException {
+    while (true) {
+      long now = System.currentTimeMillis();
+      collectDue(now);
+      List<Timeout> due = takeDue();
+      if (!due.isEmpty()) {
+        return due;
+      }
+
+      Bucket next = activeBuckets.peek();
+      if (next == null) {
+        wakeup.await();
+      } else {
+        wakeup.await(next.expireAtEpochMilliseconds - now, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  /**
+   * Cancel a pending task, unlinking it from its bucket
+   *
+   * @param timeout the task to be cancelled
+   * @return true if the task was pending
+   */
+  private boolean cancel(Timeout timeout) {
+    lock.lock();
+    try {
+      if (timeout.state != Timeout.PENDING) {
+        return false;
+      }
+      timeout.state = Timeout.CANCELLED;
+      pending--;
+      if (timeout.bucket != null) {
+        timeout.bucket.unlink(timeout);
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static long ceilToTick(long epochMilliseconds, long tickInMilliseconds) {
+    long remainder = Math.floorMod(epochMilliseconds, tickInMilliseconds);
+    if (remainder == 0) {
+      return epochMilliseconds;
+    }
+    long ceiled = epochMilliseconds - remainder + tickInMilliseconds;
+    // Deadlines close to the end of time are kept in the last tick
+    return ceiled < epochMilliseconds ? epochMilliseconds - remainder : ceiled;
+  }
+
+  /**
+   * A scheduled task, which can be cancelled until it is run
+   */
+  public static final class Timeout {
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final TimingWheel timingWheel;
+    private final Runnable task;
+    private final long deadlineEpochMilliseconds;
+    // Guarded by the lock of the timing wheel
+    private int state = PENDING;
+    private Bucket bucket;
+    private Timeout previous;
+    private Timeout next;
+
+    private Timeout(TimingWheel timingWheel, Runnable task, long deadlineEpochMilliseconds) {
+      this.timingWheel = timingWheel;
+      this.task = task;
+      this.deadlineEpochMilliseconds = deadlineEpochMilliseconds;
+    }
+
+    /**
+     * Access the point in time the task is run
+     *
+     * @return the deadline in milliseconds since epoch
+     */
+    public long deadlineEpochMilliseconds() {
+      return deadlineEpochMilliseconds;
+    }
+
+    /**
+     * Cancel the task unless it is already run or cancelled
+     *
+     * @return true if the task was cancelled by this call
+     */
+    public boolean cancel() {
+      return timingWheel.cancel(this);
+    }
+
+    private void run() {
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        // A failing task must not stop the timer thread, the task is responsible for handling its failures
+      }
+    }
+  }
+
+  /**
+   * A wheel of buckets sharing a tick. Guarded by the lock of the timing wheel
+   */
+  private static final class Level {
+    private final long tickInMilliseconds;
+    private final long intervalInMilliseconds;
+    private final Bucket[] buckets;
+    private long currentEpochMilliseconds;
+
+    private Level(long tickInMilliseconds, int wheelSize, long startEpochMilliseconds) {
+      this.tickInMilliseconds = tickInMilliseconds;
+      this.intervalInMilliseconds = Math.multiplyExact(tickInMilliseconds, wheelSize);
+      this.buckets = new Bucket[wheelSize];
+      for (int i = 0; i < wheelSize; i++) {
+        buckets[i] = new Bucket();
+      }
+      this.currentEpochMilliseconds = startEpochMilliseconds - Math.floorMod(startEpochMilliseconds, tickInMilliseconds);
+    }
+
+    private Bucket add(Timeout timeout, long bucketExpiry, PriorityQueue<Bucket> activeBuckets) {
+      Bucket bucket = buckets[(int) Math.floorMod(bucketExpiry / tickInMilliseconds, (long) buckets.length)];
+      bucket.link(timeout);
+      if (bucket.expireAtEpochMilliseconds != bucketExpiry) {
+        bucket.expireAtEpochMilliseconds = bucketExpiry;
+        activeBuckets.offer(bucket);
+      }
+      return bucket;
+    }
+  }
+
+  /**
+   * A doubly linked list of the tasks sharing a tick, unlinking a task takes constant time. Guarded by the lock of the timing wheel
+   */
+  private static final class Bucket {
+    private final Timeout head = new Timeout(null, () -> {}, 0L);
+    private long expireAtEpochMilliseconds = -1L;
+
+    private Bucket() {
+      head.previous = head;
+      head.next = head;
+    }
+
+    private void link(Timeout timeout) {
+      timeout.bucket = this;
+      timeout.previous = head.previous;
+      timeout.next = head;
+      head.previous.next = timeout;
+      head.previous = timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+      timeout.previous.next = timeout.next;
+      timeout.next.previous = timeout.previous;
+      timeout.bucket = null;
+      timeout.previous = null;
+      timeout.next = null;
+    }
+
+    /**
+     * Unlink every task, making the bucket available for a later tick
+     *
+     * @return the tasks of the bucket
+     */
+    private List<Timeout> flush() {
+      List<Timeout> timeouts = new ArrayList<>();
+      for (Timeout timeout = head.next; timeout != head; ) {
+        Timeout following = timeout.next;
+        unlink(timeout);
+        timeouts.add(timeout);
+        timeout = following;
+      }
+      expireAtEpochMilliseconds = -1L;
+      return timeouts;
+    }
+  }
+}
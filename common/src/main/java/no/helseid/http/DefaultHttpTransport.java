@@ -0,0 +1,158 @@
+package no.helseid.http;
+
+import com.nimbusds.oauth2.sdk.http.HTTPRequest;
+import com.nimbusds.oauth2.sdk.http.HTTPResponse;
+import no.helseid.exceptions.HelseIdException;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Default implementation of a HttpTransport backed by a single long-lived java.net.http.HttpClient.
+ * Connections are kept alive and reused, HTTP/2 is negotiated for https, while plain http uses HTTP/1.1
+ */
+public final class DefaultHttpTransport implements HttpTransport {
+  /**
+   * The default timeout for establishing a connection
+   */
+  public static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(10);
+  /**
+   * The default timeout for receiving a response
+   */
+  public static final Duration DEFAULT_REQUEST_TIMEOUT = Duration.ofSeconds(30);
+  private static final Set<String> RESTRICTED_HEADERS = Set.of("connection", "content-length", "expect", "host", "upgrade");
+  private final HttpClient httpClient;
+  private final Duration requestTimeout;
+
+  /**
+   * Create a new instance of DefaultHttpTransport with default timeouts
+   */
+  public DefaultHttpTransport() {
+    this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_REQUEST_TIMEOUT, null);
+  }
+
+  /**
+   * Create a new instance of DefaultHttpTransport
+   *
+   * @param connectTimeout the timeout for establishing a connection
+   * @param requestTimeout the timeout for receiving a response, unless the request specifies a read timeout
+   * @param executor an optional executor for the asynchronous work of the client, the default executor is used if null
+   */
+  public DefaultHttpTransport(Duration connectTimeout, Duration requestTimeout, Executor executor) {
+    HttpClient.Builder builder = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_2)
+        .followRedirects(HttpClient.Redirect.NEVER)
+        .connectTimeout(connectTimeout);
+
+    if (executor != null) {
+      builder.executor(executor);
+    }
+
+    this.httpClient = builder.build();
+    this.requestTimeout = requestTimeout;
+  }
+
+  /**
+   * Access the transport shared by HelseID internals when no custom transport is provided
+   *
+   * @return the shared instance of DefaultHttpTransport
+   */
+  public static DefaultHttpTransport getInstance() {
+    return SharedInstance.INSTANCE;
+  }
+
+  @Override
+  public HTTPResponse send(HTTPRequest request) throws HelseIdException {
+    try {
+      return toHTTPResponse(httpClient.send(toHttpRequest(request), HttpResponse.BodyHandlers.ofString()));
+    } catch (IOException e) {
+      throw new HelseIdException("Error occurred sending the request", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new HelseIdException("Request interrupted", e);
+    }
+  }
+
+  @Override
+  public CompletableFuture<HTTPResponse> sendAsync(HTTPRequest request) {
+    return httpClient.sendAsync(toHttpRequest(request), HttpResponse.BodyHandlers.ofString())
+        .handle((httpResponse, failure) -> {
+          if (failure != null) {
+            Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+            throw new CompletionException(new HelseIdException("Error occurred sending the request", cause));
+          }
+          return toHTTPResponse(httpResponse);
+        });
+  }
+
+  /**
+   * Convert a nimbus request to a request of the java http client
+   *
+   * @param request the nimbus request
+   * @return a java http client request
+   */
+  private HttpRequest toHttpRequest(HTTPRequest request) {
+    URI uri = request.getURI();
+    String body = request.getBody();
+
+    HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+        .method(request.getMethod().name(), body == null
+            ? HttpRequest.BodyPublishers.noBody()
+            : HttpRequest.BodyPublishers.ofString(body))
+        .timeout(request.getReadTimeout() > 0 ? Duration.ofMillis(request.getReadTimeout()) : requestTimeout);
+
+    // Upgrading plain http connections to HTTP/2 is poorly supported, HTTP/2 is negotiated with TLS only
+    if ("http".equalsIgnoreCase(uri.getScheme())) {
+      builder.version(HttpClient.Version.HTTP_1_1);
+    }
+
+    for (Map.Entry<String, List<String>> header : request.getHeaderMap().entrySet()) {
+      if (RESTRICTED_HEADERS.contains(header.getKey().toLowerCase())) {
+        continue;
+      }
+      for (String value : header.getValue()) {
+        builder.header(header.getKey(), value);
+      }
+    }
+
+    return builder.build();
+  }
+
+  /**
+   * Convert a response of the java http client to a nimbus response
+   *
+   * @param httpResponse the java http client response
+   * @return a nimbus response
+   */
+  private static HTTPResponse toHTTPResponse(HttpResponse<String> httpResponse) {
+    HTTPResponse response = new HTTPResponse(httpResponse.statusCode());
+
+    for (Map.Entry<String, List<String>> header : httpResponse.headers().map().entrySet()) {
+      // Skip HTTP/2 pseudo headers such as :status
+      if (header.getKey().startsWith(":") || header.getValue().isEmpty()) {
+        continue;
+      }
+      response.setHeader(header.getKey(), header.getValue().toArray(String[]::new));
+    }
+
+    response.setBody(httpResponse.body());
+    return response;
+  }
+
+  /**
+   * Lazy holder of the shared instance
+   */
+  private static final class SharedInstance {
+    private static final DefaultHttpTransport INSTANCE = new DefaultHttpTransport();
+  }
+}
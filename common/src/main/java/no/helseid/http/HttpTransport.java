@@ -0,0 +1,37 @@
+package no.helseid.http;
+
+import com.nimbusds.oauth2.sdk.http.HTTPRequest;
+import com.nimbusds.oauth2.sdk.http.HTTPResponse;
+import no.helseid.exceptions.HelseIdException;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Transport of HTTP requests to HelseID.
+ * Implementations are expected to be long-lived and shared, reusing connections across requests
+ */
+public interface HttpTransport {
+  /**
+   * Send a request and wait for the response
+   *
+   * @param request the request to be sent
+   * @return the response, regardless of the status code
+   * @throws HelseIdException if the request is not sent off or no response is received
+   */
+  HTTPResponse send(HTTPRequest request) throws HelseIdException;
+
+  /**
+   * Send a request without waiting for the response.
+   * The default implementation sends the request on the calling thread, non-blocking implementations should override it
+   *
+   * @param request the request to be sent
+   * @return a future completed with the response, or failed with a HelseIdException if no response is received
+   */
+  default CompletableFuture<HTTPResponse> sendAsync(HTTPRequest request) {
+    try {
+      return CompletableFuture.completedFuture(send(request));
+    } catch (HelseIdException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package no.helseid.metadata;
+
+import com.nimbusds.oauth2.sdk.ParseException;
+import com.nimbusds.openid.connect.sdk.op.OIDCProviderMetadata;
+import net.minidev.json.JSONObject;
+import no.helseid.cache.ValueCodec;
+import no.helseid.exceptions.HelseIdException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Converts metadata to and from a versioned, compact JSON representation, used when metadata is cached outside the heap.
+ * The codec might be restricted to a subset of the metadata fields, reducing the size of every cached entry.
+ * The fields required to parse metadata are always kept
+ */
+public final class MetadataCodec implements ValueCodec<OIDCProviderMetadata> {
+  /**
+   * The version of the encoding, written as the first byte of every encoded value
+   */
+  public static final byte VERSION = 1;
+  /**
+   * The metadata fields used by this library
+   */
+  public static final Set<String> LIBRARY_FIELDS = Set.of(
+      "issuer",
+      "jwks_uri",
+      "token_endpoint",
+      "authorization_endpoint",
+      "pushed_authorization_request_endpoint",
+      "end_session_endpoint",
+      "userinfo_endpoint",
+      "subject_types_supported",
+      "response_types_supported",
+      "grant_types_supported",
+      "scopes_supported",
+      "id_token_signing_alg_values_supported",
+      "token_endpoint_auth_methods_supported",
+      "token_endpoint_auth_signing_alg_values_supported",
+      "dpop_signing_alg_values_supported"
+  );
+  private static final Set<String> REQUIRED_FIELDS = Set.of("issuer", "jwks_uri", "subject_types_supported", "response_types_supported");
+  private final Set<String> fields;
+
+  /**
+   * Create a new instance of MetadataCodec keeping every metadata field
+   */
+  public MetadataCodec() {
+    this.fields = null;
+  }
+
+  /**
+   * Create a new instance of MetadataCodec keeping only the given metadata fields, in addition to the fields required to parse metadata
+   *
+   * @param fields the names of the metadata fields to keep, LIBRARY_FIELDS keeps the fields used by this library
+   */
+  public MetadataCodec(Set<String> fields) {
+    Set<String> keptFields = new HashSet<>(fields);
+    keptFields.addAll(REQUIRED_FIELDS);
+    this.fields = Set.copyOf(keptFields);
+  }
+
+  @Override
+  public byte[] encode(OIDCProviderMetadata metadata) {
+    JSONObject jsonObject = metadata.toJSONObject();
+    if (fields != null) {
+      jsonObject.keySet().retainAll(fields);
+    }
+
+    byte[] json = jsonObject.toJSONString().getBytes(StandardCharsets.UTF_8);
+    byte[] bytes = new byte[json.length + 1];
+    bytes[0] = VERSION;
+    System.arraycopy(json, 0, bytes, 1, json.length);
+    return bytes;
+  }
+
+  @Override
+  public OIDCProviderMetadata decode(byte[] bytes) throws HelseIdException {
+    if (bytes.length == 0 || bytes[0] != VERSION) {
+      throw new HelseIdException("Unsupported encoding of the cached metadata");
+    }
+
+    try {
+      return OIDCProviderMetadata.parse(new String(bytes, 1, bytes.length - 1, StandardCharsets.UTF_8));
+    } catch (ParseException e) {
+      throw new HelseIdException("Unable to decode the cached metadata", e);
+    }
+  }
+}
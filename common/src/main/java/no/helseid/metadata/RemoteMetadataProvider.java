@@ -1,17 +1,28 @@
 package no.helseid.metadata;
 
 import com.nimbusds.oauth2.sdk.GeneralException;
+import com.nimbusds.oauth2.sdk.http.HTTPRequest;
+import com.nimbusds.oauth2.sdk.http.HTTPResponse;
 import com.nimbusds.oauth2.sdk.id.Issuer;
 import com.nimbusds.openid.connect.sdk.op.OIDCProviderMetadata;
+import no.helseid.cache.CacheEntry;
 import no.helseid.cache.ExpiringCache;
 import no.helseid.cache.InMemoryExpiringCache;
+import no.helseid.concurrent.DaemonThreadFactory;
+import no.helseid.concurrent.SingleFlight;
 import no.helseid.exceptions.HelseIdException;
+import no.helseid.http.DefaultHttpTransport;
+import no.helseid.http.HttpTransport;
 
-import java.io.IOException;
 import java.net.URI;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Provider of OIDCProviderMetadata from a discovery endpoint.
@@ -23,9 +34,22 @@ public class RemoteMetadataProvider implements MetadataProvider {
   private static final Map<String, RemoteMetadataProvider> instanceMap = new ConcurrentHashMap<>();
   private static final String CACHE_KEY = "metadata";
   private static final long MILLISECONDS_IN_A_DAY = TimeUnit.DAYS.toMillis(1);
+  private static final long DEFAULT_INITIAL_REFRESH_BACKOFF_IN_MILLISECONDS = TimeUnit.SECONDS.toMillis(5);
+  private static final long DEFAULT_MAXIMUM_REFRESH_BACKOFF_IN_MILLISECONDS = TimeUnit.MINUTES.toMillis(5);
+  private static final Executor DEFAULT_BACKGROUND_EXECUTOR = Executors.newCachedThreadPool(
+      new DaemonThreadFactory("helseid-metadata-refresh"));
   private final URI authority;
   private final ExpiringCache<OIDCProviderMetadata> cache;
   private final long expirationTimeInMilliseconds;
+  private final long maximumStalenessInMilliseconds;
+  private final long initialRefreshBackoffInMilliseconds;
+  private final long maximumRefreshBackoffInMilliseconds;
+  private final Executor backgroundExecutor;
+  private final HttpTransport httpTransport;
+  private final AtomicBoolean refreshing = new AtomicBoolean();
+  private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+  private final SingleFlight<Snapshot> fetches = new SingleFlight<>();
+  private int consecutiveRefreshFailures;
 
   RemoteMetadataProvider(URI authority) {
     this(authority, MILLISECONDS_IN_A_DAY, new InMemoryExpiringCache<>());
@@ -36,26 +60,186 @@ public class RemoteMetadataProvider implements MetadataProvider {
   }
 
   RemoteMetadataProvider(URI authority, long expirationTimeInMilliseconds, ExpiringCache<OIDCProviderMetadata> cache) {
+    this(authority, expirationTimeInMilliseconds, cache, 0L,
+        DEFAULT_INITIAL_REFRESH_BACKOFF_IN_MILLISECONDS, DEFAULT_MAXIMUM_REFRESH_BACKOFF_IN_MILLISECONDS, DEFAULT_BACKGROUND_EXECUTOR,
+        DefaultHttpTransport.getInstance());
+  }
+
+  RemoteMetadataProvider(
+      URI authority,
+      long expirationTimeInMilliseconds,
+      ExpiringCache<OIDCProviderMetadata> cache,
+      long maximumStalenessInMilliseconds,
+      long initialRefreshBackoffInMilliseconds,
+      long maximumRefreshBackoffInMilliseconds,
+      Executor backgroundExecutor,
+      HttpTransport httpTransport) {
     this.authority = authority;
     this.cache = cache;
     this.expirationTimeInMilliseconds = expirationTimeInMilliseconds;
+    this.maximumStalenessInMilliseconds = maximumStalenessInMilliseconds;
+    this.initialRefreshBackoffInMilliseconds = initialRefreshBackoffInMilliseconds;
+    this.maximumRefreshBackoffInMilliseconds = maximumRefreshBackoffInMilliseconds;
+    this.backgroundExecutor = backgroundExecutor;
+    this.httpTransport = httpTransport;
   }
 
   /**
-   * Get the cached metadata, updated metadata is fetched if the cache is expired
+   * Get the cached metadata, updated metadata is fetched if the cache is expired.
+   * With stale-while-revalidate enabled, expired metadata is served within the maximum staleness while a refresh runs in the background
    *
    * @throws HelseIdException if a refresh fails
    * @return metadata object
    */
   @Override
   public OIDCProviderMetadata getMetadata() throws HelseIdException {
-    if (cache.get(CACHE_KEY) == null) {
-      var metadata = fetchMetadata();
-      cache.put(CACHE_KEY, metadata, System.currentTimeMillis() + expirationTimeInMilliseconds);
-      return metadata;
+    Snapshot current = snapshot.get();
+
+    if (current != null) {
+      long now = System.currentTimeMillis();
+      if (now < current.refreshAtEpochMilliseconds) {
+        return current.metadata;
+      }
+      if (now < current.expireAtEpochMilliseconds) {
+        refreshInBackground(current);
+        return current.metadata;
+      }
+    }
+
+    return fetches.execute(CACHE_KEY, () -> loadSnapshot(current)).metadata;
+  }
+
+  /**
+   * Load a new snapshot, unless another caller replaced the expired snapshot in the meantime.
+   * Metadata is loaded thru the cache, adopting metadata stored by others and letting the cache coordinate the fetch
+   *
+   * @param expired the expired snapshot, null if no snapshot is published
+   * @return a valid snapshot
+   * @throws HelseIdException if a fetch fails
+   */
+  private Snapshot loadSnapshot(Snapshot expired) throws HelseIdException {
+    Snapshot current = snapshot.get();
+    if (current != expired && current != null && System.currentTimeMillis() < current.expireAtEpochMilliseconds) {
+      return current;
+    }
+
+    var cachedEntry = cache.getOrLoad(CACHE_KEY, key -> {
+      long refreshAt = System.currentTimeMillis() + expirationTimeInMilliseconds;
+      return new CacheEntry<>(fetchMetadata(), refreshAt + maximumStalenessInMilliseconds);
+    });
+
+    // A cache not revealing its expirations may still hold the metadata of the expired snapshot
+    if (expired != null && cachedEntry.value() == expired.metadata) {
+      return refresh();
+    }
+    return adopt(cachedEntry);
+  }
+
+  /**
+   * Publish metadata stored in the cache by others as a snapshot, never valid beyond its expiration in the cache.
+   * Metadata past its lifetime is refreshed in the background on the next access
+   *
+   * @param cachedEntry the cached metadata and its expiration
+   * @return the published snapshot
+   */
+  private Snapshot adopt(CacheEntry<OIDCProviderMetadata> cachedEntry) {
+    if (!cachedEntry.hasKnownExpiry()) {
+      return publish(cachedEntry.value());
+    }
+
+    long now = System.currentTimeMillis();
+    long expireAt = Math.min(cachedEntry.expireAtEpochMilliseconds(), now + expirationTimeInMilliseconds + maximumStalenessInMilliseconds);
+    long refreshAt = Math.min(now + expirationTimeInMilliseconds, expireAt - maximumStalenessInMilliseconds);
+    Snapshot adopted = new Snapshot(cachedEntry.value(), refreshAt, expireAt);
+    snapshot.set(adopted);
+    return adopted;
+  }
+
+  /**
+   * Fetch metadata replacing the cached metadata, the time spent is recorded as a load by the statistics of the cache
+   *
+   * @return the published snapshot
+   * @throws HelseIdException if the fetch fails
+   */
+  private Snapshot refresh() throws HelseIdException {
+    long startNanoseconds = System.nanoTime();
+    OIDCProviderMetadata metadata;
+    try {
+      metadata = fetchMetadata();
+    } catch (HelseIdException e) {
+      cache.statsCounter().recordLoadFailure(System.nanoTime() - startNanoseconds);
+      throw e;
+    }
+    cache.statsCounter().recordLoadSuccess(System.nanoTime() - startNanoseconds);
+    return store(metadata);
+  }
+
+  /**
+   * Cache fresh metadata, kept beyond its lifetime for the maximum staleness, and publish it as a snapshot
+   *
+   * @param metadata the fresh metadata
+   * @return the published snapshot
+   */
+  private Snapshot store(OIDCProviderMetadata metadata) {
+    Snapshot fresh = publish(metadata);
+    cache.put(CACHE_KEY, metadata, fresh.expireAtEpochMilliseconds);
+    return fresh;
+  }
+
+  /**
+   * Publish metadata as a snapshot valid from now
+   *
+   * @param metadata the metadata to publish
+   * @return the published snapshot
+   */
+  private Snapshot publish(OIDCProviderMetadata metadata) {
+    long refreshAt = System.currentTimeMillis() + expirationTimeInMilliseconds;
+    Snapshot fresh = new Snapshot(metadata, refreshAt, refreshAt + maximumStalenessInMilliseconds);
+    snapshot.set(fresh);
+    return fresh;
+  }
+
+  /**
+   * Start a refresh of the metadata in the background, unless a refresh is already running.
+   * A failing refresh postpones the next attempt with an exponential backoff
+   *
+   * @param stale the snapshot due for refresh
+   */
+  private void refreshInBackground(Snapshot stale) {
+    if (!refreshing.compareAndSet(false, true)) {
+      return;
     }
 
-    return cache.get(CACHE_KEY);
+    try {
+      backgroundExecutor.execute(() -> {
+        try {
+          fetches.execute(CACHE_KEY, this::refresh);
+          consecutiveRefreshFailures = 0;
+        } catch (HelseIdException | RuntimeException e) {
+          consecutiveRefreshFailures++;
+          long retryAt = System.currentTimeMillis() + refreshBackoff(consecutiveRefreshFailures);
+          snapshot.compareAndSet(stale, new Snapshot(stale.metadata, retryAt, stale.expireAtEpochMilliseconds));
+        } finally {
+          refreshing.set(false);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      refreshing.set(false);
+    }
+  }
+
+  /**
+   * Calculate the delay before the next refresh attempt
+   *
+   * @param failures the number of consecutive failed refreshes
+   * @return the delay in milliseconds
+   */
+  private long refreshBackoff(int failures) {
+    long backoff = initialRefreshBackoffInMilliseconds;
+    for (int i = 1; i < failures && backoff < maximumRefreshBackoffInMilliseconds; i++) {
+      backoff *= 2;
+    }
+    return Math.min(maximumRefreshBackoffInMilliseconds, backoff);
   }
 
   /**
@@ -64,10 +248,19 @@ public class RemoteMetadataProvider implements MetadataProvider {
    * @return metadata object
    * @throws HelseIdException if a fetch fails
    */
-  private OIDCProviderMetadata fetchMetadata() throws HelseIdException{
+  private OIDCProviderMetadata fetchMetadata() throws HelseIdException {
     try {
-      return OIDCProviderMetadata.resolve(Issuer.parse(authority.toString()));
-    } catch (GeneralException | IOException e) {
+      Issuer issuer = Issuer.parse(authority.toString());
+      HTTPResponse httpResponse = httpTransport.send(new HTTPRequest(HTTPRequest.Method.GET, OIDCProviderMetadata.resolveURL(issuer)));
+      httpResponse.ensureStatusCode(200);
+      OIDCProviderMetadata metadata = OIDCProviderMetadata.parse(httpResponse.getBodyAsJSONObject());
+
+      if (!issuer.equals(metadata.getIssuer())) {
+        throw new GeneralException("The returned issuer doesn't match the expected: " + metadata.getIssuer());
+      }
+
+      return metadata;
+    } catch (GeneralException | HelseIdException e) {
       throw new HelseIdException("Error occurred during fetching metadata", e);
     }
   }
@@ -78,10 +271,147 @@ public class RemoteMetadataProvider implements MetadataProvider {
    * @param authority the authority which the metadata should be fetched for
    * @return a new instance of a RemoteMetadataProvider describing the authority
    */
-  public static synchronized RemoteMetadataProvider getInstance(URI authority) {
-    if (!instanceMap.containsKey(authority.toString())) {
-      instanceMap.put(authority.toString(), new RemoteMetadataProvider(authority, MILLISECONDS_IN_A_DAY, new InMemoryExpiringCache<>()));
+  public static RemoteMetadataProvider getInstance(URI authority) {
+    return instanceMap.computeIfAbsent(authority.toString(),
+        key -> new RemoteMetadataProvider(authority, MILLISECONDS_IN_A_DAY, new InMemoryExpiringCache<>()));
+  }
+
+  /**
+   * Builder class for a RemoteMetadataProvider not shared thru getInstance
+   */
+  public static class Builder {
+    private final URI authority;
+    private long expirationTimeInMilliseconds = MILLISECONDS_IN_A_DAY;
+    private long maximumStalenessInMilliseconds;
+    private long initialRefreshBackoffInMilliseconds = DEFAULT_INITIAL_REFRESH_BACKOFF_IN_MILLISECONDS;
+    private long maximumRefreshBackoffInMilliseconds = DEFAULT_MAXIMUM_REFRESH_BACKOFF_IN_MILLISECONDS;
+    private ExpiringCache<OIDCProviderMetadata> cache;
+    private Executor backgroundExecutor;
+    private HttpTransport httpTransport;
+
+    /**
+     * Initialize a builder class for a remote metadata provider
+     * @param authority the authority which the metadata should be fetched for
+     */
+    public Builder(final URI authority) {
+      this.authority = authority;
+    }
+
+    /**
+     * Assign the lifetime of fetched metadata, the default is 24 hours
+     * @param expirationTimeInMilliseconds the lifetime of fetched metadata in milliseconds
+     * @return the current builder
+     */
+    public Builder withCacheLifetime(final long expirationTimeInMilliseconds) {
+      this.expirationTimeInMilliseconds = expirationTimeInMilliseconds;
+      return this;
+    }
+
+    /**
+     * Enable stale-while-revalidate, disabled by default.
+     * Expired metadata is served while a single background task fetches fresh metadata.
+     * Beyond the maximum staleness the metadata is discarded and fetched on the caller thread.
+     * @param maximumStalenessInMilliseconds how long expired metadata may be served
+     * @return the current builder
+     */
+    public Builder withStaleWhileRevalidate(final long maximumStalenessInMilliseconds) {
+      this.maximumStalenessInMilliseconds = maximumStalenessInMilliseconds;
+      return this;
     }
-    return instanceMap.get(authority.toString());
+
+    /**
+     * Assign the backoff between failing background refreshes, doubling from the initial delay up to the maximum delay.
+     * The default is 5 seconds doubling up to 5 minutes
+     * @param initialRefreshBackoffInMilliseconds the delay after the first failing refresh
+     * @param maximumRefreshBackoffInMilliseconds the upper limit of the delay
+     * @return the current builder
+     */
+    public Builder withRefreshBackoff(final long initialRefreshBackoffInMilliseconds, final long maximumRefreshBackoffInMilliseconds) {
+      this.initialRefreshBackoffInMilliseconds = initialRefreshBackoffInMilliseconds;
+      this.maximumRefreshBackoffInMilliseconds = maximumRefreshBackoffInMilliseconds;
+      return this;
+    }
+
+    /**
+     * Assign a custom metadata cache implementation, the default is in memory
+     * @param cache a custom metadata cache implementation
+     * @return the current builder
+     */
+    public Builder setCustomCache(final ExpiringCache<OIDCProviderMetadata> cache) {
+      this.cache = cache;
+      return this;
+    }
+
+    /**
+     * Assign a custom executor for background refreshes, the default is a pool of daemon threads
+     * @param backgroundExecutor a custom executor for background refreshes
+     * @return the current builder
+     */
+    public Builder setCustomBackgroundExecutor(final Executor backgroundExecutor) {
+      this.backgroundExecutor = backgroundExecutor;
+      return this;
+    }
+
+    /**
+     * Assign a custom transport for fetching metadata, the default is a transport shared by HelseID internals
+     * @param httpTransport a custom transport
+     * @return the current builder
+     */
+    public Builder setCustomHttpTransport(final HttpTransport httpTransport) {
+      this.httpTransport = httpTransport;
+      return this;
+    }
+
+    /**
+     * Build the remote metadata provider
+     * @return a new instance of a RemoteMetadataProvider describing the authority
+     * @throws HelseIdException if misconfigured
+     */
+    public RemoteMetadataProvider build() throws HelseIdException {
+      if (authority == null) {
+        throw new HelseIdException("No authority is provided");
+      }
+
+      if (maximumStalenessInMilliseconds < 0) {
+        throw new HelseIdException("The maximum staleness can not be negative");
+      }
+
+      if (initialRefreshBackoffInMilliseconds <= 0 || maximumRefreshBackoffInMilliseconds < initialRefreshBackoffInMilliseconds) {
+        throw new HelseIdException("The refresh backoff must be positive and the maximum can not be less than the initial backoff");
+      }
+
+      if (cache == null) {
+        this.cache = new InMemoryExpiringCache<>();
+      }
+
+      if (backgroundExecutor == null) {
+        this.backgroundExecutor = DEFAULT_BACKGROUND_EXECUTOR;
+      }
+
+      if (httpTransport == null) {
+        this.httpTransport = DefaultHttpTransport.getInstance();
+      }
+
+      return new RemoteMetadataProvider(
+          this.authority,
+          this.expirationTimeInMilliseconds,
+          this.cache,
+          this.maximumStalenessInMilliseconds,
+          this.initialRefreshBackoffInMilliseconds,
+          this.maximumRefreshBackoffInMilliseconds,
+          this.backgroundExecutor,
+          this.httpTransport
+      );
+    }
+  }
+
+  /**
+   * An immutable view of the metadata and when it is due for refresh
+   *
+   * @param metadata the metadata
+   * @param refreshAtEpochMilliseconds when the metadata should be refreshed
+   * @param expireAtEpochMilliseconds when the metadata can no longer be served
+   */
+  private record Snapshot(OIDCProviderMetadata metadata, long refreshAtEpochMilliseconds, long expireAtEpochMilliseconds) {
   }
 }
@@ -0,0 +1,149 @@
+package no.helseid.cache;
+
+import no.helseid.exceptions.HelseIdException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class FileBackedExpiringCacheTest {
+  private static final ValueCodec<String> STRING_CODEC = new ValueCodec<>() {
+    @Override
+    public byte[] encode(String value) {
+      return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String decode(byte[] bytes) {
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+  };
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void values_should_be_served_after_a_restart() throws HelseIdException, IOException {
+    Path path = directory.resolve("cache.bin");
+    long expireAt = System.currentTimeMillis() + 60_000;
+
+    try (var cache = new FileBackedExpiringCache.Builder<>(path, STRING_CODEC).build()) {
+      cache.put("live", "value", expireAt);
+      cache.put("replaced", "old-value", expireAt);
+      cache.put("replaced", "new-value", expireAt);
+      cache.put("removed", "value", expireAt);
+      cache.remove("removed");
+      cache.put("expired", "value", System.currentTimeMillis() - 1);
+    }
+
+    try (var cache = new FileBackedExpiringCache.Builder<>(path, STRING_CODEC).build()) {
+      assertEquals("value", cache.get("live"));
+      assertEquals("new-value", cache.get("replaced"));
+      assertNull(cache.get("removed"));
+      assertNull(cache.get("expired"));
+      assertEquals(2, cache.size());
+    }
+  }
+
+  @Test
+  void the_file_should_only_be_accessible_by_its_owner() throws HelseIdException, IOException {
+    assumeTrue(directory.getFileSystem().supportedFileAttributeViews().contains("posix"));
+    Path path = directory.resolve("cache.bin");
+    Files.writeString(path, "not a cache file");
+    Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-r--r--"));
+
+    try (var cache = new FileBackedExpiringCache.Builder<>(path, STRING_CODEC).build()) {
+      cache.put("key", "value", System.currentTimeMillis() + 60_000);
+    }
+
+    assertEquals(PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(path));
+  }
+
+  @Test
+  void a_torn_record_should_be_discarded_on_load() throws HelseIdException, IOException {
+    Path path = directory.resolve("cache.bin");
+    long expireAt = System.currentTimeMillis() + 60_000;
+
+    try (var cache = new FileBackedExpiringCache.Builder<>(path, STRING_CODEC).build()) {
+      cache.put("first", "value", expireAt);
+      cache.put("second", "value", expireAt);
+    }
+    byte[] bytes = Files.readAllBytes(path);
+    Files.write(path, Arrays.copyOf(bytes, bytes.length - 3));
+
+    try (var cache = new FileBackedExpiringCache.Builder<>(path, STRING_CODEC).build()) {
+      assertEquals("value", cache.get("first"));
+      assertNull(cache.get("second"));
+    }
+  }
+
+  @Test
+  void a_file_of_unknown_format_should_be_replaced() throws HelseIdException, IOException {
+    Path path = directory.resolve("cache.bin");
+    Files.writeString(path, "not a cache file");
+
+    try (var cache = new FileBackedExpiringCache.Builder<>(path, STRING_CODEC).build()) {
+      assertEquals(0, cache.size());
+      cache.put("key", "value", System.currentTimeMillis() + 60_000);
+    }
+
+    try (var cache = new FileBackedExpiringCache.Builder<>(path, STRING_CODEC).build()) {
+      assertEquals("value", cache.get("key"));
+    }
+  }
+
+  @Test
+  void outdated_records_should_be_compacted() throws HelseIdException, IOException {
+    Path path = directory.resolve("cache.bin");
+    long expireAt = System.currentTimeMillis() + 60_000;
+
+    try (var cache = new FileBackedExpiringCache.Builder<>(path, STRING_CODEC).withCompactionThreshold(10).build()) {
+      cache.put("key", "value-0", expireAt);
+      long sizeWithOneRecord = Files.size(path);
+
+      for (int i = 1; i <= 100; i++) {
+        cache.put("key", "value-" + i, expireAt);
+      }
+
+      assertTrue(Files.size(path) < sizeWithOneRecord * 20);
+      assertEquals("value-100", cache.get("key"));
+    }
+  }
+
+  @Test
+  void entries_expiring_first_should_be_evicted_when_full() throws HelseIdException, IOException {
+    long now = System.currentTimeMillis();
+
+    try (var cache = new FileBackedExpiringCache.Builder<>(directory.resolve("cache.bin"), STRING_CODEC).withMaximumSize(2).build()) {
+      cache.put("first", "value", now + 10_000);
+      cache.put("second", "value", now + 20_000);
+      cache.put("third", "value", now + 30_000);
+
+      assertNull(cache.get("first"));
+      assertEquals("value", cache.get("second"));
+      assertEquals("value", cache.get("third"));
+      assertEquals(1, cache.stats().evictionCount());
+    }
+  }
+
+  @Test
+  void builder_should_fail_if_misconfigured() {
+    Path path = directory.resolve("cache.bin");
+
+    HelseIdException noCodec = assertThrows(HelseIdException.class,
+        () -> new FileBackedExpiringCache.Builder<String>(path, null).build());
+    assertEquals("No codec is provided", noCodec.getMessage());
+
+    HelseIdException invalidSize = assertThrows(HelseIdException.class,
+        () -> new FileBackedExpiringCache.Builder<>(path, STRING_CODEC).withMaximumSize(0).build());
+    assertEquals("The maximum size must be positive", invalidSize.getMessage());
+  }
+}
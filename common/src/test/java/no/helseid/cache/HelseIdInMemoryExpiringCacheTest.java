@@ -1,11 +1,19 @@
 package no.helseid.cache;
 
+import no.helseid.exceptions.HelseIdException;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.*;
 
 class HelseIdInMemoryExpiringCacheTest {
   @Test
@@ -40,4 +48,185 @@ class HelseIdInMemoryExpiringCacheTest {
     memoryCache.remove(key);
     assertNull(memoryCache.get(key));
   }
-}
\ No newline at end of file
+
+  @Test
+  public void cache_should_not_grow_beyond_maximum_size() {
+    InMemoryExpiringCache<String> memoryCache = new InMemoryExpiringCache<>(10);
+
+    for (int i = 0; i < 100; i++) {
+      memoryCache.put("key-" + i, "value-" + i, System.currentTimeMillis() + 10_000);
+      assertTrue(memoryCache.size() <= 10);
+    }
+    assertEquals("value-99", memoryCache.get("key-99"));
+  }
+
+  @Test
+  public void cache_should_not_grow_beyond_maximum_size_with_concurrent_writers() throws Exception {
+    InMemoryExpiringCache<String> memoryCache = new InMemoryExpiringCache<>(100);
+    var start = new CountDownLatch(1);
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      var results = new ArrayList<Future<?>>();
+      for (int i = 0; i < 8; i++) {
+        int writer = i;
+        results.add(executor.submit(() -> {
+          start.await();
+          for (int j = 0; j < 1_000; j++) {
+            memoryCache.put("key-" + writer + "-" + j, "value", System.currentTimeMillis() + 10_000);
+          }
+          return null;
+        }));
+      }
+      start.countDown();
+      for (var result : results) {
+        result.get(5, TimeUnit.SECONDS);
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    assertTrue(memoryCache.size() <= 100);
+    assertEquals(8_000, memoryCache.size() + memoryCache.stats().evictionCount());
+  }
+
+  @Test
+  public void frequently_used_values_should_survive_eviction() {
+    InMemoryExpiringCache<String> memoryCache = new InMemoryExpiringCache<>(10);
+    memoryCache.put("hot", "hot-value", System.currentTimeMillis() + 10_000);
+    for (int i = 0; i < 10; i++) {
+      assertEquals("hot-value", memoryCache.get("hot"));
+    }
+
+    for (int i = 0; i < 15; i++) {
+      memoryCache.put("key-" + i, "value-" + i, System.currentTimeMillis() + 10_000);
+    }
+
+    assertEquals("hot-value", memoryCache.get("hot"));
+  }
+
+  @Test
+  public void expired_values_should_be_evicted_before_live_values() {
+    InMemoryExpiringCache<String> memoryCache = new InMemoryExpiringCache<>(10);
+    for (int i = 0; i < 5; i++) {
+      memoryCache.put("expired-" + i, "value", System.currentTimeMillis() - 1);
+    }
+    for (int i = 0; i < 6; i++) {
+      memoryCache.put("live-" + i, "value-" + i, System.currentTimeMillis() + 10_000);
+    }
+
+    // Expired values not evicted by the insertions are removed by their expiry timers
+    awaitSize(memoryCache, 6);
+    for (int i = 0; i < 6; i++) {
+      assertEquals("value-" + i, memoryCache.get("live-" + i));
+    }
+  }
+
+  @Test
+  public void expired_values_should_be_removed_without_being_accessed() {
+    InMemoryExpiringCache<String> memoryCache = new InMemoryExpiringCache<>();
+    memoryCache.put("short-lived", "value", System.currentTimeMillis() + 50);
+    memoryCache.put("long-lived", "value", System.currentTimeMillis() + 10_000);
+
+    awaitSize(memoryCache, 1);
+    assertEquals(1, memoryCache.stats().expirationCount());
+    assertEquals("value", memoryCache.get("long-lived"));
+  }
+
+  @Test
+  public void maximum_size_must_be_positive() {
+    assertThrows(IllegalArgumentException.class, () -> new InMemoryExpiringCache<String>(0));
+  }
+
+  @Test
+  public void hits_misses_expirations_and_evictions_should_be_recorded() {
+    InMemoryExpiringCache<String> memoryCache = new InMemoryExpiringCache<>(10);
+    memoryCache.put("live", "value", System.currentTimeMillis() + 10_000);
+    memoryCache.put("expired", "value", System.currentTimeMillis() - 1);
+
+    memoryCache.get("live");
+    memoryCache.get("live");
+    memoryCache.get("missing");
+    memoryCache.get("expired");
+
+    for (int i = 0; i < 10; i++) {
+      memoryCache.put("key-" + i, "value-" + i, System.currentTimeMillis() + 10_000);
+    }
+
+    CacheStats stats = memoryCache.stats();
+    assertEquals(2, stats.hitCount());
+    assertEquals(2, stats.missCount());
+    assertEquals(1, stats.expirationCount());
+    assertEquals(0.5, stats.hitRate());
+    assertEquals(11, memoryCache.size() + stats.evictionCount());
+    assertTrue(stats.evictionCount() > 0);
+  }
+
+  @Test
+  public void statistics_should_not_be_recorded_by_a_disabled_counter() {
+    InMemoryExpiringCache<String> memoryCache = new InMemoryExpiringCache<>(10, StatsCounter.disabled());
+    memoryCache.put("key", "value", System.currentTimeMillis() + 10_000);
+    memoryCache.get("key");
+    memoryCache.get("missing");
+
+    assertEquals(CacheStats.empty(), memoryCache.stats());
+  }
+
+  @Test
+  public void concurrent_loads_on_a_key_should_be_coalesced() throws Exception {
+    InMemoryExpiringCache<String> memoryCache = new InMemoryExpiringCache<>();
+    var loads = new AtomicInteger();
+    var start = new CountDownLatch(1);
+    ExpiringCache.Loader<String> loader = key -> {
+      loads.incrementAndGet();
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+      return new CacheEntry<>("loaded", System.currentTimeMillis() + 10_000);
+    };
+
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      var results = new ArrayList<Future<CacheEntry<String>>>();
+      for (int i = 0; i < 8; i++) {
+        results.add(executor.submit(() -> {
+          start.await();
+          return memoryCache.getOrLoad("key", loader);
+        }));
+      }
+      start.countDown();
+      for (var result : results) {
+        assertEquals("loaded", result.get(5, TimeUnit.SECONDS).value());
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    assertEquals(1, loads.get());
+    assertEquals("loaded", memoryCache.getOrLoadAsync("key", key -> fail("The value should be cached")).join().value());
+    assertEquals(1, memoryCache.stats().loadSuccessCount());
+  }
+
+  @Test
+  public void failed_loads_should_not_be_cached() throws HelseIdException {
+    InMemoryExpiringCache<String> memoryCache = new InMemoryExpiringCache<>();
+
+    assertThrows(HelseIdException.class, () -> memoryCache.getOrLoad("key", key -> {
+      throw new HelseIdException("Load failed");
+    }));
+    assertNull(memoryCache.get("key"));
+
+    var loadedEntry = memoryCache.getOrLoad("key", key -> new CacheEntry<>("loaded", System.currentTimeMillis() + 10_000));
+    assertEquals("loaded", loadedEntry.value());
+
+    CacheStats stats = memoryCache.stats();
+    assertEquals(1, stats.loadFailureCount());
+    assertEquals(1, stats.loadSuccessCount());
+  }
+
+  private static void awaitSize(InMemoryExpiringCache<?> memoryCache, int expectedSize) {
+    long deadline = System.currentTimeMillis() + 5_000;
+    while (memoryCache.size() != expectedSize && System.currentTimeMillis() < deadline) {
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+    }
+    assertEquals(expectedSize, memoryCache.size());
+  }
+}
@@ -0,0 +1,98 @@
+package no.helseid.cache;
+
+import no.helseid.exceptions.HelseIdException;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TieredExpiringCacheTest {
+
+  @Test
+  void values_put_by_one_process_should_be_served_locally_by_another() throws HelseIdException {
+    var remoteCache = new InMemoryExpiringCache<String>();
+    var first = new TieredExpiringCache.Builder<>(remoteCache).build();
+    var second = new TieredExpiringCache.Builder<>(remoteCache).build();
+
+    first.put("key", "value", System.currentTimeMillis() + 60_000);
+    assertEquals("value", second.get("key"));
+
+    // Served by the local tier once read from the remote cache
+    remoteCache.remove("key");
+    assertEquals("value", second.get("key"));
+  }
+
+  @Test
+  void local_values_should_not_outlive_the_remote_expiration() throws HelseIdException, InterruptedException {
+    var remoteCache = new InMemoryExpiringCache<String>();
+    var tieredCache = new TieredExpiringCache.Builder<>(remoteCache).build();
+
+    remoteCache.put("key", "short-lived", System.currentTimeMillis() + 50);
+    assertEquals("short-lived", tieredCache.get("key"));
+
+    Thread.sleep(100);
+    remoteCache.put("key", "replacement", System.currentTimeMillis() + 60_000);
+
+    assertEquals("replacement", tieredCache.get("key"));
+  }
+
+  @Test
+  void local_values_should_not_outlive_the_maximum_local_lifetime() throws HelseIdException, InterruptedException {
+    var remoteCache = new InMemoryExpiringCache<String>();
+    var tieredCache = new TieredExpiringCache.Builder<>(remoteCache).withLocalMaximumLifetime(50).build();
+
+    remoteCache.put("key", "value", System.currentTimeMillis() + 60_000);
+    assertEquals("value", tieredCache.get("key"));
+
+    Thread.sleep(100);
+    remoteCache.remove("key");
+
+    assertNull(tieredCache.get("key"));
+  }
+
+  @Test
+  void removals_should_be_propagated_to_other_processes() throws HelseIdException {
+    var remoteCache = new InMemoryExpiringCache<String>();
+    var invalidationChannel = new InMemoryInvalidationChannel();
+    var first = new TieredExpiringCache.Builder<>(remoteCache).setCustomInvalidationChannel(invalidationChannel).build();
+    var second = new TieredExpiringCache.Builder<>(remoteCache).setCustomInvalidationChannel(invalidationChannel).build();
+
+    first.put("key", "value", System.currentTimeMillis() + 60_000);
+    assertEquals("value", second.get("key"));
+
+    first.remove("key");
+
+    assertNull(second.get("key"));
+    assertNull(remoteCache.get("key"));
+  }
+
+  @Test
+  void closed_caches_should_not_receive_removals() throws HelseIdException {
+    var remoteCache = new InMemoryExpiringCache<String>();
+    var invalidationChannel = new InMemoryInvalidationChannel();
+    var first = new TieredExpiringCache.Builder<>(remoteCache).setCustomInvalidationChannel(invalidationChannel).build();
+    var second = new TieredExpiringCache.Builder<>(remoteCache).setCustomInvalidationChannel(invalidationChannel).build();
+
+    first.put("key", "value", System.currentTimeMillis() + 60_000);
+    assertEquals("value", second.get("key"));
+
+    second.close();
+    first.remove("key");
+
+    assertEquals("value", second.get("key"));
+  }
+
+  @Test
+  void values_loaded_by_one_process_should_be_served_to_another_without_loading() throws HelseIdException {
+    var remoteCache = new InMemoryExpiringCache<String>();
+    var first = new TieredExpiringCache.Builder<>(remoteCache).build();
+    var second = new TieredExpiringCache.Builder<>(remoteCache).build();
+
+    var loadedEntry = first.getOrLoad("key", key -> new CacheEntry<>("loaded", System.currentTimeMillis() + 60_000));
+    var sharedEntry = second.getOrLoad("key", key -> fail("The value should be loaded by the first process"));
+
+    assertEquals("loaded", loadedEntry.value());
+    assertEquals("loaded", sharedEntry.value());
+    assertEquals(1, first.stats().loadSuccessCount());
+    assertEquals(0, second.stats().loadSuccessCount());
+  }
+}
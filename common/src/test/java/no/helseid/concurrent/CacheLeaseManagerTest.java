@@ -0,0 +1,42 @@
+package no.helseid.concurrent;
+
+import no.helseid.cache.InMemoryExpiringCache;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CacheLeaseManagerTest {
+
+  @Test
+  void lease_should_be_exclusive_until_released() {
+    var leaseCache = new InMemoryExpiringCache<String>();
+    var first = new CacheLeaseManager(leaseCache);
+    var second = new CacheLeaseManager(leaseCache);
+
+    LeaseManager.Lease lease = first.tryAcquire("key", 10_000);
+    assertNotNull(lease);
+    assertNull(second.tryAcquire("key", 10_000));
+    assertNotNull(second.tryAcquire("other-key", 10_000));
+
+    lease.release();
+    assertNotNull(second.tryAcquire("key", 10_000));
+  }
+
+  @Test
+  void expired_lease_should_be_acquired_by_others_and_not_released_by_its_former_holder() throws InterruptedException {
+    var leaseCache = new InMemoryExpiringCache<String>();
+    var first = new CacheLeaseManager(leaseCache);
+    var second = new CacheLeaseManager(leaseCache);
+
+    LeaseManager.Lease expiredLease = first.tryAcquire("key", 20);
+    assertNotNull(expiredLease);
+    Thread.sleep(50);
+
+    LeaseManager.Lease lease = second.tryAcquire("key", 10_000);
+    assertNotNull(lease);
+
+    // Releasing the expired lease must not release the lease held by another
+    expiredLease.release();
+    assertNull(first.tryAcquire("key", 10_000));
+  }
+}
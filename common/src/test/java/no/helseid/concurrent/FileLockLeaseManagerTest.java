@@ -0,0 +1,28 @@
+package no.helseid.concurrent;
+
+import no.helseid.exceptions.HelseIdException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileLockLeaseManagerTest {
+  @TempDir
+  Path directory;
+
+  @Test
+  void lease_should_be_exclusive_until_released() throws HelseIdException {
+    var first = new FileLockLeaseManager(directory);
+    var second = new FileLockLeaseManager(directory);
+
+    LeaseManager.Lease lease = first.tryAcquire("v1;9:client-id;", 10_000);
+    assertNotNull(lease);
+    assertNull(second.tryAcquire("v1;9:client-id;", 10_000));
+    assertNotNull(second.tryAcquire("v1;14:other-client-id;", 10_000));
+
+    lease.release();
+    assertNotNull(second.tryAcquire("v1;9:client-id;", 10_000));
+  }
+}
@@ -0,0 +1,130 @@
+package no.helseid.concurrent;
+
+import no.helseid.exceptions.HelseIdException;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SingleFlightTest {
+  private static final int CALLERS = 8;
+
+  @Test
+  void concurrent_callers_on_the_same_key_should_share_one_load() throws Exception {
+    SingleFlight<String> singleFlight = new SingleFlight<>();
+    AtomicInteger loads = new AtomicInteger();
+    CountDownLatch ready = new CountDownLatch(CALLERS);
+    CountDownLatch release = new CountDownLatch(1);
+
+    ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+    List<Future<String>> futures = new ArrayList<>();
+    for (int i = 0; i < CALLERS; i++) {
+      futures.add(executor.submit(() -> {
+        ready.countDown();
+        return singleFlight.execute("key", () -> {
+          loads.incrementAndGet();
+          await(release);
+          return "value";
+        });
+      }));
+    }
+
+    ready.await();
+    Thread.sleep(100);
+    release.countDown();
+
+    for (Future<String> future : futures) {
+      assertEquals("value", future.get(5, TimeUnit.SECONDS));
+    }
+    executor.shutdown();
+
+    assertEquals(1, loads.get());
+  }
+
+  @Test
+  void a_failing_load_should_be_shared_by_every_waiting_caller() throws Exception {
+    SingleFlight<String> singleFlight = new SingleFlight<>();
+    CountDownLatch ready = new CountDownLatch(CALLERS);
+    CountDownLatch release = new CountDownLatch(1);
+
+    ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+    List<Future<String>> futures = new ArrayList<>();
+    for (int i = 0; i < CALLERS; i++) {
+      futures.add(executor.submit(() -> {
+        ready.countDown();
+        return singleFlight.execute("key", () -> {
+          await(release);
+          throw new HelseIdException("failed");
+        });
+      }));
+    }
+
+    ready.await();
+    Thread.sleep(100);
+    release.countDown();
+
+    for (Future<String> future : futures) {
+      ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+      assertInstanceOf(HelseIdException.class, e.getCause());
+      assertEquals("failed", e.getCause().getMessage());
+    }
+    executor.shutdown();
+  }
+
+  @Test
+  void a_completed_load_should_not_be_reused() throws HelseIdException {
+    SingleFlight<Integer> singleFlight = new SingleFlight<>();
+    AtomicInteger loads = new AtomicInteger();
+
+    assertEquals(1, singleFlight.execute("key", loads::incrementAndGet));
+    assertEquals(2, singleFlight.execute("key", loads::incrementAndGet));
+  }
+
+  @Test
+  void asynchronous_callers_should_share_an_ongoing_load() throws Exception {
+    SingleFlight<String> singleFlight = new SingleFlight<>();
+    CompletableFuture<String> load = new CompletableFuture<>();
+    AtomicInteger loads = new AtomicInteger();
+
+    CompletableFuture<String> first = singleFlight.executeAsync("key", () -> {
+      loads.incrementAndGet();
+      return load;
+    });
+    CompletableFuture<String> second = singleFlight.executeAsync("key", () -> {
+      loads.incrementAndGet();
+      return CompletableFuture.completedFuture("other");
+    });
+
+    assertFalse(first.isDone());
+    load.complete("value");
+
+    assertEquals("value", first.get(5, TimeUnit.SECONDS));
+    assertEquals("value", second.get(5, TimeUnit.SECONDS));
+    assertEquals(1, loads.get());
+  }
+
+  @Test
+  void a_blocking_caller_should_share_an_ongoing_asynchronous_load() throws Exception {
+    SingleFlight<String> singleFlight = new SingleFlight<>();
+    CompletableFuture<String> load = new CompletableFuture<>();
+
+    singleFlight.executeAsync("key", () -> load);
+    CompletableFuture.delayedExecutor(100, TimeUnit.MILLISECONDS).execute(() -> load.completeExceptionally(new HelseIdException("failed")));
+
+    HelseIdException e = assertThrows(HelseIdException.class, () -> singleFlight.execute("key", () -> "other"));
+    assertEquals("failed", e.getMessage());
+  }
+
+  private static void await(CountDownLatch latch) throws HelseIdException {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new HelseIdException("Interrupted while waiting", e);
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package no.helseid.concurrent;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimingWheelTest {
+
+  @Test
+  void tasks_should_run_at_their_deadline_and_not_before() {
+    var timingWheel = new TimingWheel(10, 8, 3, 0, null);
+    List<String> ran = new ArrayList<>();
+    timingWheel.schedule(() -> ran.add("first"), 25);
+    timingWheel.schedule(() -> ran.add("second"), 60);
+
+    timingWheel.advance(24);
+    assertEquals(List.of(), ran);
+
+    timingWheel.advance(30);
+    assertEquals(List.of("first"), ran);
+
+    timingWheel.advance(60);
+    assertEquals(List.of("first", "second"), ran);
+    assertEquals(0, timingWheel.pending());
+  }
+
+  @Test
+  void tasks_beyond_the_finest_wheel_should_be_cascaded_until_due() {
+    // The wheels cover 80, 640 and 5120 milliseconds
+    var timingWheel = new TimingWheel(10, 8, 3, 0, null);
+    List<Long> ran = new ArrayList<>();
+    for (long deadline : new long[]{700, 5_000, 12_345}) {
+      timingWheel.schedule(() -> ran.add(deadline), deadline);
+    }
+
+    List<Long> ranAt = new ArrayList<>();
+    for (long now = 0; now <= 13_000; now += 10) {
+      int before = ran.size();
+      timingWheel.advance(now);
+      for (int i = before; i < ran.size(); i++) {
+        ranAt.add(now);
+      }
+    }
+
+    assertEquals(List.of(700L, 5_000L, 12_345L), ran);
+    assertEquals(List.of(700L, 5_000L, 12_350L), ranAt);
+  }
+
+  @Test
+  void cancelled_tasks_should_not_run() {
+    var timingWheel = new TimingWheel(10, 8, 3, 0, null);
+    List<String> ran = new ArrayList<>();
+    var cancelled = timingWheel.schedule(() -> ran.add("cancelled"), 1_000);
+    timingWheel.schedule(() -> ran.add("kept"), 1_000);
+    assertEquals(2, timingWheel.pending());
+
+    assertTrue(cancelled.cancel());
+    assertFalse(cancelled.cancel());
+    assertEquals(1, timingWheel.pending());
+
+    timingWheel.advance(1_000);
+    assertEquals(List.of("kept"), ran);
+  }
+
+  @Test
+  void passed_deadlines_should_run_at_the_next_advance() {
+    var timingWheel = new TimingWheel(10, 8, 3, 1_000, null);
+    List<String> ran = new ArrayList<>();
+    timingWheel.schedule(() -> ran.add("late"), 500);
+
+    timingWheel.advance(1_000);
+    assertEquals(List.of("late"), ran);
+  }
+
+  @Test
+  void failing_tasks_should_not_stop_later_tasks() {
+    var timingWheel = new TimingWheel(10, 8, 3, 0, null);
+    List<String> ran = new ArrayList<>();
+    timingWheel.schedule(() -> {
+      throw new IllegalStateException("Failing task");
+    }, 10);
+    timingWheel.schedule(() -> ran.add("after"), 10);
+
+    timingWheel.advance(10);
+    assertEquals(List.of("after"), ran);
+  }
+
+  @Test
+  void the_shared_wheel_should_run_tasks_on_its_own_thread() throws InterruptedException {
+    CountDownLatch ran = new CountDownLatch(1);
+    List<Thread> threads = new ArrayList<>();
+    TimingWheel.shared().schedule(() -> {
+      threads.add(Thread.currentThread());
+      ran.countDown();
+    }, System.currentTimeMillis() + 20);
+
+    assertTrue(ran.await(5, TimeUnit.SECONDS));
+    assertTrue(threads.get(0).isDaemon());
+    assertTrue(threads.get(0).getName().startsWith("helseid-timing-wheel"));
+  }
+}
@@ -0,0 +1,73 @@
+package no.helseid.http;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.nimbusds.oauth2.sdk.http.HTTPRequest;
+import com.nimbusds.oauth2.sdk.http.HTTPResponse;
+import no.helseid.exceptions.HelseIdException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.time.Duration;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class DefaultHttpTransportTest {
+  private static final String PATH = "/connect/token";
+  private WireMockServer wms;
+
+  @BeforeEach
+  void setup() {
+    wms = new WireMockServer(WireMockConfiguration.options().dynamicPort());
+    wms.start();
+  }
+
+  @Test
+  void request_headers_and_body_should_be_sent_and_the_response_returned() throws HelseIdException {
+    wms.stubFor(post(urlPathEqualTo(PATH))
+        .withHeader("DPoP", equalTo("my.dpop.proof"))
+        .withHeader("Content-Type", containing("application/x-www-form-urlencoded"))
+        .withRequestBody(equalTo("grant_type=client_credentials"))
+        .willReturn(aResponse()
+            .withStatus(400)
+            .withHeader("Content-Type", "application/json")
+            .withHeader("DPoP-Nonce", "my-nonce")
+            .withBody("{\"error\":\"use_dpop_nonce\"}")));
+
+    HTTPRequest httpRequest = new HTTPRequest(HTTPRequest.Method.POST, URI.create(wms.baseUrl() + PATH));
+    httpRequest.setHeader("DPoP", "my.dpop.proof");
+    httpRequest.setHeader("Content-Type", "application/x-www-form-urlencoded");
+    httpRequest.setBody("grant_type=client_credentials");
+
+    HTTPResponse httpResponse = new DefaultHttpTransport().send(httpRequest);
+
+    assertEquals(400, httpResponse.getStatusCode());
+    assertEquals("my-nonce", httpResponse.getDPoPNonce().getValue());
+    assertEquals("{\"error\":\"use_dpop_nonce\"}", httpResponse.getBody());
+    wms.verify(1, postRequestedFor(urlPathEqualTo(PATH)));
+  }
+
+  @Test
+  void a_slow_response_should_time_out() {
+    wms.stubFor(get(urlPathEqualTo(PATH)).willReturn(aResponse().withStatus(200).withFixedDelay(1000)));
+
+    var httpTransport = new DefaultHttpTransport(Duration.ofSeconds(1), Duration.ofMillis(100), null);
+    var httpRequest = new HTTPRequest(HTTPRequest.Method.GET, URI.create(wms.baseUrl() + PATH));
+
+    HelseIdException e = assertThrows(HelseIdException.class, () -> httpTransport.send(httpRequest));
+    assertEquals("Error occurred sending the request", e.getMessage());
+  }
+
+  @Test
+  void the_shared_instance_should_be_reused() {
+    assertSame(DefaultHttpTransport.getInstance(), DefaultHttpTransport.getInstance());
+  }
+
+  @AfterEach
+  void teardown() {
+    wms.stop();
+  }
+}
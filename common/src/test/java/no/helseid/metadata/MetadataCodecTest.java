@@ -0,0 +1,57 @@
+package no.helseid.metadata;
+
+import com.nimbusds.oauth2.sdk.ParseException;
+import com.nimbusds.openid.connect.sdk.op.OIDCProviderMetadata;
+import no.helseid.exceptions.HelseIdException;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetadataCodecTest {
+  private static final String METADATA = """
+      {
+        "issuer": "https://helseid-sts.test.nhn.no",
+        "token_endpoint": "https://helseid-sts.test.nhn.no/connect/token",
+        "authorization_endpoint": "https://helseid-sts.test.nhn.no/connect/authorize",
+        "jwks_uri": "https://helseid-sts.test.nhn.no/.well-known/openid-configuration/jwks",
+        "frontchannel_logout_supported": true,
+        "subject_types_supported": ["public"],
+        "id_token_signing_alg_values_supported": ["PS256"]
+      }
+      """;
+
+  @Test
+  void metadata_should_survive_a_round_trip() throws HelseIdException, ParseException {
+    var codec = new MetadataCodec();
+
+    OIDCProviderMetadata decoded = codec.decode(codec.encode(OIDCProviderMetadata.parse(METADATA)));
+
+    assertEquals("https://helseid-sts.test.nhn.no", decoded.getIssuer().getValue());
+    assertEquals(URI.create("https://helseid-sts.test.nhn.no/connect/token"), decoded.getTokenEndpointURI());
+    assertTrue(decoded.supportsFrontChannelLogout());
+  }
+
+  @Test
+  void metadata_should_be_restricted_to_the_given_fields() throws HelseIdException, ParseException {
+    var fullCodec = new MetadataCodec();
+    var libraryCodec = new MetadataCodec(MetadataCodec.LIBRARY_FIELDS);
+    var metadata = OIDCProviderMetadata.parse(METADATA);
+
+    byte[] bytes = libraryCodec.encode(metadata);
+    OIDCProviderMetadata decoded = libraryCodec.decode(bytes);
+
+    assertTrue(bytes.length < fullCodec.encode(metadata).length);
+    assertEquals(URI.create("https://helseid-sts.test.nhn.no/connect/token"), decoded.getTokenEndpointURI());
+    assertFalse(decoded.supportsFrontChannelLogout());
+  }
+
+  @Test
+  void unknown_encodings_should_be_rejected() {
+    var codec = new MetadataCodec();
+
+    assertThrows(HelseIdException.class, () -> codec.decode(new byte[0]));
+    assertThrows(HelseIdException.class, () -> codec.decode("{\"issuer\":\"x\"}".getBytes()));
+  }
+}
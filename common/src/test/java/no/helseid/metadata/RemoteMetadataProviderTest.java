@@ -3,12 +3,19 @@ package no.helseid.metadata;
 import com.github.tomakehurst.wiremock.WireMockServer;
 import com.github.tomakehurst.wiremock.client.WireMock;
 import com.github.tomakehurst.wiremock.core.WireMockConfiguration;
+import com.nimbusds.openid.connect.sdk.op.OIDCProviderMetadata;
 import no.helseid.exceptions.HelseIdException;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
 import static org.junit.jupiter.api.Assertions.*;
@@ -95,6 +102,33 @@ class RemoteMetadataProviderTest {
     verify(2, getRequestedFor(urlEqualTo(OPENID_CONFIGURATION_PATH)));
   }
 
+  @Test
+  void concurrent_callers_share_one_fetch_per_expiry() throws Exception {
+    var endpoint = URI.create("http://localhost:" + PORT);
+
+    wireMockServer.stubFor(get(urlPathEqualTo("/.well-known/openid-configuration"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withFixedDelay(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody(createMetadataString(endpoint.toString()))));
+
+    RemoteMetadataProvider helseIdMetadataProvider = new RemoteMetadataProvider(endpoint);
+
+    ExecutorService executor = Executors.newFixedThreadPool(16);
+    List<Future<OIDCProviderMetadata>> futures = new ArrayList<>();
+    for (int i = 0; i < 16; i++) {
+      futures.add(executor.submit(helseIdMetadataProvider::getMetadata));
+    }
+    var metadata = futures.get(0).get(5, TimeUnit.SECONDS);
+    for (Future<OIDCProviderMetadata> future : futures) {
+      assertSame(metadata, future.get(5, TimeUnit.SECONDS));
+    }
+    executor.shutdown();
+
+    verify(1, getRequestedFor(urlEqualTo(OPENID_CONFIGURATION_PATH)));
+  }
+
   @Test
   void failing_refresh_throws_an_exception()  {
     var endpoint = URI.create("http://localhost:" + PORT);
@@ -126,6 +160,91 @@ class RemoteMetadataProviderTest {
     assertSame(firstProvider, secondProvider);
   }
 
+  @Test
+  void stale_metadata_is_served_while_a_failing_refresh_backs_off() throws HelseIdException {
+    var endpoint = URI.create("http://localhost:" + PORT);
+
+    wireMockServer.stubFor(get(urlPathEqualTo("/.well-known/openid-configuration"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody(createMetadataString(endpoint.toString()))));
+
+    RemoteMetadataProvider helseIdMetadataProvider = new RemoteMetadataProvider.Builder(endpoint)
+        .withCacheLifetime(0L)
+        .withStaleWhileRevalidate(60_000L)
+        .withRefreshBackoff(60_000L, 120_000L)
+        .setCustomBackgroundExecutor(Runnable::run)
+        .build();
+
+    var metadata = helseIdMetadataProvider.getMetadata();
+
+    wireMockServer.stubFor(get(urlPathEqualTo("/.well-known/openid-configuration"))
+        .willReturn(aResponse().withStatus(500)));
+
+    assertSame(metadata, helseIdMetadataProvider.getMetadata());
+    assertSame(metadata, helseIdMetadataProvider.getMetadata());
+
+    verify(2, getRequestedFor(urlEqualTo(OPENID_CONFIGURATION_PATH)));
+  }
+
+  @Test
+  void stale_metadata_is_replaced_by_a_background_refresh() throws HelseIdException {
+    var endpoint = URI.create("http://localhost:" + PORT);
+
+    wireMockServer.stubFor(get(urlPathEqualTo("/.well-known/openid-configuration"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody(createMetadataString(endpoint.toString()))));
+
+    RemoteMetadataProvider helseIdMetadataProvider = new RemoteMetadataProvider.Builder(endpoint)
+        .withCacheLifetime(0L)
+        .withStaleWhileRevalidate(60_000L)
+        .setCustomBackgroundExecutor(Runnable::run)
+        .build();
+
+    var metadata = helseIdMetadataProvider.getMetadata();
+    assertSame(metadata, helseIdMetadataProvider.getMetadata());
+    assertNotSame(metadata, helseIdMetadataProvider.getMetadata());
+
+    verify(3, getRequestedFor(urlEqualTo(OPENID_CONFIGURATION_PATH)));
+  }
+
+  @Test
+  void metadata_beyond_maximum_staleness_is_not_served() throws HelseIdException {
+    var endpoint = URI.create("http://localhost:" + PORT);
+
+    wireMockServer.stubFor(get(urlPathEqualTo("/.well-known/openid-configuration"))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody(createMetadataString(endpoint.toString()))));
+
+    RemoteMetadataProvider helseIdMetadataProvider = new RemoteMetadataProvider.Builder(endpoint)
+        .withCacheLifetime(-2L)
+        .withStaleWhileRevalidate(1L)
+        .setCustomBackgroundExecutor(Runnable::run)
+        .build();
+
+    helseIdMetadataProvider.getMetadata();
+
+    wireMockServer.stubFor(get(urlPathEqualTo("/.well-known/openid-configuration"))
+        .willReturn(aResponse().withStatus(500)));
+
+    HelseIdException e = assertThrows(HelseIdException.class, helseIdMetadataProvider::getMetadata);
+    assertEquals("Error occurred during fetching metadata", e.getMessage());
+  }
+
+  @Test
+  void builder_rejects_negative_staleness() {
+    var endpoint = URI.create("http://localhost:" + PORT);
+
+    assertThrows(HelseIdException.class, () -> new RemoteMetadataProvider.Builder(endpoint)
+        .withStaleWhileRevalidate(-1L)
+        .build());
+  }
+
   @AfterEach
   void teardown() {
     if (wireMockServer != null) {
@@ -2,15 +2,15 @@ package no.helseid.selfservice.endpoints.clientsecret;
 
 import com.nimbusds.jose.jwk.JWK;
 import com.nimbusds.jose.util.JSONObjectUtils;
+import com.nimbusds.oauth2.sdk.http.HTTPRequest;
+import com.nimbusds.oauth2.sdk.http.HTTPResponse;
 import no.helseid.dpop.DPoPProofCreator;
 import no.helseid.dpop.HttpMethod;
 import no.helseid.exceptions.HelseIdException;
+import no.helseid.http.DefaultHttpTransport;
+import no.helseid.http.HttpTransport;
 
-import java.io.IOException;
 import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
 import java.text.ParseException;
 import java.time.ZonedDateTime;
 import java.util.Map;
@@ -34,32 +34,47 @@ public interface ClientSecretEndpoint {
       String accessToken,
       JWK jwk
   ) throws HelseIdException {
-    HttpResponse<String> httpResponse;
-    try {
-      HttpClient httpclient = HttpClient.newHttpClient();
-      HttpRequest httpRequest = HttpRequest.newBuilder(endpoint)
-          .POST(HttpRequest.BodyPublishers.ofString(jwk.toPublicJWK().toJSONString()))
-          .header("Authorization", "DPoP " + accessToken)
-          .header("DPoP", dPoPProofCreator.createDPoPProof(endpoint, HttpMethod.POST, accessToken))
-          .header("Content-Type", "application/json")
-          .header("Accept", "application/json")
-          .build();
+    return sendRequest(endpoint, dPoPProofCreator, accessToken, jwk, DefaultHttpTransport.getInstance());
+  }
 
-      httpResponse = httpclient.send(httpRequest, HttpResponse.BodyHandlers.ofString());
+  /**
+   * Upload a public json web key to  HelseID Self-Service thru the provided transport
+   * @param endpoint the endpoint
+   * @param dPoPProofCreator a dpop proof creator
+   * @param accessToken an access token bound to the private key in the dpop proof creator
+   * @param jwk a private jwk
+   * @param httpTransport the transport sending the request
+   * @return the result of an upload
+   * @throws HelseIdException if a request was unable to send or response was unparsable
+   */
+  static ClientSecretResponse sendRequest(
+      URI endpoint,
+      DPoPProofCreator dPoPProofCreator,
+      String accessToken,
+      JWK jwk,
+      HttpTransport httpTransport
+  ) throws HelseIdException {
+    HTTPRequest httpRequest = new HTTPRequest(HTTPRequest.Method.POST, endpoint);
+    httpRequest.setHeader("Authorization", "DPoP " + accessToken);
+    httpRequest.setHeader("DPoP", dPoPProofCreator.createDPoPProof(endpoint, HttpMethod.POST, accessToken));
+    httpRequest.setHeader("Content-Type", "application/json");
+    httpRequest.setHeader("Accept", "application/json");
+    httpRequest.setBody(jwk.toPublicJWK().toJSONString());
 
-      if (httpResponse.statusCode() >= 500) {
-        throw new HelseIdException("Unexpected error from self service");
-      }
+    HTTPResponse httpResponse = httpTransport.send(httpRequest);
+
+    if (httpResponse.getStatusCode() >= 500) {
+      throw new HelseIdException("Unexpected error from self service");
+    }
 
-      Map<String, Object> parsed = JSONObjectUtils.parse(httpResponse.body());
-      if (httpResponse.statusCode() >= 400) {
+    try {
+      Map<String, Object> parsed = JSONObjectUtils.parse(httpResponse.getBody());
+      if (httpResponse.getStatusCode() >= 400) {
         return handleError(parsed);
       }
       return handleSuccess(parsed);
-    } catch (ParseException | IOException e) {
+    } catch (ParseException e) {
       throw new HelseIdException("Unable to process the response", e);
-    } catch (InterruptedException e) {
-      throw new HelseIdException("Request interrupted", e);
     }
   }
 